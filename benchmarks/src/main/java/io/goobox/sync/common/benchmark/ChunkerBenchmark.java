@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.benchmark;
+
+import io.goobox.sync.common.hash.ChunkManifest;
+import io.goobox.sync.common.hash.Chunker;
+import io.goobox.sync.common.hash.ContentHasher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the chunking and the hashing of a file in the page cache. The result divided into the file size is the
+ * throughput of a single core.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkerBenchmark {
+
+    @Param({"64"})
+    public int sizeMiB;
+
+    private Path file;
+    private Chunker chunker;
+    private ContentHasher hasher;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] data = new byte[sizeMiB << 20];
+        new Random(42).nextBytes(data);
+        file = Files.createTempFile("chunker", ".bin");
+        Files.write(file, data);
+        chunker = new Chunker();
+        hasher = new ContentHasher(null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        hasher.close();
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public ChunkManifest chunk() throws IOException {
+        return chunker.chunk(file);
+    }
+
+    /**
+     * The hash of the whole file, as the baseline of the chunking.
+     */
+    @Benchmark
+    public String hash() throws IOException {
+        return hasher.hash(file);
+    }
+
+}
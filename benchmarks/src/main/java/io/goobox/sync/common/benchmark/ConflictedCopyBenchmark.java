@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.benchmark;
+
+import io.goobox.sync.common.Utils;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the conflicted copy naming in a directory which already contains the given number of conflicted copies.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class ConflictedCopyBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int copies;
+
+    @Param({"100"})
+    public int batch;
+
+    private Path dir;
+    private Path file;
+    private List<Path> batchFiles;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("conflicts");
+        file = Files.createFile(dir.resolve("document.txt"));
+        for (int i = 0; i < copies; i++) {
+            Files.createFile(Utils.conflictedCopyPath(file));
+        }
+
+        batchFiles = new ArrayList<>();
+        for (int i = 0; i < batch; i++) {
+            batchFiles.add(Files.createFile(dir.resolve("file-" + i + ".txt")));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir.toFile());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public Path conflictedCopyPath() {
+        return Utils.conflictedCopyPath(file);
+    }
+
+    /**
+     * Reserves one conflicted copy for each file of the batch. Runs once per iteration, as it changes the directory.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public Map<Path, Path> reserveConflictedCopyPaths() throws IOException {
+        return Utils.reserveConflictedCopyPaths(batchFiles);
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.benchmark;
+
+import io.goobox.sync.common.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Utils#isExcluded(Path)} over a corpus of typical file names with a few excluded ones mixed in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExclusionBenchmark {
+
+    private static final String[] NAMES = {
+            "IMG_%d.JPG", "Report %d.docx", "notes-%d.txt", "invoice_%d.pdf", "DSC%d.NEF", "backup-%d.tar.gz",
+            "~$Report %d.docx", ".~lock.sheet%d.ods#", "~WRL%d.tmp", "desktop.ini", "Thumbs.db", ".DS_Store",
+            "draft %d ", "src%d", "README%d.md"
+    };
+
+    private Path[] paths;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        Path dir = Paths.get("sync", "documents").toAbsolutePath();
+        paths = new Path[4096];
+        for (int i = 0; i < paths.length; i++) {
+            String name = NAMES[random.nextInt(NAMES.length)];
+            paths[i] = dir.resolve(String.format(name, random.nextInt(100000)));
+        }
+    }
+
+    @Benchmark
+    public void isExcluded(Blackhole blackhole) {
+        for (Path path : paths) {
+            blackhole.consume(Utils.isExcluded(path));
+        }
+    }
+
+}
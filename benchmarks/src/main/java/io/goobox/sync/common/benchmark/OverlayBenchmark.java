@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.benchmark;
+
+import io.goobox.sync.common.overlay.OverlayIcon;
+import io.goobox.sync.common.overlay.OverlayStateIndex;
+import io.goobox.sync.common.overlay.RefreshQueue;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overlay icon lookups and refreshes on a synthetic tree of configurable depth and width.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OverlayBenchmark {
+
+    @Param({"3", "5"})
+    public int depth;
+
+    @Param({"8"})
+    public int width;
+
+    /*
+     * The default capacity of the refresh queue, which the larger trees exceed, and one no tree reaches, so refreshAll
+     * measures both the collapse to the sync folder and the delivery of every single path.
+     */
+    @Param({"10000", "1000000"})
+    public int capacity;
+
+    private SyntheticTree tree;
+    private OverlayStateIndex index;
+    private RefreshQueue queue;
+    private String[] dirNames;
+    private Path[] files;
+    private int next;
+
+    /**
+     * Reports how many paths the native side receives per refreshIcons call.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class DrainCounters {
+
+        public long batches;
+        public long paths;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            batches = 0;
+            paths = 0;
+        }
+
+    }
+
+    @Setup
+    public void setUp() {
+        tree = new SyntheticTree(Paths.get("sync").toAbsolutePath(), depth, width);
+        index = new OverlayStateIndex(tree.getRoot());
+        List<Path> treeFiles = tree.getFiles();
+        for (int i = 0; i < treeFiles.size(); i++) {
+            index.update(treeFiles.get(i), i % 1000 == 0 ? OverlayIcon.SYNCING : OverlayIcon.OK);
+        }
+        for (Path dir : tree.getDirs()) {
+            index.update(dir, OverlayIcon.OK);
+        }
+
+        queue = new RefreshQueue(tree.getRoot(), capacity, 0);
+        dirNames = tree.getDirs().stream().map(Path::toString).toArray(String[]::new);
+        files = treeFiles.toArray(new Path[0]);
+    }
+
+    /**
+     * The work of getIconForFile for a directory: parse the native path and look up the aggregated state.
+     */
+    @Benchmark
+    public int getIconForDirectory() {
+        String dir = dirNames[next++ % dirNames.length];
+        return index.getIcon(Paths.get(dir)).id();
+    }
+
+    /**
+     * The same lookup resolving the native path directly in the path table of the index.
+     */
+    @Benchmark
+    public int findIconForDirectory() {
+        String dir = dirNames[next++ % dirNames.length];
+        return index.getIcon(index.find(dir)).id();
+    }
+
+    /**
+     * A file state change: the index update done by refresh(Path).
+     */
+    @Benchmark
+    public void updateState() {
+        Path file = files[next++ % files.length];
+        index.update(file, OverlayIcon.SYNCING);
+        index.update(file, OverlayIcon.OK);
+    }
+
+    /**
+     * A bulk sync touching every file of the tree once, followed by draining the refresh queue.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public void refreshAll(DrainCounters counters, Blackhole blackhole) throws InterruptedException {
+        for (Path file : files) {
+            queue.add(file);
+        }
+        while (queue.size() > 0) {
+            String[] batch = queue.take();
+            counters.batches++;
+            counters.paths += batch.length;
+            blackhole.consume(batch);
+        }
+    }
+
+}
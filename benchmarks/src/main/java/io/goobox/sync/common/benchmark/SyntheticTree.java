@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.benchmark;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Paths of a generated tree: every directory has {@code width} subdirectories and {@code width} files, down to the
+ * given depth. Nothing is created on disk.
+ */
+public class SyntheticTree {
+
+    private final Path root;
+    private final List<Path> dirs = new ArrayList<>();
+    private final List<Path> files = new ArrayList<>();
+
+    public SyntheticTree(Path root, int depth, int width) {
+        this.root = root;
+        generate(root, depth, width);
+    }
+
+    private void generate(Path dir, int depth, int width) {
+        for (int i = 0; i < width; i++) {
+            files.add(dir.resolve("file-" + i + ".txt"));
+        }
+        if (depth == 0) {
+            return;
+        }
+        for (int i = 0; i < width; i++) {
+            Path sub = dir.resolve("dir-" + i);
+            dirs.add(sub);
+            generate(sub, depth - 1, width);
+        }
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public List<Path> getDirs() {
+        return dirs;
+    }
+
+    public List<Path> getFiles() {
+        return files;
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common;
+
+import net.harawata.appdirs.AppDirsFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * The directories used by the app: the user home dir, the data dir, the log dir and the sync dir.
+ * <p>
+ * Each directory is resolved on first use and cached. Resolving the home dir may start a process on Windows and the
+ * data and log dirs are looked up with {@link AppDirsFactory}, so apps should call {@link #resolveAsync()} early to
+ * move this work off the startup critical path.
+ * </p>
+ * <p>
+ * A directory can be overridden with a system property, or with the {@link Builder}, e.g. to point tests and
+ * benchmarks to temporary directories:
+ * </p>
+ * <ul>
+ * <li>{@value #HOME_DIR_PROPERTY} - the user home dir</li>
+ * <li>{@value #DATA_DIR_PROPERTY} - the data dir</li>
+ * <li>{@value #LOG_DIR_PROPERTY} - the log dir</li>
+ * <li>{@value #SYNC_DIR_PROPERTY} - the sync dir, {@code <home dir>/Goobox} by default</li>
+ * </ul>
+ */
+public final class AppPaths {
+
+    public static final String HOME_DIR_PROPERTY = "goobox.home";
+    public static final String DATA_DIR_PROPERTY = "goobox.data";
+    public static final String LOG_DIR_PROPERTY = "goobox.log";
+    public static final String SYNC_DIR_PROPERTY = "goobox.sync";
+
+    private static volatile AppPaths defaultPaths;
+
+    private final LazyPath homeDir;
+    private final LazyPath dataDir;
+    private final LazyPath logDir;
+    private final LazyPath syncDir;
+
+    private AppPaths(Builder builder) {
+        this.homeDir = new LazyPath(builder.homeDir, HOME_DIR_PROPERTY, AppPaths::resolveHomeDir);
+        this.dataDir = new LazyPath(builder.dataDir, DATA_DIR_PROPERTY,
+                () -> Paths.get(AppDirsFactory.getInstance().getUserDataDir(Utils.APP_NAME, null, "")));
+        this.logDir = new LazyPath(builder.logDir, LOG_DIR_PROPERTY,
+                () -> Paths.get(AppDirsFactory.getInstance().getUserLogDir(Utils.APP_NAME, null, "")));
+        this.syncDir = new LazyPath(builder.syncDir, SYNC_DIR_PROPERTY,
+                () -> getHomeDir().resolve(Utils.APP_NAME));
+    }
+
+    /**
+     * @return the paths used by the static getters of {@link Utils}.
+     */
+    public static AppPaths getDefault() {
+        AppPaths paths = defaultPaths;
+        if (paths == null) {
+            synchronized (AppPaths.class) {
+                paths = defaultPaths;
+                if (paths == null) {
+                    paths = builder().build();
+                    defaultPaths = paths;
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Replaces the default paths, e.g. with paths to temporary directories in tests.
+     *
+     * @param paths new default paths, or null to resolve them again.
+     */
+    public static void setDefault(AppPaths paths) {
+        defaultPaths = paths;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Path getHomeDir() {
+        return homeDir.get();
+    }
+
+    public Path getDataDir() {
+        return dataDir.get();
+    }
+
+    public Path getLogDir() {
+        return logDir.get();
+    }
+
+    public Path getSyncDir() {
+        return syncDir.get();
+    }
+
+    /**
+     * Resolves all directories in a background thread.
+     *
+     * @return a future completed with this instance when all directories are resolved.
+     */
+    public CompletableFuture<AppPaths> resolveAsync() {
+        CompletableFuture<AppPaths> future = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                getHomeDir();
+                getDataDir();
+                getLogDir();
+                getSyncDir();
+                future.complete(this);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }, "Resolve app paths");
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    private static Path resolveHomeDir() {
+        String path = System.getProperty("user.home");
+        if (System.getProperty("os.name").startsWith("Windows") && !isPureAscii(path)) {
+            try {
+                path = getMSDOSPath(path);
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException("Cannot determine user home dir", e);
+            }
+        }
+        return Paths.get(path);
+    }
+
+    private static boolean isPureAscii(String path) {
+        return StandardCharsets.US_ASCII.newEncoder().canEncode(path);
+    }
+
+    private static String getMSDOSPath(String path) throws IOException, InterruptedException {
+        Process process = Runtime.getRuntime().exec(
+                "cmd /c for %I in (\"" + path + "\") do @echo %~fsI");
+
+        process.waitFor();
+
+        byte[] data = new byte[65536];
+        int size = process.getInputStream().read(data);
+
+        if (size <= 0)
+            return null;
+
+        return new String(data, 0, size).replaceAll("\\r\\n", "");
+    }
+
+    /**
+     * Builder of {@link AppPaths}. The directories not set are taken from the system properties or resolved with the
+     * platform defaults.
+     */
+    public static final class Builder {
+
+        private Path homeDir;
+        private Path dataDir;
+        private Path logDir;
+        private Path syncDir;
+
+        private Builder() {
+        }
+
+        public Builder homeDir(Path homeDir) {
+            this.homeDir = homeDir;
+            return this;
+        }
+
+        public Builder dataDir(Path dataDir) {
+            this.dataDir = dataDir;
+            return this;
+        }
+
+        public Builder logDir(Path logDir) {
+            this.logDir = logDir;
+            return this;
+        }
+
+        public Builder syncDir(Path syncDir) {
+            this.syncDir = syncDir;
+            return this;
+        }
+
+        public AppPaths build() {
+            return new AppPaths(this);
+        }
+
+    }
+
+    /**
+     * A directory resolved once on first use, unless set upfront or by a system property.
+     */
+    private static final class LazyPath {
+
+        private final String property;
+        private final Supplier<Path> resolver;
+        private volatile Path value;
+
+        private LazyPath(Path value, String property, Supplier<Path> resolver) {
+            this.value = value;
+            this.property = property;
+            this.resolver = resolver;
+        }
+
+        Path get() {
+            Path result = value;
+            if (result == null) {
+                synchronized (this) {
+                    result = value;
+                    if (result == null) {
+                        String override = System.getProperty(property);
+                        result = override != null ? Paths.get(override) : resolver.get();
+                        value = result;
+                    }
+                }
+            }
+            return result;
+        }
+
+    }
+
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiled set of rules deciding which files are excluded from cloud synchronization.
+ * <p>
+ * Rules use the gitignore syntax for file names:
+ * - "name" matches a file or directory with the given name,
+ * - "*" matches any sequence of characters, "?" any single character, "[a-z]" or "[!a-z]" a character class,
+ * - "\" escapes the next character,
+ * - a trailing "/" restricts the rule to directories,
+ * - a leading "!" re-includes names excluded by a previous rule.
+ * <p>
+ * Rules are evaluated from the last to the first and the first matching rule wins. Patterns containing a "/" other
+ * than the trailing one are not supported, as rules only apply to names. Matching does not allocate memory, so it is
+ * safe to use on every path of a scan or a watch event.
+ * </p>
+ */
+public class ExclusionRules {
+
+    /**
+     * The built-in rules:
+     * - system files: desktop.ini, thumbs.db, .ds_store
+     * - temporary files:
+     * -- file its name starts with ~$ or .~,
+     * -- file its name starts with ~ and ends with .tmp
+     * - files and directories their names end with spaces.
+     */
+    public static final List<String> DEFAULT_PATTERNS = Collections.unmodifiableList(Arrays.asList(
+            "desktop.ini", "thumbs.db", ".ds_store", "~$*", ".~*", "~*.tmp", "*\\ "));
+
+    private static final ExclusionRules DEFAULT = builder().addDefaults().build();
+
+    private final Rule[] rules;
+
+    private ExclusionRules(List<Rule> rules) {
+        this.rules = rules.toArray(new Rule[0]);
+    }
+
+    public static ExclusionRules getDefault() {
+        return DEFAULT;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns true if the file name of the given path matches the rules. Rules restricted to directories are not
+     * evaluated.
+     *
+     * @param path to be evaluated.
+     * @return true if the given path should be excluded.
+     */
+    public boolean isExcluded(Path path) {
+        return isExcluded(path, false);
+    }
+
+    /**
+     * Returns true if the file name of the given path matches the rules.
+     *
+     * @param path      to be evaluated.
+     * @param directory whether the path is a directory.
+     * @return true if the given path should be excluded.
+     */
+    public boolean isExcluded(Path path, boolean directory) {
+        Path name = path.getFileName();
+        return name != null && isExcluded(name.toString(), directory);
+    }
+
+    /**
+     * Returns true if the given file name matches the rules.
+     *
+     * @param name      file name without any parent directories.
+     * @param directory whether the name is of a directory.
+     * @return true if the name should be excluded.
+     */
+    public boolean isExcluded(CharSequence name, boolean directory) {
+        for (int i = rules.length - 1; i >= 0; i--) {
+            Rule rule = rules[i];
+            if ((directory || !rule.directoryOnly) && rule.matches(name)) {
+                return !rule.negated;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the given directory and everything below it should be excluded. Scanners can skip the whole
+     * subtree, as names inside an excluded directory cannot be re-included.
+     *
+     * @param dir to be evaluated.
+     * @return true if the subtree should be excluded.
+     */
+    public boolean isSubtreeExcluded(Path dir) {
+        return isExcluded(dir, true);
+    }
+
+    public static class Builder {
+
+        private final List<Rule> rules = new ArrayList<>();
+        private boolean ignoreCase = true;
+
+        private Builder() {
+        }
+
+        /**
+         * Whether names are matched case-insensitively. Defaults to true. Applies to rules added afterwards.
+         */
+        public Builder ignoreCase(boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+            return this;
+        }
+
+        public Builder addDefaults() {
+            return addAll(DEFAULT_PATTERNS);
+        }
+
+        /**
+         * Adds a rule.
+         *
+         * @param pattern in gitignore syntax.
+         * @return this builder.
+         * @throws IllegalArgumentException if the pattern is not supported.
+         */
+        public Builder add(String pattern) {
+            rules.add(Rule.compile(pattern, ignoreCase));
+            return this;
+        }
+
+        public Builder addAll(List<String> patterns) {
+            for (String pattern : patterns) {
+                add(pattern);
+            }
+            return this;
+        }
+
+        /**
+         * Adds the rules from a gitignore-style file. Blank lines and lines starting with "#" are skipped and trailing
+         * spaces are removed unless escaped with "\".
+         *
+         * @param file to read the rules from.
+         * @return this builder.
+         * @throws IOException if the file cannot be read.
+         */
+        public Builder load(Path file) throws IOException {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                int end = line.length();
+                while (end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\')) {
+                    end--;
+                }
+                line = line.substring(0, end);
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    add(line);
+                }
+            }
+            return this;
+        }
+
+        public ExclusionRules build() {
+            return new ExclusionRules(rules);
+        }
+
+    }
+
+    private static final class Rule {
+
+        private static final int EXACT = 0, PREFIX = 1, SUFFIX = 2, PREFIX_SUFFIX = 3, GLOB = 4;
+
+        private final int kind;
+        private final boolean negated;
+        private final boolean directoryOnly;
+        private final boolean ignoreCase;
+        private final String pattern;
+        private final String prefix;
+        private final String suffix;
+
+        private Rule(int kind, boolean negated, boolean directoryOnly, boolean ignoreCase,
+                     String pattern, String prefix, String suffix) {
+            this.kind = kind;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.ignoreCase = ignoreCase;
+            this.pattern = pattern;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        static Rule compile(String pattern, boolean ignoreCase) {
+            String p = pattern;
+            boolean negated = p.startsWith("!");
+            if (negated) {
+                p = p.substring(1);
+            }
+            boolean directoryOnly = p.endsWith("/");
+            if (directoryOnly) {
+                p = p.substring(0, p.length() - 1);
+            }
+            if (p.isEmpty() || p.indexOf('/') != -1) {
+                throw new IllegalArgumentException("Unsupported exclusion pattern: " + pattern);
+            }
+            if (ignoreCase) {
+                p = p.toLowerCase();
+            }
+
+            int kind;
+            String prefix = null;
+            String suffix = null;
+            if (p.indexOf('\\') != -1 || p.indexOf('?') != -1 || p.indexOf('[') != -1) {
+                kind = GLOB;
+            } else {
+                int star = p.indexOf('*');
+                if (star == -1) {
+                    kind = EXACT;
+                } else if (star != p.lastIndexOf('*')) {
+                    kind = GLOB;
+                } else {
+                    prefix = p.substring(0, star);
+                    suffix = p.substring(star + 1);
+                    kind = prefix.isEmpty() ? SUFFIX : suffix.isEmpty() ? PREFIX : PREFIX_SUFFIX;
+                }
+            }
+            return new Rule(kind, negated, directoryOnly, ignoreCase, p, prefix, suffix);
+        }
+
+        boolean matches(CharSequence name) {
+            switch (kind) {
+                case EXACT:
+                    return name.length() == pattern.length() && regionMatches(name, 0, pattern);
+                case PREFIX:
+                    return name.length() >= prefix.length() && regionMatches(name, 0, prefix);
+                case SUFFIX:
+                    return name.length() >= suffix.length()
+                            && regionMatches(name, name.length() - suffix.length(), suffix);
+                case PREFIX_SUFFIX:
+                    return name.length() >= prefix.length() + suffix.length()
+                            && regionMatches(name, 0, prefix)
+                            && regionMatches(name, name.length() - suffix.length(), suffix);
+                default:
+                    return glob(name);
+            }
+        }
+
+        private boolean regionMatches(CharSequence name, int offset, String part) {
+            for (int i = 0; i < part.length(); i++) {
+                if (!same(name.charAt(offset + i), part.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean same(char c, char p) {
+            return c == p || ignoreCase && Character.toLowerCase(c) == p;
+        }
+
+        /**
+         * Iterative wildcard matching, backtracking only to the last "*".
+         */
+        private boolean glob(CharSequence name) {
+            int n = 0, p = 0;
+            int starP = -1, starN = 0;
+            while (n < name.length()) {
+                int next = p < pattern.length() ? matchOne(name.charAt(n), p) : -1;
+                if (next != -1) {
+                    n++;
+                    p = next;
+                } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                    starP = ++p;
+                    starN = n;
+                } else if (starP != -1) {
+                    p = starP;
+                    n = ++starN;
+                } else {
+                    return false;
+                }
+            }
+            while (p < pattern.length() && pattern.charAt(p) == '*') {
+                p++;
+            }
+            return p == pattern.length();
+        }
+
+        /**
+         * Matches a single character against the pattern element at the given index.
+         *
+         * @return the index of the next pattern element, or -1 if not matched.
+         */
+        private int matchOne(char c, int p) {
+            char pc = pattern.charAt(p);
+            switch (pc) {
+                case '*':
+                    return -1;
+                case '?':
+                    return p + 1;
+                case '\\':
+                    return p + 1 < pattern.length() && same(c, pattern.charAt(p + 1)) ? p + 2 : -1;
+                case '[':
+                    return matchClass(c, p);
+                default:
+                    return same(c, pc) ? p + 1 : -1;
+            }
+        }
+
+        private int matchClass(char c, int p) {
+            int i = p + 1;
+            boolean negate = i < pattern.length() && (pattern.charAt(i) == '!' || pattern.charAt(i) == '^');
+            if (negate) {
+                i++;
+            }
+            char lc = ignoreCase ? Character.toLowerCase(c) : c;
+            boolean matched = false;
+            boolean first = true;
+            while (i < pattern.length() && (first || pattern.charAt(i) != ']')) {
+                first = false;
+                char lo = pattern.charAt(i++);
+                char hi = lo;
+                if (i + 1 < pattern.length() && pattern.charAt(i) == '-' && pattern.charAt(i + 1) != ']') {
+                    hi = pattern.charAt(i + 1);
+                    i += 2;
+                }
+                if (lc >= lo && lc <= hi) {
+                    matched = true;
+                }
+            }
+            if (i >= pattern.length()) {
+                // unterminated class - treat "[" as a literal
+                return same(c, '[') ? p + 1 : -1;
+            }
+            return matched != negate ? i + 1 : -1;
+        }
+
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Calls the registered {@link ShutdownListener}s in phases when the app exits.
+ * <p>
+ * The phases run in ascending order. The listeners of the same phase are independent of each other and run in
+ * parallel, each in its own daemon thread. A phase ends when all its listeners return or its timeout elapses,
+ * whichever comes first - a listener still running after the timeout is logged and left behind, so one slow flush or
+ * native disconnect cannot stall the exit. A listener that depends on another one registers in a later phase.
+ * </p>
+ * <p>
+ * The shutdown runs only once, either by calling {@link #shutdown()} or from the JVM shutdown hook installed with
+ * {@link #installShutdownHook()}.
+ * </p>
+ */
+public class ShutdownCoordinator implements ShutdownListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShutdownCoordinator.class);
+
+    /**
+     * Stop accepting new work, e.g. file system watchers and schedulers.
+     */
+    public static final int PHASE_STOP = 100;
+
+    /**
+     * Drain the pending work, e.g. the overlay refresh queue.
+     */
+    public static final int PHASE_DRAIN = 200;
+
+    /**
+     * Write the state to disk, e.g. commit the sync state store and save the hash cache.
+     */
+    public static final int PHASE_PERSIST = 300;
+
+    public static final long DEFAULT_PHASE_TIMEOUT_MILLIS = 5000;
+
+    private final Map<Integer, List<Registration>> phases = new TreeMap<>();
+    private final Map<Integer, Long> timeouts = new TreeMap<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicBoolean hookInstalled = new AtomicBoolean();
+
+    /**
+     * Registers a listener under the name of its class.
+     *
+     * @param listener to call.
+     * @param phase    when to call the listener, e.g. {@link #PHASE_DRAIN}.
+     */
+    public void register(ShutdownListener listener, int phase) {
+        register(listener, phase, listener.getClass().getSimpleName());
+    }
+
+    /**
+     * @param listener to call.
+     * @param phase    when to call the listener, e.g. {@link #PHASE_DRAIN}.
+     * @param name     of the listener in the logs and the thread name.
+     */
+    public synchronized void register(ShutdownListener listener, int phase, String name) {
+        phases.computeIfAbsent(phase, p -> new ArrayList<>()).add(new Registration(listener, name));
+    }
+
+    public synchronized void unregister(ShutdownListener listener) {
+        phases.values().forEach(list -> list.removeIf(r -> r.listener == listener));
+    }
+
+    /**
+     * Sets how long the listeners of the phase may run. The default is {@value #DEFAULT_PHASE_TIMEOUT_MILLIS} ms.
+     *
+     * @param phase         to configure.
+     * @param timeoutMillis maximum duration of the phase.
+     */
+    public synchronized void setPhaseTimeout(int phase, long timeoutMillis) {
+        timeouts.put(phase, timeoutMillis);
+    }
+
+    /**
+     * Installs a JVM shutdown hook that calls {@link #shutdown()}. Installing it more than once has no effect.
+     */
+    public void installShutdownHook() {
+        if (hookInstalled.compareAndSet(false, true)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "Shutdown hook"));
+        }
+    }
+
+    /**
+     * Calls the listeners phase by phase and returns when all phases have ended. Does nothing if the shutdown has
+     * already started.
+     */
+    @Override
+    public void shutdown() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        Map<Integer, List<Registration>> phases = new TreeMap<>();
+        synchronized (this) {
+            this.phases.forEach((phase, list) -> phases.put(phase, new ArrayList<>(list)));
+        }
+        for (Map.Entry<Integer, List<Registration>> phase : phases.entrySet()) {
+            if (!phase.getValue().isEmpty()) {
+                runPhase(phase.getKey(), phase.getValue());
+            }
+        }
+        logger.info("Shutdown completed in {} ms", System.currentTimeMillis() - start);
+    }
+
+    public boolean isShutdown() {
+        return started.get();
+    }
+
+    private void runPhase(int phase, List<Registration> registrations) {
+        long timeout;
+        synchronized (this) {
+            timeout = timeouts.getOrDefault(phase, DEFAULT_PHASE_TIMEOUT_MILLIS);
+        }
+
+        CountDownLatch done = new CountDownLatch(registrations.size());
+        for (Registration registration : registrations) {
+            Thread thread = new Thread(() -> {
+                try {
+                    registration.listener.shutdown();
+                } catch (RuntimeException e) {
+                    logger.error("Shutdown of {} failed", registration.name, e);
+                } finally {
+                    registration.done = true;
+                    done.countDown();
+                }
+            }, "Shutdown " + registration.name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try {
+            if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                for (Registration registration : registrations) {
+                    if (!registration.done) {
+                        logger.warn("Shutdown of {} did not complete in {} ms", registration.name, timeout);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for shutdown phase {}", phase);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Registration {
+
+        private final ShutdownListener listener;
+        private final String name;
+        private volatile boolean done;
+
+        private Registration(ShutdownListener listener, String name) {
+            this.listener = listener;
+            this.name = name;
+        }
+
+    }
+
+}
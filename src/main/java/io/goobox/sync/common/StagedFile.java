@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * New content of a file, written to a hidden temporary file next to it and moved into place when complete.
+ * <p>
+ * The temporary file is named ".~name.random.tmp", which the default {@link ExclusionRules} exclude, so the sync
+ * app and the overlay icons ignore it while it is written. The file is preallocated to the expected size and the
+ * content is copied with {@link FileChannel#transferFrom}, which lets the OS copy without going through heap buffers.
+ * {@link #commit()} forces the content to disk and atomically moves it to the target. If the target changed since
+ * the staging started, the content is moved to a conflicted copy instead.
+ * </p>
+ * <p>
+ * A staged file that is closed without being committed is deleted.
+ * </p>
+ */
+public class StagedFile implements Closeable {
+
+    private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final StagingBatch batch;
+    private final TargetState targetState;
+    private long position;
+    private boolean done;
+
+    /**
+     * Starts staging new content of the given file.
+     *
+     * @param target       the file to replace or create.
+     * @param expectedSize of the content in bytes, or -1 if unknown.
+     * @return the staged file.
+     * @throws IOException if the temporary file cannot be created.
+     */
+    public static StagedFile create(Path target, long expectedSize) throws IOException {
+        return new StagedFile(target, expectedSize, null);
+    }
+
+    StagedFile(Path target, long expectedSize, StagingBatch batch) throws IOException {
+        this.target = target;
+        this.batch = batch;
+        this.targetState = TargetState.of(target);
+
+        String name = String.format(".~%s.%08x.tmp", target.getFileName(), ThreadLocalRandom.current().nextInt());
+        this.temp = target.resolveSibling(name);
+        this.channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            setHidden(temp, true);
+            if (expectedSize > 0) {
+                // Java has no fallocate - extending the file allocates it on NTFS and reserves the size elsewhere
+                channel.write(ByteBuffer.allocate(1), expectedSize - 1);
+            }
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the temporary file, e.g. to exclude it explicitly.
+     */
+    public Path getTempFile() {
+        return temp;
+    }
+
+    /**
+     * Appends the content of the source channel until its end.
+     *
+     * @param source to read from. A {@link FileChannel} is copied by the OS.
+     * @return the number of bytes appended.
+     * @throws IOException if reading or writing fails.
+     */
+    public long transferFrom(ReadableByteChannel source) throws IOException {
+        long start = position;
+        long n;
+        while ((n = channel.transferFrom(source, position, TRANSFER_CHUNK)) > 0) {
+            position += n;
+        }
+        return position - start;
+    }
+
+    /**
+     * Appends the content of the given file.
+     *
+     * @param source the file to copy.
+     * @return the number of bytes appended.
+     * @throws IOException if reading or writing fails.
+     */
+    public long transferFrom(Path source) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            return transferFrom(in);
+        }
+    }
+
+    /**
+     * @return the number of bytes written so far.
+     */
+    public long size() {
+        return position;
+    }
+
+    /**
+     * Forces the content to disk and moves it into place.
+     * <p>
+     * If the target was created, modified or deleted since this staged file was created, the content is moved to a
+     * newly reserved conflicted copy of the target, see {@link Utils#reserveConflictedCopyPath(Path)}. Unless the file
+     * belongs to a {@link StagingBatch}, the directory is forced to disk too, so that the move survives a crash.
+     * </p>
+     *
+     * @return the path the content was moved to: the target or the conflicted copy.
+     * @throws IOException if the content cannot be written or moved. The temporary file is deleted.
+     */
+    public Path commit() throws IOException {
+        if (done) {
+            throw new IllegalStateException("Already committed or closed: " + target);
+        }
+        Path result;
+        try {
+            // drop the unused part of the preallocation
+            if (channel.size() > position) {
+                channel.truncate(position);
+            }
+            channel.force(true);
+            channel.close();
+
+            // a rename keeps the attributes
+            setHidden(temp, false);
+
+            result = targetState.equals(TargetState.of(target)) ? target : Utils.reserveConflictedCopyPath(target);
+            move(temp, result);
+        } catch (IOException | RuntimeException e) {
+            discard();
+            throw e;
+        }
+        done = true;
+
+        if (batch != null) {
+            batch.committed(result.getParent());
+        } else {
+            syncDirectory(result.getParent());
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the temporary file unless committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!done) {
+            discard();
+        }
+    }
+
+    private void discard() throws IOException {
+        done = true;
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Sets the DOS hidden attribute where supported. The exclusion rules hide the temporary file from the sync app
+     * anyway, so file systems without the attribute (e.g. without extended attributes on Linux) are fine.
+     */
+    private static void setHidden(Path path, boolean hidden) {
+        DosFileAttributeView dos = Files.getFileAttributeView(path, DosFileAttributeView.class);
+        if (dos != null) {
+            try {
+                dos.setHidden(hidden);
+            } catch (IOException | UnsupportedOperationException e) {
+                // not supported by the file system
+            }
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Forces the entries of a directory to disk, so that files created or renamed in it survive a crash. Not
+     * supported on Windows, where it does nothing.
+     *
+     * @param dir the directory.
+     */
+    public static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be opened on Windows, NTFS journals the renames anyway
+        }
+    }
+
+    /**
+     * What tells if the target changed: its existence, size, last modified time and file key.
+     */
+    private static final class TargetState {
+
+        private final long size;
+        private final long lastModified;
+        private final Object fileKey;
+
+        private TargetState(long size, long lastModified, Object fileKey) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+        }
+
+        static TargetState of(Path path) throws IOException {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                return new TargetState(attrs.size(), attrs.lastModifiedTime().toMillis(), attrs.fileKey());
+            } catch (NoSuchFileException e) {
+                return new TargetState(-1, 0, null);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TargetState)) {
+                return false;
+            }
+            TargetState other = (TargetState) o;
+            return size == other.size && lastModified == other.lastModified
+                    && Objects.equals(fileKey, other.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, lastModified, fileKey);
+        }
+
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Stages many files and forces their directories to disk once for all of them.
+ * <p>
+ * Files staged with {@link #stage(Path, long)} are committed as usual, but the directory entries of the moves are
+ * forced to disk only on {@link #sync()} or {@link #close()}, once per directory. A crash before that may lose some
+ * of the moves, but never leaves a partially written target.
+ * </p>
+ */
+public class StagingBatch implements Closeable {
+
+    private final Set<Path> dirs = new LinkedHashSet<>();
+
+    /**
+     * Starts staging new content of the given file as part of this batch.
+     *
+     * @param target       the file to replace or create.
+     * @param expectedSize of the content in bytes, or -1 if unknown.
+     * @return the staged file.
+     * @throws IOException if the temporary file cannot be created.
+     * @see StagedFile#create(Path, long)
+     */
+    public StagedFile stage(Path target, long expectedSize) throws IOException {
+        return new StagedFile(target, expectedSize, this);
+    }
+
+    synchronized void committed(Path dir) {
+        dirs.add(dir);
+    }
+
+    /**
+     * Forces the directories of all files committed since the last sync to disk.
+     */
+    public void sync() {
+        Path[] pending;
+        synchronized (this) {
+            pending = dirs.toArray(new Path[0]);
+            dirs.clear();
+        }
+        for (Path dir : pending) {
+            StagedFile.syncDirectory(dir);
+        }
+    }
+
+    @Override
+    public void close() {
+        sync();
+    }
+
+}
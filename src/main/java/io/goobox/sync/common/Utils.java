@@ -17,79 +17,77 @@
 package io.goobox.sync.common;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Arrays;
-import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import org.joda.time.format.ISODateTimeFormat;
 
-import net.harawata.appdirs.AppDirsFactory;
-
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class Utils {
 
     public static final String APP_NAME = "Goobox";
 
-    private static String OS = null;
-
+    /**
+     * @return the user home dir.
+     * @see AppPaths#getHomeDir()
+     */
     public static Path getHomeDir() {
-        String path = System.getProperty("user.home");
-        if (isWindows() && !isPureAscii(path)) {
-            try {
-                path = getMSDOSPath(path);
-            } catch (IOException | InterruptedException e) {
-                throw new IllegalStateException("Cannot determine user home dir", e);
-            }
-        }
-        return Paths.get(path);
+        return AppPaths.getDefault().getHomeDir();
     }
 
+    /**
+     * @return the dir for the app data, e.g. the databases.
+     * @see AppPaths#getDataDir()
+     */
     public static Path getDataDir() {
-        return Paths.get(AppDirsFactory.getInstance().getUserDataDir(APP_NAME, null, ""));
+        return AppPaths.getDefault().getDataDir();
     }
 
-    public static Path getSyncDir() {
-        return Utils.getHomeDir().resolve(APP_NAME);
+    /**
+     * @return the dir for the log files.
+     * @see AppPaths#getLogDir()
+     */
+    public static Path getLogDir() {
+        return AppPaths.getDefault().getLogDir();
     }
 
-    private static String getOsName() {
-        if (OS == null) {
-            OS = System.getProperty("os.name");
-        }
-        return OS;
+    /**
+     * @return the dir synchronized with the cloud.
+     * @see AppPaths#getSyncDir()
+     */
+    public static Path getSyncDir() {
+        return AppPaths.getDefault().getSyncDir();
     }
 
-    private static boolean isWindows() {
-        return getOsName().startsWith("Windows");
-    }
+    private static volatile ExclusionRules exclusionRules = ExclusionRules.getDefault();
 
-    private static boolean isPureAscii(String path) {
-        return StandardCharsets.US_ASCII.newEncoder().canEncode(path);
+    public static ExclusionRules getExclusionRules() {
+        return exclusionRules;
     }
 
-    private static String getMSDOSPath(String path) throws IOException, InterruptedException {
-        Process process = Runtime.getRuntime().exec(
-                "cmd /c for %I in (\"" + path + "\") do @echo %~fsI");
-
-        process.waitFor();
-
-        byte[] data = new byte[65536];
-        int size = process.getInputStream().read(data);
-
-        if (size <= 0)
-            return null;
-
-        return new String(data, 0, size).replaceAll("\\r\\n", "");
+    /**
+     * Replaces the rules used by {@link #isExcluded(Path)}, e.g. with the built-in rules extended with user-supplied
+     * patterns.
+     *
+     * @param rules new exclusion rules.
+     */
+    public static void setExclusionRules(ExclusionRules rules) {
+        exclusionRules = rules;
     }
 
-    private static final List<String> SYSTEM_FILES = Arrays.asList("desktop.ini", "thumbs.db", ".ds_store");
-
     /**
      * Returns true if the given path should be excluded from cloud synchronization.
      * <p>
-     * The following files will be excluded:
+     * The following files are excluded by the default rules:
      * - system files: desktop.ini, thumbs.db, .ds_store
      * - temporary files:
      * -- file its name starts with ~$ or .~,
@@ -98,22 +96,10 @@ public class Utils {
      *
      * @param path to be evaluated.
      * @return true if the given path should be excluded.
+     * @see ExclusionRules
      */
     public static boolean isExcluded(Path path) {
-
-        final String filename = path.getFileName().toString().toLowerCase();
-        for (final String name : SYSTEM_FILES) {
-            if (filename.equals(name)) {
-                return true;
-            }
-        }
-        if (filename.startsWith("~$") || filename.startsWith(".~")) {
-            return true;
-        } else if (filename.startsWith("~") && filename.endsWith(".tmp")) {
-            return true;
-        }
-        return filename.endsWith(" ");
-
+        return exclusionRules.isExcluded(path);
     }
 
     /**
@@ -129,36 +115,143 @@ public class Utils {
      */
     public static Path conflictedCopyPath(Path localPath) {
 
-        String name = localPath.getFileName().toString();
-        String ext = "";
-        final int idx = name.indexOf(".");
-        if (idx != -1) {
-            ext = name.substring(idx);
-            name = name.substring(0, idx);
-        }
-
-        String fileName = String.format(
-                "%s (%s's conflicted copy %s)%s",
-                name,
-                System.getProperty("user.name"),
-                ISODateTimeFormat.date().print(System.currentTimeMillis()),
-                ext);
+        final ConflictedCopyName copyName = new ConflictedCopyName(localPath);
         int c = 0;
 
-        Path candidate = localPath.getParent().resolve(fileName);
+        Path candidate = localPath.getParent().resolve(copyName.get(c));
         while (candidate.toFile().exists()) {
             c++;
-            fileName = String.format(
-                    "%s (%s's conflicted copy %s) %d%s",
-                    name,
-                    System.getProperty("user.name"),
-                    ISODateTimeFormat.date().print(System.currentTimeMillis()),
-                    c,
-                    ext);
-            candidate = localPath.getParent().resolve(fileName);
+            candidate = localPath.getParent().resolve(copyName.get(c));
         }
         return candidate;
 
     }
 
+    /**
+     * Creates an empty file for a conflicted copy of the given local file and returns its path.
+     * <p>
+     * The name follows the pattern of {@link #conflictedCopyPath(Path)}. The file is created atomically, so concurrent
+     * callers, in this or another process, never get the same path.
+     *
+     * @param localPath for which a conflicted copy is going to be created.
+     * @return a path of the newly created empty file.
+     * @throws IOException if the file cannot be created.
+     */
+    public static Path reserveConflictedCopyPath(Path localPath) throws IOException {
+        return reserveConflictedCopyPaths(Collections.singletonList(localPath)).get(localPath);
+    }
+
+    /**
+     * Creates empty files for conflicted copies of the given local files and returns their paths.
+     * <p>
+     * Each parent directory is listed once to find the names already taken, so many conflicts in the same directory
+     * don't probe the file system for every counter. The next free counter is remembered per base name, so many
+     * conflicts of the same file don't try all the counters taken before them again. The files are created
+     * atomically like in {@link #reserveConflictedCopyPath(Path)}. A path given more than once gets a single file. If
+     * a file cannot be created, the files created before it are deleted again.
+     *
+     * @param localPaths for which conflicted copies are going to be created.
+     * @return the path of the newly created empty file for each of the given local files.
+     * @throws IOException if a directory cannot be listed or a file cannot be created.
+     */
+    public static Map<Path, Path> reserveConflictedCopyPaths(Collection<Path> localPaths) throws IOException {
+
+        final Map<Path, Set<String>> takenNames = new HashMap<>();
+        final Map<Path, Map<String, Integer>> nextCounters = new HashMap<>();
+        final Map<Path, Path> result = new LinkedHashMap<>();
+        final String suffix = conflictedCopySuffix();
+
+        try {
+            for (final Path localPath : localPaths) {
+                if (result.containsKey(localPath)) {
+                    continue;
+                }
+                final Path parent = localPath.getParent();
+                Set<String> taken = takenNames.get(parent);
+                if (taken == null) {
+                    taken = listConflictedCopies(parent);
+                    takenNames.put(parent, taken);
+                }
+
+                final ConflictedCopyName copyName = new ConflictedCopyName(localPath, suffix);
+                // the name without counter identifies the base name and extension
+                final String baseName = copyName.get(0);
+                final Map<String, Integer> counters = nextCounters.computeIfAbsent(parent, p -> new HashMap<>());
+                for (int c = counters.getOrDefault(baseName, 0); ; c++) {
+                    final String fileName = copyName.get(c);
+                    if (taken.contains(fileName)) {
+                        continue;
+                    }
+                    taken.add(fileName);
+                    try {
+                        result.put(localPath, Files.createFile(parent.resolve(fileName)));
+                        counters.put(baseName, c + 1);
+                        break;
+                    } catch (FileAlreadyExistsException e) {
+                        // created meanwhile by someone else - try the next counter
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // don't leave the files of the whole batch behind
+            for (final Path reserved : result.values()) {
+                try {
+                    Files.deleteIfExists(reserved);
+                } catch (IOException e2) {
+                    e.addSuppressed(e2);
+                }
+            }
+            throw e;
+        }
+        return result;
+
+    }
+
+    private static Set<String> listConflictedCopies(Path dir) throws IOException {
+        final Set<String> names = new HashSet<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (final Path entry : entries) {
+                final String name = entry.getFileName().toString();
+                if (name.contains("'s conflicted copy ")) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+    private static String conflictedCopySuffix() {
+        return String.format(
+                " (%s's conflicted copy %s)",
+                System.getProperty("user.name"),
+                ISODateTimeFormat.date().print(System.currentTimeMillis()));
+    }
+
+    /**
+     * Name of a conflicted copy split into parts, so that only the counter changes between candidates.
+     */
+    private static class ConflictedCopyName {
+
+        private final String name;
+        private final String suffix;
+        private final String ext;
+
+        ConflictedCopyName(Path localPath) {
+            this(localPath, conflictedCopySuffix());
+        }
+
+        ConflictedCopyName(Path localPath, String suffix) {
+            final String fileName = localPath.getFileName().toString();
+            final int idx = fileName.indexOf(".");
+            this.name = idx == -1 ? fileName : fileName.substring(0, idx);
+            this.ext = idx == -1 ? "" : fileName.substring(idx);
+            this.suffix = suffix;
+        }
+
+        String get(int counter) {
+            return counter == 0 ? name + suffix + ext : name + suffix + " " + counter + ext;
+        }
+
+    }
+
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.db;
+
+import org.dizitart.no2.IndexType;
+import org.dizitart.no2.objects.Id;
+import org.dizitart.no2.objects.Index;
+import org.dizitart.no2.objects.Indices;
+
+import java.io.Serializable;
+
+/**
+ * Persistent record of a file or directory in the {@link SyncStateStore}.
+ * <p>
+ * Paths are stored relative to the sync dir with '/' as separator, so the same database can be used on all platforms
+ * and all entries of a subtree are adjacent in the path index.
+ * </p>
+ */
+@Indices({
+        @Index(value = "parent", type = IndexType.NonUnique),
+        @Index(value = "state", type = IndexType.NonUnique)
+})
+public class SyncFile implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    @Id
+    private String path;
+    private String parent;
+    private SyncState state;
+    private long size;
+    private long lastModified;
+    private String hash;
+
+    /**
+     * Required by Nitrite.
+     */
+    public SyncFile() {
+    }
+
+    public SyncFile(String path, SyncState state, long size, long lastModified, String hash) {
+        this.path = path;
+        this.parent = parentOf(path);
+        this.state = state;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = hash;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getParent() {
+        return parent;
+    }
+
+    public SyncState getState() {
+        return state;
+    }
+
+    public void setState(SyncState state) {
+        this.state = state;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    static String parentOf(String path) {
+        int idx = path.lastIndexOf('/');
+        return idx == -1 ? "" : path.substring(0, idx);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [%s, %d bytes, modified %d, hash %s]", path, state, size, lastModified, hash);
+    }
+
+}
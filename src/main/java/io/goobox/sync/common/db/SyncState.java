@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.db;
+
+import io.goobox.sync.common.overlay.OverlayIcon;
+
+/**
+ * Synchronization state of a file or directory under the sync dir.
+ */
+public enum SyncState {
+
+    SYNCED(OverlayIcon.OK),
+    FOR_UPLOAD(OverlayIcon.SYNCING),
+    UPLOADING(OverlayIcon.SYNCING),
+    FOR_DOWNLOAD(OverlayIcon.SYNCING),
+    DOWNLOADING(OverlayIcon.SYNCING),
+    FOR_LOCAL_DELETE(OverlayIcon.SYNCING),
+    FOR_CLOUD_DELETE(OverlayIcon.SYNCING),
+    CONFLICT(OverlayIcon.WARNING),
+    UPLOAD_FAILED(OverlayIcon.ERROR),
+    DOWNLOAD_FAILED(OverlayIcon.ERROR),
+    IGNORED(OverlayIcon.NONE);
+
+    private OverlayIcon icon;
+
+    private SyncState(OverlayIcon icon) {
+        this.icon = icon;
+    }
+
+    public OverlayIcon overlayIcon() {
+        return icon;
+    }
+
+}
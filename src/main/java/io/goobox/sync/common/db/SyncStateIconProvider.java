@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.db;
+
+import io.goobox.sync.common.overlay.OverlayIcon;
+import io.goobox.sync.common.overlay.OverlayIconProvider;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Overlay icon provider backed by a {@link SyncStateStore}.
+ */
+public class SyncStateIconProvider implements OverlayIconProvider {
+
+    private final SyncStateStore store;
+
+    public SyncStateIconProvider(SyncStateStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public OverlayIcon getIcon(Path path) {
+        if (store.getSyncDir().equals(path)) {
+            return OverlayIcon.NONE;
+        }
+        return iconOf(store.get(path));
+    }
+
+    /**
+     * Fetches the records of all children of every parent directory with a single query on the parent index.
+     */
+    @Override
+    public Map<Path, OverlayIcon> getIcons(Collection<Path> paths) {
+        Map<Path, Map<String, SyncFile>> dirs = new HashMap<>();
+        Map<Path, OverlayIcon> icons = new LinkedHashMap<>();
+        for (Path path : paths) {
+            Path parent = path.getParent();
+            if (store.getSyncDir().equals(path) || parent == null) {
+                icons.put(path, OverlayIcon.NONE);
+                continue;
+            }
+            Map<String, SyncFile> children = dirs.computeIfAbsent(parent, dir -> {
+                Map<String, SyncFile> files = new HashMap<>();
+                for (SyncFile file : store.getChildren(dir)) {
+                    files.put(file.getPath(), file);
+                }
+                return files;
+            });
+            icons.put(path, iconOf(children.get(store.key(path))));
+        }
+        return icons;
+    }
+
+    @Override
+    public OverlayIcon getMaxIcon(Path path) {
+        OverlayIcon max = getIcon(path);
+        for (SyncFile file : store.getSubtree(path)) {
+            OverlayIcon icon = iconOf(file);
+            if (icon.id() > max.id()) {
+                max = icon;
+            }
+        }
+        return max;
+    }
+
+    private static OverlayIcon iconOf(SyncFile file) {
+        return file == null ? OverlayIcon.NONE : file.getState().overlayIcon();
+    }
+
+}
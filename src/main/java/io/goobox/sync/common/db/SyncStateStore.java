@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.db;
+
+import io.goobox.sync.common.Utils;
+import org.dizitart.no2.Nitrite;
+import org.dizitart.no2.objects.ObjectFilter;
+import org.dizitart.no2.objects.ObjectRepository;
+import org.dizitart.no2.objects.filters.ObjectFilters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent store of the synchronization state of the files under the sync dir.
+ * <p>
+ * The store is backed by a Nitrite database with indexes on the path, the parent directory and the state of the
+ * files. Auto-commit is disabled: every write method commits its changes at once, so a batch written with
+ * {@link #putAll(Collection)} or {@link #removeAll(Collection)} costs a single commit. Nitrite cannot roll back, so if
+ * a write of a batch fails, the records it touched are restored from copies read with a single query before the batch,
+ * and the batch is not committed.
+ * </p>
+ */
+public class SyncStateStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SyncStateStore.class);
+
+    public static final String DB_FILE_NAME = "sync.db";
+
+    private final Path syncDir;
+    private final Nitrite db;
+    private final ObjectRepository<SyncFile> repo;
+
+    /**
+     * Opens the store of the default sync dir in the app data dir.
+     *
+     * @return the opened store.
+     * @throws IOException if the data dir cannot be created.
+     */
+    public static SyncStateStore open() throws IOException {
+        return new SyncStateStore(Utils.getSyncDir(), Utils.getDataDir().resolve(DB_FILE_NAME));
+    }
+
+    public SyncStateStore(Path syncDir, Path dbFile) throws IOException {
+        this.syncDir = syncDir;
+
+        Files.createDirectories(dbFile.getParent());
+        this.db = Nitrite.builder()
+                .compressed()
+                .disableAutoCommit()
+                .filePath(dbFile.toFile())
+                .openOrCreate();
+        this.repo = db.getRepository(SyncFile.class);
+        logger.debug("Opened sync state store {}", dbFile);
+    }
+
+    public Path getSyncDir() {
+        return syncDir;
+    }
+
+    /**
+     * Creates a record for the given path. The record is not stored until passed to {@link #putAll(Collection)}.
+     *
+     * @param path         under the sync dir.
+     * @param state        synchronization state.
+     * @param size         file size in bytes.
+     * @param lastModified last modified time in milliseconds.
+     * @param hash         content hash, or null if not known.
+     * @return the new record.
+     */
+    public SyncFile newFile(Path path, SyncState state, long size, long lastModified, String hash) {
+        return new SyncFile(key(path), state, size, lastModified, hash);
+    }
+
+    public Path toPath(SyncFile file) {
+        return syncDir.resolve(file.getPath().replace('/', File.separatorChar));
+    }
+
+    public SyncFile get(Path path) {
+        return repo.find(ObjectFilters.eq("path", key(path))).firstOrDefault();
+    }
+
+    public void put(Path path, SyncState state, long size, long lastModified, String hash) {
+        putAll(Collections.singletonList(newFile(path, state, size, lastModified, hash)));
+    }
+
+    /**
+     * Inserts or replaces the given records with a single commit.
+     *
+     * @param files records to store.
+     */
+    public synchronized void putAll(Collection<SyncFile> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        // the records to restore if the batch fails, read in one query
+        Map<String, SyncFile> previous = new HashMap<>();
+        for (SyncFile file : files) {
+            previous.put(file.getPath(), null);
+        }
+        for (SyncFile file : repo.find(ObjectFilters.in("path", previous.keySet().toArray())).toList()) {
+            previous.put(file.getPath(), file);
+        }
+        try {
+            for (SyncFile file : files) {
+                repo.update(ObjectFilters.eq("path", file.getPath()), file, true);
+            }
+        } catch (RuntimeException e) {
+            restore(previous);
+            throw e;
+        }
+        db.commit();
+    }
+
+    public void setState(Path path, SyncState state) {
+        SyncFile file = get(path);
+        if (file == null) {
+            throw new IllegalArgumentException("Unknown path: " + path);
+        }
+        file.setState(state);
+        putAll(Collections.singletonList(file));
+    }
+
+    /**
+     * Removes the given path together with all its descendants.
+     *
+     * @param path under the sync dir.
+     */
+    public void remove(Path path) {
+        removeAll(Collections.singletonList(path));
+    }
+
+    /**
+     * Removes the given paths together with all their descendants with a single commit.
+     *
+     * @param paths under the sync dir.
+     */
+    public synchronized void removeAll(Collection<Path> paths) {
+        Map<String, SyncFile> previous = new HashMap<>();
+        try {
+            for (Path path : paths) {
+                String key = key(path);
+                ObjectFilter filter = ObjectFilters.or(ObjectFilters.eq("path", key), subtreeFilter(key));
+                for (SyncFile file : repo.find(filter).toList()) {
+                    previous.putIfAbsent(file.getPath(), file);
+                }
+                repo.remove(filter);
+            }
+        } catch (RuntimeException e) {
+            restore(previous);
+            throw e;
+        }
+        db.commit();
+    }
+
+    /**
+     * Returns the records of the direct children of the given directory. Uses the parent index.
+     *
+     * @param dir under the sync dir, or the sync dir itself.
+     * @return the records of the children.
+     */
+    public List<SyncFile> getChildren(Path dir) {
+        return repo.find(ObjectFilters.eq("parent", key(dir))).toList();
+    }
+
+    /**
+     * Returns the records of all descendants of the given directory. Uses a range scan on the path index.
+     *
+     * @param dir under the sync dir, or the sync dir itself.
+     * @return the records of the descendants.
+     */
+    public List<SyncFile> getSubtree(Path dir) {
+        String key = key(dir);
+        return key.isEmpty() ? repo.find().toList() : repo.find(subtreeFilter(key)).toList();
+    }
+
+    /**
+     * Returns the records in the given state. Uses the state index.
+     *
+     * @param state to look for.
+     * @return the records in the state.
+     */
+    public List<SyncFile> getByState(SyncState state) {
+        return repo.find(ObjectFilters.eq("state", state.name())).toList();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!db.isClosed()) {
+            db.commit();
+            db.close();
+        }
+    }
+
+    /**
+     * Undoes the writes of a failed batch, so that the next commit does not store a part of it.
+     *
+     * @param previous the records before the batch by path, null for the ones that did not exist.
+     */
+    private void restore(Map<String, SyncFile> previous) {
+        for (Map.Entry<String, SyncFile> entry : previous.entrySet()) {
+            try {
+                if (entry.getValue() == null) {
+                    repo.remove(ObjectFilters.eq("path", entry.getKey()));
+                } else {
+                    repo.update(ObjectFilters.eq("path", entry.getKey()), entry.getValue(), true);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Cannot restore {} after a failed batch", entry.getKey(), e);
+            }
+        }
+    }
+
+    String key(Path path) {
+        if (!path.startsWith(syncDir)) {
+            throw new IllegalArgumentException("Path is outside of the sync dir: " + path);
+        }
+        return syncDir.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Matches all keys starting with "key/" - '0' is the character right after '/'.
+     */
+    private static ObjectFilter subtreeFilter(String key) {
+        return ObjectFilters.and(
+                ObjectFilters.gte("path", key + '/'),
+                ObjectFilters.lt("path", key + '0'));
+    }
+
+}
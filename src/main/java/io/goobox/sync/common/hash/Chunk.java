@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.hash;
+
+/**
+ * A content-defined chunk of a file.
+ */
+public final class Chunk {
+
+    private final long offset;
+    private final int length;
+    private final String hash;
+
+    public Chunk(long offset, int length, String hash) {
+        this.offset = offset;
+        this.length = length;
+        this.hash = hash;
+    }
+
+    /**
+     * @return the position of the first byte of the chunk in the file.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the hash of the content of the chunk as a lower-case hex string.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Chunk)) {
+            return false;
+        }
+        Chunk other = (Chunk) o;
+        return offset == other.offset && length == other.length && hash.equals(other.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(offset) + hash.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return hash + "@" + offset + "+" + length;
+    }
+
+}
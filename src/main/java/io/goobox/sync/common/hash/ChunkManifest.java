@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.hash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The chunks of a file produced by a {@link Chunker}, in the order of their offsets.
+ */
+public final class ChunkManifest {
+
+    private final List<Chunk> chunks;
+    private final long size;
+
+    public ChunkManifest(List<Chunk> chunks) {
+        this.chunks = Collections.unmodifiableList(new ArrayList<>(chunks));
+        this.size = chunks.isEmpty() ? 0 : chunks.get(chunks.size() - 1).getOffset()
+                + chunks.get(chunks.size() - 1).getLength();
+    }
+
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return the size of the file in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the byte ranges of this file whose content is not available in any chunk of the previous version,
+     * i.e. the data that has to be uploaded. Adjacent ranges are merged. A chunk that moved to another offset, e.g.
+     * after an insertion before it, is not reported.
+     *
+     * @param previous manifest of the previous version of the file, or of any file sharing content with it.
+     * @return the changed ranges in the order of their offsets.
+     */
+    public List<Range> diff(ChunkManifest previous) {
+        Set<String> known = new HashSet<>(previous.chunks.size() * 2);
+        for (Chunk chunk : previous.chunks) {
+            known.add(chunk.getHash());
+        }
+
+        List<Range> ranges = new ArrayList<>();
+        long start = -1;
+        long end = -1;
+        for (Chunk chunk : chunks) {
+            if (known.contains(chunk.getHash())) {
+                continue;
+            }
+            if (chunk.getOffset() != end) {
+                if (start >= 0) {
+                    ranges.add(new Range(start, end - start));
+                }
+                start = chunk.getOffset();
+            }
+            end = chunk.getOffset() + chunk.getLength();
+        }
+        if (start >= 0) {
+            ranges.add(new Range(start, end - start));
+        }
+        return ranges;
+    }
+
+    /**
+     * A range of bytes in a file.
+     */
+    public static final class Range {
+
+        private final long offset;
+        private final long length;
+
+        public Range(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Range)) {
+                return false;
+            }
+            Range other = (Range) o;
+            return offset == other.offset && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(offset) + Long.hashCode(length);
+        }
+
+        @Override
+        public String toString() {
+            return offset + "+" + length;
+        }
+
+    }
+
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.hash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Splits files into content-defined chunks with the FastCDC algorithm.
+ * <p>
+ * A boundary is placed where the gear rolling hash of the last 64 bytes matches a mask, so an insertion or deletion
+ * moves only the boundaries around it and the other chunks keep their content and hash. The first
+ * {@code minSize} bytes of every chunk are not examined. Below the average size a mask with more bits is used and
+ * above it one with fewer bits, which narrows the distribution of the chunk sizes. No chunk is larger than
+ * {@code maxSize}.
+ * </p>
+ * <p>
+ * The content is streamed through a buffer taken from a small pool of the instance and the hash of each chunk is
+ * computed in the same pass, so memory use does not depend on the file size. At most one idle buffer per processor
+ * is kept, so threads that stopped chunking do not hold on to theirs. Instances are thread-safe.
+ * </p>
+ */
+public class Chunker {
+
+    private static final Logger logger = LoggerFactory.getLogger(Chunker.class);
+
+    public static final int DEFAULT_MIN_SIZE = 16 * 1024;
+    public static final int DEFAULT_AVG_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_SIZE = 256 * 1024;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Random values of the bytes in the rolling hash. Generated from a fixed seed, changing it moves all boundaries.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x476f6f626f78L;
+        for (int i = 0; i < GEAR.length; i++) {
+            // SplitMix64
+            long z = (seed += 0x9e3779b97f4a7c15L);
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final String algorithm;
+    private final long maskSmall;
+    private final long maskLarge;
+    private final BlockingQueue<byte[]> buffers =
+            new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+
+    public Chunker() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, DEFAULT_MAX_SIZE, ContentHasher.DEFAULT_ALGORITHM);
+    }
+
+    /**
+     * @param minSize   minimum chunk size in bytes.
+     * @param avgSize   expected chunk size in bytes, a power of two.
+     * @param maxSize   maximum chunk size in bytes.
+     * @param algorithm name of the {@link MessageDigest} algorithm of the chunk hashes.
+     */
+    public Chunker(int minSize, int avgSize, int maxSize, String algorithm) {
+        if (Integer.bitCount(avgSize) != 1 || avgSize < 64) {
+            throw new IllegalArgumentException("avgSize must be a power of two of at least 64: " + avgSize);
+        }
+        if (minSize < 0 || minSize > avgSize || maxSize < avgSize) {
+            throw new IllegalArgumentException(
+                    "Expected minSize <= avgSize <= maxSize: " + minSize + ", " + avgSize + ", " + maxSize);
+        }
+        newDigest(algorithm);
+
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        this.algorithm = algorithm;
+
+        // the high bits of the gear hash depend on the last 64 bytes
+        int bits = Integer.numberOfTrailingZeros(avgSize);
+        this.maskSmall = -1L << (64 - Math.min(bits + 2, 63));
+        this.maskLarge = -1L << (64 - Math.max(bits - 2, 1));
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public ChunkManifest chunk(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return chunk(channel);
+        }
+    }
+
+    /**
+     * Reads the stream to the end. The stream is not closed.
+     *
+     * @param in content to split.
+     * @return the chunks of the content.
+     * @throws IOException if the stream cannot be read.
+     */
+    public ChunkManifest chunk(InputStream in) throws IOException {
+        return chunk(Channels.newChannel(in));
+    }
+
+    /**
+     * Reads the channel to the end. The channel is not closed.
+     *
+     * @param channel content to split.
+     * @return the chunks of the content.
+     * @throws IOException if the channel cannot be read.
+     */
+    public ChunkManifest chunk(ReadableByteChannel channel) throws IOException {
+        byte[] buf = buffers.poll();
+        if (buf == null) {
+            buf = new byte[BUFFER_SIZE];
+        }
+        try {
+            return chunk(channel, buf);
+        } finally {
+            // dropped if enough are idle already
+            buffers.offer(buf);
+        }
+    }
+
+    /**
+     * @return the number of buffers kept for the next calls.
+     */
+    int getIdleBuffers() {
+        return buffers.size();
+    }
+
+    private ChunkManifest chunk(ReadableByteChannel channel, byte[] buf) throws IOException {
+        MessageDigest digest = newDigest(algorithm);
+        List<Chunk> chunks = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(buf);
+
+        long chunkOffset = 0;
+        int length = 0;
+        long fp = 0;
+        int n;
+        while ((n = readFully(channel, buffer)) > 0) {
+            int segment = 0;
+            int i = 0;
+            while (i < n) {
+                if (length < minSize) {
+                    int skip = Math.min(minSize - length, n - i);
+                    length += skip;
+                    i += skip;
+                    continue;
+                }
+
+                // the small mask up to the average size, the large mask up to the maximum size
+                int start = i;
+                int end = i + Math.min(n - i, maxSize - length);
+                int avgEnd = i + Math.min(end - i, Math.max(avgSize - length, 0));
+                int cut = -1;
+                for (; i < avgEnd; i++) {
+                    fp = (fp << 1) + GEAR[buf[i] & 0xff];
+                    if ((fp & maskSmall) == 0) {
+                        cut = i + 1;
+                        break;
+                    }
+                }
+                if (cut < 0) {
+                    for (; i < end; i++) {
+                        fp = (fp << 1) + GEAR[buf[i] & 0xff];
+                        if ((fp & maskLarge) == 0) {
+                            cut = i + 1;
+                            break;
+                        }
+                    }
+                }
+                if (cut < 0) {
+                    length += end - start;
+                    i = end;
+                    if (length < maxSize) {
+                        // continue with the next buffer
+                        break;
+                    }
+                } else {
+                    length += cut - start;
+                    i = cut;
+                }
+
+                digest.update(buf, segment, i - segment);
+                chunks.add(new Chunk(chunkOffset, length, ContentHasher.toHex(digest.digest())));
+                chunkOffset += length;
+                length = 0;
+                fp = 0;
+                segment = i;
+            }
+            digest.update(buf, segment, n - segment);
+        }
+        if (length > 0) {
+            chunks.add(new Chunk(chunkOffset, length, ContentHasher.toHex(digest.digest())));
+        }
+        return new ChunkManifest(chunks);
+    }
+
+    /**
+     * Splits the given files in parallel.
+     *
+     * @param paths    of regular files.
+     * @param executor runs one task per file. Its number of threads bounds the concurrent reads.
+     * @return the chunks of each file in the iteration order of the given collection. Files that cannot be read are
+     * logged and left out.
+     */
+    public Map<Path, ChunkManifest> chunkAll(Collection<Path> paths, Executor executor) {
+        List<CompletableFuture<ChunkManifest>> futures = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return chunk(path);
+                } catch (IOException e) {
+                    logger.warn("Cannot chunk {}: {}", path, e.getMessage());
+                    return null;
+                }
+            }, executor));
+        }
+
+        Map<Path, ChunkManifest> manifests = new LinkedHashMap<>();
+        int i = 0;
+        for (Path path : paths) {
+            ChunkManifest manifest = futures.get(i++).join();
+            if (manifest != null) {
+                manifests.put(path, manifest);
+            }
+        }
+        return manifests;
+    }
+
+    private static int readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown hash algorithm: " + algorithm, e);
+        }
+    }
+
+}
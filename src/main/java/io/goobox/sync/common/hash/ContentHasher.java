@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.hash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the content hashes of files.
+ * <p>
+ * Files are read through a {@link FileChannel} into a direct buffer, so the content is copied once from the OS into
+ * native memory and digested from there. The files are deliberately not memory-mapped: a mapped file cannot be
+ * deleted or renamed on Windows until the mapping is garbage collected, which would break the synchronization of
+ * files that are hashed while being edited.
+ * </p>
+ * <p>
+ * Independent files are hashed in parallel by a fixed number of daemon threads. The hasher owns one buffer per
+ * concurrent read, allocated on first use, and every read - also by {@link #hash(Path)} in the calling thread -
+ * waits for a free buffer, which bounds both the concurrent reads and the native memory. Hashes are looked up in the
+ * {@link HashCache} first and files with unchanged size and last modified time are not read at all.
+ * </p>
+ */
+public class ContentHasher implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentHasher.class);
+
+    public static final String DEFAULT_ALGORITHM = "SHA-256";
+    public static final int DEFAULT_CONCURRENCY = 2;
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Files modified within this window before hashing are not cached, because they could be modified again without
+     * changing the last modified time on file systems with a coarse timestamp resolution.
+     */
+    static final long RACY_MILLIS = 2000;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final HashCache cache;
+    private final String algorithm;
+    private final ExecutorService executor;
+    private final int concurrency;
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final AtomicInteger allocatedBuffers = new AtomicInteger();
+
+    /**
+     * Creates a hasher with the default concurrency using the algorithm of the given cache.
+     *
+     * @param cache of the hashes, or null to hash the files every time.
+     */
+    public ContentHasher(HashCache cache) {
+        this(cache, cache == null ? DEFAULT_ALGORITHM : cache.getAlgorithm(), DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * @param cache       of the hashes, or null to hash the files every time.
+     * @param algorithm   name of the {@link MessageDigest} algorithm. Must match the algorithm of the cache.
+     * @param concurrency maximum number of files read at the same time.
+     */
+    public ContentHasher(HashCache cache, String algorithm, int concurrency) {
+        if (cache != null && !cache.getAlgorithm().equals(algorithm)) {
+            throw new IllegalArgumentException("The cache is for " + cache.getAlgorithm() + ", not " + algorithm);
+        }
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+        }
+        newDigest(algorithm);
+
+        this.cache = cache;
+        this.algorithm = algorithm;
+        this.concurrency = concurrency;
+        this.buffers = new ArrayBlockingQueue<>(concurrency);
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread thread = new Thread(r, "Hash files " + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns the hash of the given file, reading it only if the cached hash is outdated. Runs in the calling thread,
+     * but waits while the maximum number of files is read.
+     *
+     * @param path of a regular file.
+     * @return the hash as a lower-case hex string.
+     * @throws IOException if the file cannot be read.
+     */
+    public String hash(Path path) throws IOException {
+        BasicFileAttributes before = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        long size = before.size();
+        long lastModified = before.lastModifiedTime().toMillis();
+        if (cache != null) {
+            String hash = cache.get(path, size, lastModified);
+            if (hash != null) {
+                return hash;
+            }
+        }
+
+        String hash = digest(path);
+
+        if (cache != null) {
+            BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (after.size() == size && after.lastModifiedTime().toMillis() == lastModified
+                    && System.currentTimeMillis() - lastModified > RACY_MILLIS) {
+                cache.put(path, size, lastModified, hash);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the hash of the given file, or null if it cannot be read. Suitable as the hasher of a
+     * {@link io.goobox.sync.common.scan.SnapshotDiff}.
+     *
+     * @param path of a regular file.
+     * @return the hash, or null.
+     */
+    public String hashOrNull(Path path) {
+        try {
+            return hash(path);
+        } catch (IOException e) {
+            logger.warn("Cannot hash {}: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Hashes the given files in parallel.
+     *
+     * @param paths of regular files.
+     * @return the hash of each file in the iteration order of the given collection. Files that cannot be read are
+     * logged and left out.
+     */
+    public Map<Path, String> hashAll(Collection<Path> paths) {
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<String>> futures = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            futures.add(CompletableFuture.supplyAsync(() -> hashOrNull(path), executor));
+        }
+
+        Map<Path, String> hashes = new LinkedHashMap<>();
+        int i = 0;
+        for (Path path : paths) {
+            String hash = futures.get(i++).join();
+            if (hash != null) {
+                hashes.put(path, hash);
+            }
+        }
+        logger.debug("Hashed {} files in {} ms", hashes.size(), System.currentTimeMillis() - start);
+        return hashes;
+    }
+
+    /**
+     * Stops the hashing threads and drops the idle buffers. The cache is not closed.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        buffers.clear();
+    }
+
+    private String digest(Path path) throws IOException {
+        MessageDigest digest = newDigest(algorithm);
+        ByteBuffer buffer = takeBuffer();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            buffers.offer(buffer);
+        }
+        return toHex(digest.digest());
+    }
+
+    int getAllocatedBuffers() {
+        return allocatedBuffers.get();
+    }
+
+    /**
+     * Takes a free buffer, allocating it if fewer than the concurrency were allocated so far, or waits for one.
+     */
+    private ByteBuffer takeBuffer() throws IOException {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        int allocated;
+        while ((allocated = allocatedBuffers.get()) < concurrency) {
+            if (allocatedBuffers.compareAndSet(allocated, allocated + 1)) {
+                return ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+        }
+        try {
+            return buffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a read buffer");
+        }
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown hash algorithm: " + algorithm, e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.hash;
+
+import io.goobox.sync.common.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of content hashes keyed by path, size and last modified time.
+ * <p>
+ * The entries are kept in memory and written to a single file with {@link #save()}. The file is replaced atomically,
+ * so a crash leaves either the old or the new content. A cache file that cannot be read, or was written for another
+ * hash algorithm, is discarded and the files are hashed again.
+ * </p>
+ */
+public class HashCache implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(HashCache.class);
+
+    public static final String FILE_NAME = "hashes.bin";
+
+    private static final int MAGIC = 0x47424843; // "GBHC"
+    private static final int VERSION = 1;
+
+    private final Path file;
+    private final String algorithm;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    /**
+     * Opens the cache of the given algorithm in the app data dir.
+     *
+     * @param algorithm name of the hash algorithm, e.g. {@link ContentHasher#DEFAULT_ALGORITHM}.
+     * @return the loaded cache.
+     */
+    public static HashCache open(String algorithm) {
+        return new HashCache(Utils.getDataDir().resolve(FILE_NAME), algorithm);
+    }
+
+    public HashCache(Path file, String algorithm) {
+        this.file = file;
+        this.algorithm = algorithm;
+        load();
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns the cached hash of the given file if its size and last modified time did not change since hashed.
+     *
+     * @param path         of the file.
+     * @param size         current size in bytes.
+     * @param lastModified current last modified time in milliseconds.
+     * @return the hash, or null if not cached or outdated.
+     */
+    public String get(Path path, long size, long lastModified) {
+        Entry entry = entries.get(path.toString());
+        if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+            return null;
+        }
+        return entry.hash;
+    }
+
+    public void put(Path path, long size, long lastModified, String hash) {
+        entries.put(path.toString(), new Entry(size, lastModified, hash));
+        dirty = true;
+    }
+
+    public void remove(Path path) {
+        if (entries.remove(path.toString()) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Removes the entries of the given directory and all its descendants.
+     *
+     * @param dir to remove.
+     */
+    public void removeAll(Path dir) {
+        String key = dir.toString();
+        String prefix = key + File.separator;
+        if (entries.keySet().removeIf(k -> k.equals(key) || k.startsWith(prefix))) {
+            dirty = true;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the entries to the cache file if anything changed since the last save.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+
+        long start = System.currentTimeMillis();
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(algorithm);
+            // the map may change while writing, so the count is not written upfront
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.writeBoolean(true);
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().lastModified);
+                out.writeUTF(e.getValue().hash);
+            }
+            out.writeBoolean(false);
+            out.flush();
+            // on disk before it replaces the previous file
+            channel.force(true);
+        } catch (IOException e) {
+            dirty = true;
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Saved {} hashes to {} in {} ms", entries.size(), file, System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        save();
+    }
+
+    private void load() {
+        long start = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warn("Ignoring hash cache {} of unknown format", file);
+                return;
+            }
+            if (!algorithm.equals(in.readUTF())) {
+                logger.info("Ignoring hash cache {} of another algorithm", file);
+                return;
+            }
+            while (in.readBoolean()) {
+                String key = in.readUTF();
+                entries.put(key, new Entry(in.readLong(), in.readLong(), in.readUTF()));
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable hash cache {}: {}", file, e.getMessage());
+            entries.clear();
+            return;
+        }
+        logger.debug("Loaded {} hashes from {} in {} ms", entries.size(), file, System.currentTimeMillis() - start);
+    }
+
+    private static final class Entry {
+
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        private Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+    }
+
+}
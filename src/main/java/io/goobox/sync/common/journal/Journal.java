@@ -0,0 +1,522 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.journal;
+
+import io.goobox.sync.common.StagedFile;
+import io.goobox.sync.common.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe, append-only journal of the pending sync operations.
+ * <p>
+ * {@link #begin(Operation)} records an operation and {@link #finish(long)} records that it is done. The returned
+ * futures complete when the record is on disk. A single writer thread appends the records and forces them to disk
+ * with group commit: all records queued while a force is running are written and forced together by the next one,
+ * so under load many operations share a single fsync.
+ * </p>
+ * <p>
+ * Every record carries a CRC32 checksum. When the journal is opened, the records are replayed and only the
+ * unfinished operations are kept. A torn record at the end of the last segment, left by a crash, is cut off. A batch
+ * that fails to be written is cut off right away, so that it does not hide the records written after it.
+ * </p>
+ * <p>
+ * The journal is split into segment files. When the current segment exceeds the segment size, a new one is started
+ * with the pending operations only and the older segments are deleted, so the journal and the recovery time grow
+ * with the pending work and not with the number of operations done. Every segment starts with the next operation ID,
+ * so that IDs are not reused even if no operation was pending.
+ * </p>
+ */
+public class Journal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Journal.class);
+
+    public static final String DIR_NAME = "journal";
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final byte BEGIN = 1;
+    private static final byte FINISH = 2;
+    private static final byte NEXT_ID = 3;
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_RECORD = 1024 * 1024;
+    private static final Operation.Kind[] KINDS = Operation.Kind.values();
+
+    private final Path dir;
+    private final long segmentSize;
+    private final NavigableMap<Long, Operation> pending = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final LongAdder commits = new LongAdder();
+    private final Thread writer;
+
+    private long segment;
+    private FileChannel channel;
+    private boolean torn = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Opens the journal in the app data dir.
+     *
+     * @return the opened journal with the operations not finished before.
+     * @throws IOException if the journal cannot be read or created.
+     */
+    public static Journal open() throws IOException {
+        return new Journal(Utils.getDataDir().resolve(DIR_NAME), DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the journal in the given directory and replays it.
+     *
+     * @param dir         of the segment files, created if missing.
+     * @param segmentSize in bytes, after which a new segment with the pending operations is started.
+     * @throws IOException if the journal cannot be read or created.
+     */
+    public Journal(Path dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        recover();
+
+        writer = new Thread(this::writeLoop, "Journal writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records the start of an operation.
+     *
+     * @param operation to record.
+     * @return a future completed with the ID of the operation when the record is on disk.
+     */
+    public CompletableFuture<Long> begin(Operation operation) {
+        long id = nextId.getAndIncrement();
+        return enqueue(new Write(id, operation, beginPayload(id, operation))).thenApply(v -> id);
+    }
+
+    /**
+     * Records that an operation is done. It is not replayed after a restart anymore.
+     *
+     * @param id returned by {@link #begin(Operation)} or a key of {@link #getPending()}.
+     * @return a future completed when the record is on disk.
+     */
+    public CompletableFuture<Void> finish(long id) {
+        ByteBuffer bytes = ByteBuffer.allocate(9);
+        bytes.put(FINISH).putLong(id);
+        return enqueue(new Write(id, null, bytes.array()));
+    }
+
+    /**
+     * Returns the operations begun but not finished, including those recovered from the previous run.
+     *
+     * @return the operations by ID, in the order they were begun.
+     */
+    public Map<Long, Operation> getPending() {
+        return Collections.unmodifiableMap(pending);
+    }
+
+    /**
+     * @return the number of forces to disk so far.
+     */
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    /**
+     * Writes the queued records and closes the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.add(Write.CLOSE);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+
+        // queued by racing callers after the writer stopped
+        Write write;
+        while ((write = queue.poll()) != null) {
+            write.future.completeExceptionally(new IOException("Journal is closed"));
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(Write write) {
+        if (closed) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Journal is closed"));
+            return failed;
+        }
+        queue.add(write);
+        return write.future;
+    }
+
+    private void writeLoop() {
+        List<Write> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            // everything queued during the previous force goes into this one
+            queue.drainTo(batch);
+            running = !batch.remove(Write.CLOSE);
+
+            try {
+                commit(batch);
+                for (Write write : batch) {
+                    write.future.complete(null);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.error("Failed writing the journal", e);
+                for (Write write : batch) {
+                    write.future.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+
+            // the batch is durable already - a failed compaction is retried after the next one
+            try {
+                if (channel.size() > segmentSize) {
+                    rotate();
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.error("Failed compacting the journal", e);
+            }
+        }
+    }
+
+    private void commit(List<Write> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (torn) {
+            // the partial batch of a failed commit could not be cut off - leave it behind in the old segment
+            rotate();
+            torn = false;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = record(batch.get(i).bytes);
+        }
+        long size = channel.size();
+        try {
+            writeFully(channel, buffers);
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            // a torn record would stop the replay before the records acknowledged after it
+            try {
+                channel.truncate(size);
+            } catch (IOException | RuntimeException e2) {
+                e.addSuppressed(e2);
+                torn = true;
+            }
+            throw e;
+        }
+        commits.increment();
+
+        // only what is on disk, so that a later rotation does not write operations that were never begun
+        for (Write write : batch) {
+            if (write.operation != null) {
+                pending.put(write.id, write.operation);
+            } else {
+                pending.remove(write.id);
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment with the pending operations and deletes the older segments.
+     */
+    private void rotate() throws IOException {
+        long start = System.currentTimeMillis();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (Map.Entry<Long, Operation> e : pending.entrySet()) {
+            buffers.add(record(beginPayload(e.getKey(), e.getValue())));
+        }
+        FileChannel oldChannel = channel;
+        channel = createSegment(segment + 1, buffers);
+        segment++;
+        oldChannel.close();
+
+        // the new segment is complete on disk, the old ones are not needed anymore
+        for (long s : listSegments()) {
+            if (s < segment) {
+                Files.deleteIfExists(segmentFile(s));
+            }
+        }
+        StagedFile.syncDirectory(dir);
+        logger.debug("Compacted the journal to {} pending operations in {} ms", pending.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Creates a segment starting with the next operation ID and the given records, and forces it and its directory
+     * entry to disk. A partially created segment is deleted.
+     */
+    private FileChannel createSegment(long s, List<ByteBuffer> records) throws IOException {
+        Path file = segmentFile(s);
+        Files.deleteIfExists(file);
+        FileChannel created = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        try {
+            ByteBuffer head = ByteBuffer.allocate(9);
+            head.put(NEXT_ID).putLong(nextId.get());
+            List<ByteBuffer> buffers = new ArrayList<>(records.size() + 1);
+            buffers.add(record(head.array()));
+            buffers.addAll(records);
+            writeFully(created, buffers.toArray(new ByteBuffer[0]));
+            created.force(true);
+            StagedFile.syncDirectory(dir);
+        } catch (IOException | RuntimeException e) {
+            created.close();
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return created;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    private static byte[] beginPayload(long id, Operation operation) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(BEGIN);
+            out.writeLong(id);
+            out.writeByte(operation.getKind().ordinal());
+            out.writeUTF(operation.getPath().toString());
+            writeOptional(out, operation.getTarget() != null ? operation.getTarget().toString() : null);
+            writeOptional(out, operation.getData());
+        } catch (IOException e) {
+            // not thrown by a byte array
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Record: length of the payload (int), CRC32 of the payload (int), payload.
+     */
+    private static ByteBuffer record(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        List<Long> segments = listSegments();
+        long maxId = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            maxId = Math.max(maxId, replay(segments.get(i), i == segments.size() - 1));
+        }
+        nextId.set(maxId + 1);
+        if (segments.isEmpty()) {
+            segment = 1;
+            channel = createSegment(segment, Collections.emptyList());
+        } else {
+            openSegment(segments.get(segments.size() - 1));
+        }
+        logger.debug("Recovered {} pending operations from {} journal segments in {} ms", pending.size(),
+                segments.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Replays the records of a segment.
+     *
+     * @param last whether a torn record at the end is cut off.
+     * @return the highest operation ID found or used before.
+     */
+    private long replay(long s, boolean last) throws IOException {
+        Path file = segmentFile(s);
+        long maxId = 0;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            while (position < size) {
+                header.clear();
+                if (readFully(in, header, position) < RECORD_HEADER) {
+                    break;
+                }
+                int length = header.getInt(0);
+                if (length <= 0 || length > MAX_RECORD || position + RECORD_HEADER + length > size) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(in, payload, position + RECORD_HEADER);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array(), 0, length);
+                if ((int) crc.getValue() != header.getInt(4)) {
+                    break;
+                }
+                maxId = Math.max(maxId, apply(payload.array()));
+                position += RECORD_HEADER + length;
+            }
+            if (position < size) {
+                if (last) {
+                    logger.info("Cutting off {} bytes of an incomplete record in {}", size - position, file);
+                    in.truncate(position);
+                    in.force(true);
+                } else {
+                    logger.warn("Ignoring {} bytes of a corrupted record in {}", size - position, file);
+                }
+            }
+        }
+        return maxId;
+    }
+
+    private long apply(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        long id = in.readLong();
+        if (type == BEGIN) {
+            int kind = in.readByte();
+            if (kind < 0 || kind >= KINDS.length) {
+                logger.warn("Ignoring operation {} of unknown kind {}", id, kind);
+                return id;
+            }
+            Path path = Paths.get(in.readUTF());
+            String target = readOptional(in);
+            String data = readOptional(in);
+            pending.put(id, new Operation(KINDS[kind], path, target != null ? Paths.get(target) : null, data));
+        } else if (type == FINISH) {
+            pending.remove(id);
+        } else if (type == NEXT_ID) {
+            return id - 1;
+        }
+        return id;
+    }
+
+    private static int readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = in.read(buffer, position + total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private void openSegment(long s) throws IOException {
+        segment = s;
+        channel = FileChannel.open(segmentFile(s), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unknown journal file {}", file);
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Path segmentFile(long s) {
+        return dir.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, s, SEGMENT_SUFFIX));
+    }
+
+    private static final class Write {
+
+        static final Write CLOSE = new Write(0, null, new byte[0]);
+
+        final long id;
+        final Operation operation;
+        final byte[] bytes;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        /**
+         * @param operation of a begin record, or null for a finish record.
+         */
+        Write(long id, Operation operation, byte[] bytes) {
+            this.id = id;
+            this.operation = operation;
+            this.bytes = bytes;
+        }
+
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.journal;
+
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * A sync operation recorded in the {@link Journal} until it is finished.
+ */
+public final class Operation {
+
+    public enum Kind {
+        UPLOAD,
+        DOWNLOAD,
+        DELETE_LOCAL,
+        DELETE_REMOTE,
+        RENAME,
+        RESOLVE_CONFLICT
+    }
+
+    private final Kind kind;
+    private final Path path;
+    private final Path target;
+    private final String data;
+
+    public Operation(Kind kind, Path path) {
+        this(kind, path, null, null);
+    }
+
+    /**
+     * @param kind   of the operation.
+     * @param path   the operation works on.
+     * @param target of a rename or of the conflicted copy, or null.
+     * @param data   app specific details, e.g. the ID of the remote file, or null.
+     */
+    public Operation(Kind kind, Path path, Path target, String data) {
+        this.kind = Objects.requireNonNull(kind);
+        this.path = Objects.requireNonNull(path);
+        this.target = target;
+        this.data = data;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Operation)) {
+            return false;
+        }
+        Operation other = (Operation) o;
+        return kind == other.kind && path.equals(other.path) && Objects.equals(target, other.target)
+                && Objects.equals(data, other.data);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, path, target, data);
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + path + (target != null ? " -> " + target : "");
+    }
+
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.OutputStreamAppender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appender passing the events to the attached appenders in batches on a single worker thread.
+ * <p>
+ * The events are queued in a bounded buffer. When its remaining capacity drops below the discarding threshold, the
+ * events at or below the discard level (DEBUG by default) are dropped, so a burst of per-file debug logging cannot
+ * slow down the app. If the buffer is full, the caller waits, or drops the event if {@code neverBlock} is set. The
+ * number of dropped events is logged as a warning once the pressure is over.
+ * </p>
+ * <p>
+ * The worker takes up to {@code maxBatchSize} events at a time and flushes the attached {@link OutputStreamAppender}s
+ * after each batch instead of after each event, so they should be configured with {@code immediateFlush} set to
+ * false.
+ * </p>
+ */
+public class AsyncBatchingAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+        implements AppenderAttachable<ILoggingEvent> {
+
+    public static final int DEFAULT_QUEUE_SIZE = 8192;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 512;
+    public static final int DEFAULT_MAX_FLUSH_TIME = 1000;
+
+    private final AppenderAttachableImpl<ILoggingEvent> appenders = new AppenderAttachableImpl<>();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private int discardingThreshold = -1;
+    private Level discardLevel = Level.DEBUG;
+    private boolean neverBlock = false;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private int maxFlushTime = DEFAULT_MAX_FLUSH_TIME;
+    private boolean includeCallerData = false;
+
+    private BlockingQueue<ILoggingEvent> queue;
+    private Thread worker;
+
+    @Override
+    public void start() {
+        if (isStarted()) {
+            return;
+        }
+        if (!appenders.iteratorForAppenders().hasNext()) {
+            addError("No appender attached to " + getName());
+            return;
+        }
+        if (queueSize < 1 || maxBatchSize < 1) {
+            addError("Invalid queueSize " + queueSize + " or maxBatchSize " + maxBatchSize);
+            return;
+        }
+        if (discardingThreshold < 0) {
+            discardingThreshold = queueSize / 5;
+        }
+
+        queue = new ArrayBlockingQueue<>(queueSize);
+        worker = new Thread(this::work, "AsyncBatchingAppender-" + getName());
+        worker.setDaemon(true);
+        super.start();
+        worker.start();
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+        super.stop();
+
+        // let the worker drain the queue
+        worker.interrupt();
+        try {
+            worker.join(maxFlushTime);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (worker.isAlive()) {
+            addWarn("Dropped " + queue.size() + " events not flushed within " + maxFlushTime + " ms");
+        }
+        appenders.detachAndStopAllAppenders();
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        if (queue.remainingCapacity() < discardingThreshold && event.getLevel().toInt() <= discardLevel.toInt()) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        // the worker runs later, so resolve everything that depends on the calling thread now
+        event.prepareForDeferredProcessing();
+        if (includeCallerData) {
+            event.getCallerData();
+        }
+
+        if (neverBlock) {
+            if (!queue.offer(event)) {
+                dropped.incrementAndGet();
+            }
+            return;
+        }
+        try {
+            queue.put(event);
+        } catch (InterruptedException e) {
+            dropped.incrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work() {
+        List<ILoggingEvent> batch = new ArrayList<>(maxBatchSize);
+        while (isStarted()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, maxBatchSize - 1);
+            appendBatch(batch);
+        }
+
+        // stopped - flush what is left
+        while (queue.drainTo(batch, maxBatchSize) > 0) {
+            appendBatch(batch);
+        }
+    }
+
+    private void appendBatch(List<ILoggingEvent> batch) {
+        for (ILoggingEvent event : batch) {
+            appenders.appendLoopOnAppenders(event);
+        }
+        batch.clear();
+
+        long count = dropped.get();
+        if (count > 0 && queue.remainingCapacity() >= discardingThreshold && dropped.compareAndSet(count, 0)) {
+            reportDropped(count);
+        }
+        flush();
+    }
+
+    private void reportDropped(long count) {
+        Logger logger = ((LoggerContext) getContext()).getLogger(AsyncBatchingAppender.class);
+        appenders.appendLoopOnAppenders(new LoggingEvent(AsyncBatchingAppender.class.getName(), logger, Level.WARN,
+                "Dropped {} log events under load", null, new Object[]{count}));
+    }
+
+    private void flush() {
+        Iterator<Appender<ILoggingEvent>> it = appenders.iteratorForAppenders();
+        while (it.hasNext()) {
+            Appender<ILoggingEvent> appender = it.next();
+            if (appender instanceof OutputStreamAppender) {
+                OutputStream out = ((OutputStreamAppender<ILoggingEvent>) appender).getOutputStream();
+                if (out != null) {
+                    try {
+                        out.flush();
+                    } catch (IOException e) {
+                        addError("Cannot flush " + appender.getName(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of events dropped since the last report.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public int getDiscardingThreshold() {
+        return discardingThreshold;
+    }
+
+    /**
+     * @param discardingThreshold remaining capacity below which the events at or below the discard level are dropped.
+     *                            20% of the queue size by default, 0 to never drop them.
+     */
+    public void setDiscardingThreshold(int discardingThreshold) {
+        this.discardingThreshold = discardingThreshold;
+    }
+
+    public String getDiscardLevel() {
+        return discardLevel.toString();
+    }
+
+    public void setDiscardLevel(String discardLevel) {
+        this.discardLevel = Level.toLevel(discardLevel, Level.DEBUG);
+    }
+
+    public boolean isNeverBlock() {
+        return neverBlock;
+    }
+
+    public void setNeverBlock(boolean neverBlock) {
+        this.neverBlock = neverBlock;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int getMaxFlushTime() {
+        return maxFlushTime;
+    }
+
+    public void setMaxFlushTime(int maxFlushTime) {
+        this.maxFlushTime = maxFlushTime;
+    }
+
+    public boolean isIncludeCallerData() {
+        return includeCallerData;
+    }
+
+    public void setIncludeCallerData(boolean includeCallerData) {
+        this.includeCallerData = includeCallerData;
+    }
+
+    @Override
+    public void addAppender(Appender<ILoggingEvent> appender) {
+        appenders.addAppender(appender);
+    }
+
+    @Override
+    public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+        return appenders.iteratorForAppenders();
+    }
+
+    @Override
+    public Appender<ILoggingEvent> getAppender(String name) {
+        return appenders.getAppender(name);
+    }
+
+    @Override
+    public boolean isAttached(Appender<ILoggingEvent> appender) {
+        return appenders.isAttached(appender);
+    }
+
+    @Override
+    public void detachAndStopAllAppenders() {
+        appenders.detachAndStopAllAppenders();
+    }
+
+    @Override
+    public boolean detachAppender(Appender<ILoggingEvent> appender) {
+        return appenders.detachAppender(appender);
+    }
+
+    @Override
+    public boolean detachAppender(String name) {
+        return appenders.detachAppender(name);
+    }
+
+}
@@ -17,8 +17,8 @@
 package io.goobox.sync.common.logback;
 
 import ch.qos.logback.core.PropertyDefinerBase;
+import io.goobox.sync.common.AppPaths;
 import io.goobox.sync.common.Utils;
-import net.harawata.appdirs.AppDirsFactory;
 
 /**
  * Property definer for the log directory Logback property.
@@ -29,19 +29,21 @@ public class LogDirPropertyDefiner extends PropertyDefinerBase {
      * Returns the path to the log directory.
      * 
      * <p>
-     * This method uses the {@link AppDirsFactory} class which also uses SLF4J for
+     * The path is resolved by {@link AppPaths} and can be overridden with the
+     * {@value AppPaths#LOG_DIR_PROPERTY} system property. The default uses the
+     * {@link net.harawata.appdirs.AppDirsFactory} class which also uses SLF4J for
      * logging. The logging framework is not initialized yet, so SLF4J will print an
      * error in the console: "A number (1) of logging calls during the
      * initialization phase have been intercepted and are now being replayed.". The
      * message is harmless and there is no way to suppress it if we want to use the
-     * {@link AppDirsFactory} class.
+     * {@link net.harawata.appdirs.AppDirsFactory} class.
      * </p>
      * 
      * @return path to the log directory
      */
     @Override
     public String getPropertyValue() {
-        return AppDirsFactory.getInstance().getUserLogDir(Utils.APP_NAME, null, "");
+        return Utils.getLogDir().toString();
     }
 
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.logback;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wrapper of a logger for events that may occur for every file, e.g. files that cannot be read during a scan.
+ * <p>
+ * At most {@code maxEvents} messages are logged per interval and the rest are counted. The first message logged
+ * after suppressed ones reports their number. The level is checked before anything else, so a disabled level costs
+ * next to nothing.
+ * </p>
+ */
+public class RateLimitedLogger {
+
+    private static final String SUPPRESSED = " ({} similar messages suppressed)";
+
+    private final Logger logger;
+    private final int maxEvents;
+    private final long intervalNanos;
+
+    private final AtomicLong intervalStart = new AtomicLong(System.nanoTime());
+    private final AtomicInteger events = new AtomicInteger();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * @param logger    to log to.
+     * @param maxEvents maximum number of messages per interval.
+     * @param interval  length of the interval.
+     * @param unit      unit of the interval.
+     */
+    public RateLimitedLogger(Logger logger, int maxEvents, long interval, TimeUnit unit) {
+        this.logger = logger;
+        this.maxEvents = maxEvents;
+        this.intervalNanos = unit.toNanos(interval);
+    }
+
+    public void debug(String format, Object... args) {
+        if (logger.isDebugEnabled() && acquire()) {
+            long count = suppressed.getAndSet(0);
+            if (count == 0) {
+                logger.debug(format, args);
+            } else {
+                logger.debug(format + SUPPRESSED, append(args, count));
+            }
+        }
+    }
+
+    public void info(String format, Object... args) {
+        if (logger.isInfoEnabled() && acquire()) {
+            long count = suppressed.getAndSet(0);
+            if (count == 0) {
+                logger.info(format, args);
+            } else {
+                logger.info(format + SUPPRESSED, append(args, count));
+            }
+        }
+    }
+
+    public void warn(String format, Object... args) {
+        if (logger.isWarnEnabled() && acquire()) {
+            long count = suppressed.getAndSet(0);
+            if (count == 0) {
+                logger.warn(format, args);
+            } else {
+                logger.warn(format + SUPPRESSED, append(args, count));
+            }
+        }
+    }
+
+    /**
+     * @return the number of messages suppressed since the last logged one.
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    private boolean acquire() {
+        long now = System.nanoTime();
+        long start = intervalStart.get();
+        if (now - start >= intervalNanos && intervalStart.compareAndSet(start, now)) {
+            events.set(0);
+        }
+        if (events.incrementAndGet() <= maxEvents) {
+            return true;
+        }
+        suppressed.incrementAndGet();
+        return false;
+    }
+
+    /*
+     * Adds the count for the suffix placeholder. A trailing exception stays last, so that it is still logged with
+     * its stack trace.
+     */
+    private static Object[] append(Object[] args, long count) {
+        int n = args.length > 0 && args[args.length - 1] instanceof Throwable ? args.length - 1 : args.length;
+        Object[] result = new Object[args.length + 1];
+        System.arraycopy(args, 0, result, 0, n);
+        result[n] = count;
+        System.arraycopy(args, n, result, n + 1, args.length - n);
+        return result;
+    }
+
+}
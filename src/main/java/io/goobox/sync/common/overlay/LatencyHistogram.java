@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram with power-of-two buckets. Recording a value costs two atomic increments, so it can stay enabled
+ * in production. Percentiles are accurate to a factor of two, which is enough to tell a slow path from a fast one.
+ */
+public class LatencyHistogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final LongAdder sum = new LongAdder();
+    private volatile long max;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value) - (value == 0 ? 0 : 1));
+        sum.add(value);
+        if (value > max) {
+            // racy, but a lost update only happens when another thread records a similar maximum
+            max = value;
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    public long getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : sum.sum() / count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the upper bound of the bucket containing the given percentile, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, max);
+            }
+        }
+        return max;
+    }
+
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        sum.reset();
+        max = 0;
+    }
+
+}
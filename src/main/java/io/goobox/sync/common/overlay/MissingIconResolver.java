@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+/**
+ * Looks up the icons of paths missing in the overlay state index on a separate executor, so that the native callback
+ * never waits for the provider.
+ * <p>
+ * Lookups of the same path are not queued twice and at most {@code maxPending} lookups wait or run at the same time.
+ * Further misses are dropped - the native side asks again on its next repaint.
+ * </p>
+ */
+class MissingIconResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(MissingIconResolver.class);
+
+    private final OverlayIconProvider iconProvider;
+    private final BiConsumer<Path, OverlayIcon> onResolved;
+    private final Executor executor;
+    private final Semaphore permits;
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+
+    MissingIconResolver(OverlayIconProvider iconProvider, BiConsumer<Path, OverlayIcon> onResolved,
+                        Executor executor, int maxPending) {
+        this.iconProvider = iconProvider;
+        this.onResolved = onResolved;
+        this.executor = executor;
+        this.permits = new Semaphore(maxPending);
+    }
+
+    /**
+     * Schedules a lookup of the given path unless one is already pending or the limit is reached.
+     */
+    void resolve(Path path) {
+        if (!pending.add(path)) {
+            return;
+        }
+        if (!permits.tryAcquire()) {
+            pending.remove(path);
+            return;
+        }
+        try {
+            executor.execute(() -> lookup(path));
+        } catch (RejectedExecutionException e) {
+            done(path);
+        }
+    }
+
+    int getPending() {
+        return pending.size();
+    }
+
+    private void lookup(Path path) {
+        try {
+            onResolved.accept(path, iconProvider.getIcon(path));
+        } catch (RuntimeException e) {
+            logger.error("Failed resolving the overlay icon of {}", path, e);
+        } finally {
+            done(path);
+        }
+    }
+
+    private void done(Path path) {
+        pending.remove(path);
+        permits.release();
+    }
+
+}
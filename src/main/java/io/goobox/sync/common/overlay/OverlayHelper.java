@@ -25,222 +25,800 @@ import com.liferay.nativity.modules.fileicon.FileIconControl;
 import com.liferay.nativity.modules.fileicon.FileIconControlCallback;
 import com.liferay.nativity.modules.fileicon.FileIconControlUtil;
 import com.liferay.nativity.util.OSDetector;
+import io.goobox.sync.common.ShutdownListener;
+import io.goobox.sync.common.watch.Change;
+import io.goobox.sync.common.watch.ChangeListener;
+import io.goobox.sync.common.watch.DirectoryWatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.DosFileAttributeView;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.stream.Stream;
-
-public class OverlayHelper implements FileIconControlCallback, ContextMenuControlCallback {
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Overlay icons of one or more sync dirs.
+ * <p>
+ * All sync dirs share a single connection to the native service, one refresh queue and thread, and one executor
+ * for the lookups of missing icons, so a further sync dir costs only its overlay state index. The native callbacks
+ * are routed to the sync dir containing the path, and each sync dir has its own {@link OverlayIconProvider} and
+ * global state icon.
+ * </p>
+ */
+public class OverlayHelper implements FileIconControlCallback, ContextMenuControlCallback, ChangeListener,
+        ShutdownListener {
 
     private static final Logger logger = LoggerFactory.getLogger(OverlayHelper.class);
 
-    private Path syncDir;
-    private OverlayIconProvider iconProvider;
+    public static final int DEFAULT_LOOKUP_THREADS = 2;
+    public static final int DEFAULT_MAX_PENDING_LOOKUPS = 1000;
+    public static final long SHUTDOWN_DRAIN_MILLIS = 2000;
+
+    /* sorted by descending path length, so that the innermost of nested sync dirs is found first */
+    private volatile Root[] roots = new Root[0];
 
     private NativityControl nativityControl;
-    private FileIconControl fileIconControl;
-    private BlockingQueue<String[]> queue = new LinkedBlockingDeque<>();
+    private BiFunction<NativityControl, FileIconControlCallback, FileIconControl> fileIconControlFactory;
+    private StartupTimeouts timeouts;
+    private volatile FileIconControl fileIconControl;
+    private RefreshQueue queue;
+    private OverlayMetrics metrics;
+    private volatile MissingIconResolver missingIcons;
+    private ExecutorService defaultLookupExecutor;
+    private volatile Thread refreshThread;
+
+    private ScheduledThreadPoolExecutor initExecutor;
+    private CompletableFuture<Void> extensionStarted = new CompletableFuture<>();
+    private CompletableFuture<Void> ready = new CompletableFuture<>();
+    private long initStart;
+
+    private volatile boolean shutdown = false;
 
-    private int globalStateIconId = OverlayIcon.NONE.id();
+    public OverlayHelper(Path syncDir, OverlayIconProvider syncStateProvider) {
+        this(defaultNativityControl(), FileIconControlUtil::getFileIconControl, StartupTimeouts.DEFAULT);
+        addRoot(syncDir, syncStateProvider);
+        start();
+    }
 
-    private boolean shutdown = false;
+    /**
+     * Creates a helper without sync dirs. They are added with {@link #addRoot(Path, OverlayIconProvider)}.
+     */
+    public OverlayHelper() {
+        this(defaultNativityControl(), FileIconControlUtil::getFileIconControl, StartupTimeouts.DEFAULT);
+        start();
+    }
 
-    public OverlayHelper(Path syncDir, OverlayIconProvider syncStateProvider) {
-        this.syncDir = syncDir;
-        this.iconProvider = syncStateProvider;
+    /**
+     * Allows tests to replace the native service, e.g. to measure the startup on Linux.
+     *
+     * @param nativityControl        connection to the native service, or null if overlay icons are not supported.
+     * @param fileIconControlFactory creates the file icon control of the connection.
+     * @param timeouts               of the startup steps.
+     */
+    OverlayHelper(Path syncDir, OverlayIconProvider syncStateProvider, NativityControl nativityControl,
+                  BiFunction<NativityControl, FileIconControlCallback, FileIconControl> fileIconControlFactory,
+                  StartupTimeouts timeouts) {
+        this(nativityControl, fileIconControlFactory, timeouts);
+        addRoot(syncDir, syncStateProvider);
+        start();
+    }
 
-        if (!OSDetector.isWindows() && !OSDetector.isApple()) {
+    private OverlayHelper(NativityControl nativityControl,
+                          BiFunction<NativityControl, FileIconControlCallback, FileIconControl> fileIconControlFactory,
+                          StartupTimeouts timeouts) {
+        this.queue = new RefreshQueue(RefreshQueue.DEFAULT_CAPACITY, RefreshQueue.DEFAULT_DEBOUNCE_MILLIS);
+        this.metrics = new OverlayMetrics(queue::size, this::indexedFiles);
+        this.nativityControl = nativityControl;
+        this.fileIconControlFactory = fileIconControlFactory;
+        this.timeouts = timeouts;
+
+        if (nativityControl == null) {
+            ready.cancel(false);
             return;
         }
 
-        nativityControl = NativityControlUtil.getNativityControl();
+        defaultLookupExecutor = newLookupExecutor(DEFAULT_LOOKUP_THREADS);
+        setLookupExecutor(defaultLookupExecutor, DEFAULT_MAX_PENDING_LOOKUPS);
 
-        if (nativityControl != null) {
-            new Thread(this::init).start();
+        initExecutor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "Init overlay icons");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // drop the pending timeouts on shutdown
+        initExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    private static NativityControl defaultNativityControl() {
+        return OSDetector.isWindows() || OSDetector.isApple() ? NativityControlUtil.getNativityControl() : null;
+    }
+
+    /*
+     * Connects after the indexes of the initial sync dirs are built, as they are queued first.
+     */
+    private void start() {
+        if (initExecutor != null) {
+            initStart = System.currentTimeMillis();
+            execute(() -> connect(0));
         }
     }
 
-    private void init() {
-        Thread.currentThread().setName("Init overlay icons");
+    /**
+     * Adds a sync dir. Its overlay state index is built in the background, and its icons are refreshed once built.
+     * Adding a sync dir again replaces its icon provider.
+     *
+     * @param syncDir      root of the synced files.
+     * @param iconProvider provides the overlay icons of the files under the sync dir.
+     * @return a future completed when the index is built, or cancelled if overlay icons are not supported or the
+     * sync dir is removed before.
+     */
+    public CompletableFuture<Void> addRoot(Path syncDir, OverlayIconProvider iconProvider) {
+        return addRoot(syncDir, iconProvider, null);
+    }
 
+    /**
+     * Adds a sync dir with its overlay states kept in a memory-mapped {@link OverlayStateFile}, e.g. at
+     * {@link OverlayStateFile#defaultFile(Path)}. The states of the previous run are loaded from the file before the
+     * index is built, so the icons are right from the start.
+     *
+     * @param syncDir      root of the synced files.
+     * @param iconProvider provides the overlay icons of the files under the sync dir.
+     * @param stateFile    the state file, or null to keep the states only in memory.
+     * @return a future completed when the index is built, or cancelled if overlay icons are not supported or the
+     * sync dir is removed before.
+     */
+    public CompletableFuture<Void> addRoot(Path syncDir, OverlayIconProvider iconProvider, Path stateFile) {
+        Root root = new Root(syncDir, iconProvider, stateFile);
+        Root replaced = null;
         synchronized (this) {
-            while (!shutdown) {
-                if (nativityControl.connect()) {
-                    // successfully connected - exit the loop
-                    logger.debug("Successfully connected to native service.");
-                    break;
+            List<Root> updated = new ArrayList<>();
+            for (Root r : roots) {
+                if (r.syncDir.equals(syncDir)) {
+                    replaced = r;
+                } else {
+                    updated.add(r);
                 }
+            }
+            updated.add(root);
+            updated.sort((a, b) -> b.name.length() - a.name.length());
+            roots = updated.toArray(new Root[0]);
+        }
+        queue.addSyncDir(syncDir);
+
+        if (nativityControl == null) {
+            root.indexed.cancel(false);
+            return root.indexed;
+        }
+        // the first sync dir names the metrics
+        metrics.register(syncDir);
+        if (replaced != null) {
+            Root r = replaced;
+            execute(() -> closeStateFile(r));
+        }
+        execute(() -> buildIndex(root));
+        return root.indexed;
+    }
 
-                // Connection failed. Most probably the port has not been released yet from a
-                // previous run of the app. Retry in 30 seconds.
-                logger.debug("Connection to native service failed. Retry in 30 seconds.");
+    /**
+     * Removes a sync dir. The native service is asked to refresh it, so that its icons disappear.
+     *
+     * @param syncDir added with {@link #addRoot(Path, OverlayIconProvider)}.
+     */
+    public void removeRoot(Path syncDir) {
+        Root removed = null;
+        synchronized (this) {
+            List<Root> updated = new ArrayList<>();
+            for (Root r : roots) {
+                if (r.syncDir.equals(syncDir)) {
+                    removed = r;
+                } else {
+                    updated.add(r);
+                }
+            }
+            if (removed == null) {
+                return;
+            }
+            roots = updated.toArray(new Root[0]);
+        }
+
+        if (nativityControl == null) {
+            queue.removeSyncDir(syncDir);
+            return;
+        }
+        if (fileIconControl != null) {
+            queue.addRoot(syncDir);
+        }
+        queue.removeSyncDir(syncDir);
+        Root r = removed;
+        execute(() -> {
+            closeStateFile(r);
+            updateFilterFolders();
+        });
+    }
+
+    /**
+     * @return the sync dirs.
+     */
+    public List<Path> getRoots() {
+        List<Path> result = new ArrayList<>();
+        for (Root root : roots) {
+            result.add(root.syncDir);
+        }
+        return result;
+    }
+
+    /**
+     * Sets the executor looking up the icons of paths missing in the overlay state index. The native callbacks are
+     * always answered from the index - a missing path gets {@link OverlayIcon#NONE} and is refreshed once its icon is
+     * known. The default is a pool of {@value #DEFAULT_LOOKUP_THREADS} threads, which is shut down when replaced.
+     *
+     * @param executor    runs the lookups, e.g. {@link #newVirtualThreadLookupExecutor()}.
+     * @param maxPending  maximum number of lookups waiting or running at the same time. Further misses are dropped
+     *                    until some of the lookups finish.
+     */
+    public void setLookupExecutor(Executor executor, int maxPending) {
+        missingIcons = new MissingIconResolver(this::lookupIcon, this::iconResolved, executor, maxPending);
+        if (defaultLookupExecutor != null && executor != defaultLookupExecutor) {
+            defaultLookupExecutor.shutdown();
+            defaultLookupExecutor = null;
+        }
+    }
+
+    /**
+     * Creates a pool of daemon threads for the lookups of missing icons.
+     *
+     * @param threads number of threads.
+     * @return the new executor.
+     */
+    public static ExecutorService newLookupExecutor(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "Overlay icon lookup " + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per lookup if the JVM supports them, or a pool of
+     * {@value #DEFAULT_LOOKUP_THREADS} daemon threads otherwise. The number of concurrent lookups is limited by the
+     * {@code maxPending} argument of {@link #setLookupExecutor(Executor, int)}.
+     *
+     * @return the new executor.
+     */
+    public static ExecutorService newVirtualThreadLookupExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.debug("Virtual threads are not available");
+            return newLookupExecutor(DEFAULT_LOOKUP_THREADS);
+        }
+    }
+
+    private OverlayIcon lookupIcon(Path path) {
+        Root root = findRoot(path);
+        return root == null ? OverlayIcon.NONE : root.iconProvider.getIcon(path);
+    }
+
+    private void iconResolved(Path path, OverlayIcon icon) {
+        Root root = findRoot(path);
+        if (root == null) {
+            // removed meanwhile
+            return;
+        }
+        // NONE is stored too, so that the path is not looked up again on every repaint
+        root.stateIndex.update(path, icon);
+        if (icon != OverlayIcon.NONE && fileIconControl != null) {
+            queue.add(path);
+        }
+    }
+
+    /**
+     * Returns a future completed when the overlay icons are registered and the native service starts receiving
+     * refreshes. The future is cancelled if overlay icons are not supported or the helper is shut down before.
+     *
+     * @return the readiness handle.
+     */
+    public CompletableFuture<Void> ready() {
+        return ready;
+    }
+
+    /*
+     * The startup runs as a chain of steps on the init executor, so no thread sleeps while waiting for the native
+     * service. The executor stays for building the indexes of the sync dirs added later.
+     */
+
+    private void buildIndex(Root root) {
+        if (shutdown || findRoot(root.syncDir) != root) {
+            // removed or replaced meanwhile
+            root.indexed.cancel(false);
+            return;
+        }
+
+        // Build the index of overlay states once - later changes are applied incrementally by refresh(Path)
+        long start = System.currentTimeMillis();
+        if (root.stateFilePath != null) {
+            try {
+                // the loaded states are served while the index is rebuilt
+                root.stateFile = OverlayStateFile.open(root.stateFilePath, root.stateIndex);
+            } catch (IOException e) {
+                logger.warn("Cannot open overlay state file {}: {}", root.stateFilePath, e.getMessage());
+            } catch (RuntimeException e) {
+                // corrupt content, e.g. a garbage name - the rebuild below drops whatever was loaded from it
+                logger.warn("Discarding corrupt overlay state file {}", root.stateFilePath, e);
                 try {
-                    wait(30000);
-                } catch (InterruptedException e) {
-                    logger.debug("init interrupted", e);
-                    return;
+                    Files.deleteIfExists(root.stateFilePath);
+                    root.stateFile = OverlayStateFile.open(root.stateFilePath, root.stateIndex);
+                } catch (IOException | RuntimeException e2) {
+                    logger.warn("Cannot recreate overlay state file {}: {}", root.stateFilePath, e2.getMessage());
                 }
             }
+            if (shutdown) {
+                closeStateFile(root);
+                return;
+            }
+        }
+        root.stateIndex.rebuild(root.iconProvider);
+        metrics.recordIndexRebuild(System.currentTimeMillis() - start);
+
+        if (refreshThread != null) {
+            // added after the initialization
+            updateFilterFolders();
+            queue.addRoot(root.syncDir);
         }
+        root.indexed.complete(null);
+    }
 
+    private void connect(int attempt) {
         if (shutdown) {
             return;
         }
 
+        if (!nativityControl.connect()) {
+            // Connection failed. Most probably the port has not been released yet from a previous run of the app.
+            long delay = timeouts.retryDelay(attempt);
+            logger.debug("Connection to native service failed. Retry in {} ms.", delay);
+            metrics.recordConnectRetry(attempt + 1);
+            schedule(() -> connect(attempt + 1), delay);
+            return;
+        }
+        logger.debug("Successfully connected to native service.");
+
         // Make Goobox a system folder
         if (OSDetector.isWindows()) {
-            DosFileAttributeView attr = Files.getFileAttributeView(syncDir, DosFileAttributeView.class);
-            try {
-                attr.setSystem(true);
-            } catch (IOException e) {
-                logger.error("Cannot set system folder", e);
+            for (Root root : roots) {
+                DosFileAttributeView attr = Files.getFileAttributeView(root.syncDir, DosFileAttributeView.class);
+                try {
+                    attr.setSystem(true);
+                } catch (IOException e) {
+                    logger.error("Cannot set system folder", e);
+                }
             }
         }
 
-        fileIconControl = FileIconControlUtil.getFileIconControl(nativityControl, this);
+        fileIconControl = fileIconControlFactory.apply(nativityControl, this);
         fileIconControl.enableFileIcons();
 
-        // Register icons
         if (OSDetector.isApple() || OSDetector.isLinux()) {
-
             // The above `enableFileIcons` method returns immediately but it needs more time to initialize
-            // FinderSyncExtension.
-            try {
-                Thread.sleep(10000);
-            } catch (InterruptedException e) {
-                logger.warn("Interrupted while registering overlay icons: {}", e.getMessage());
-            }
-
-            final Path resourceDir = Paths.get(System.getProperty("goobox.resource", "."));
-            for (OverlayIcon state : OverlayIcon.values()) {
-
-                if (state == OverlayIcon.NONE) {
-                    continue;
-                }
-
-                final Path icon = resourceDir.resolve(String.format("overlay_%s.icns", state.name())).toAbsolutePath();
-                if (Files.exists(icon)) {
-                    logger.debug("Register {} with ID {} ({})", icon, String.valueOf(state.id()), state);
-                    fileIconControl.registerIconWithId(
-                            icon.toAbsolutePath().toString(), state.name(), String.valueOf(state.id()));
-                    // registerIconWithId needs to wait some seconds so that the FinderSyncExtension reads the previous
-                    // message and doesn't drop new one.
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        logger.warn("Interrupted while registering overlay icons: {}", e.getMessage());
-                    }
-                } else {
-                    logger.warn("Cannot find overlay icon {} for ID {} ({})", icon, String.valueOf(state.id()), state);
-                }
+            // FinderSyncExtension. The first icon request tells it is running - wait for it, but not forever.
+            // The extension asks only for paths in the filter folders, so they must be set before the wait.
+            updateFilterFolders();
+            schedule(() -> extensionStarted.complete(null), timeouts.extensionStartMillis);
+            extensionStarted.thenRunAsync(() -> {
+                logger.debug("Extension started after {} ms", System.currentTimeMillis() - initStart);
+                registerIcons(registeredIcons(), 0);
+            }, initExecutor);
+        } else {
+            initialized();
+        }
+    }
 
+    private List<OverlayIcon> registeredIcons() {
+        List<OverlayIcon> icons = new ArrayList<>();
+        for (OverlayIcon state : OverlayIcon.values()) {
+            if (state != OverlayIcon.NONE) {
+                icons.add(state);
             }
+        }
+        return icons;
+    }
+
+    private void registerIcons(List<OverlayIcon> icons, int next) {
+        if (shutdown) {
+            return;
+        }
+        if (next == icons.size()) {
+            initialized();
+            return;
+        }
 
+        final OverlayIcon state = icons.get(next);
+        final Path resourceDir = Paths.get(System.getProperty("goobox.resource", "."));
+        final Path icon = resourceDir.resolve(String.format("overlay_%s.icns", state.name())).toAbsolutePath();
+        if (Files.exists(icon)) {
+            logger.debug("Register {} with ID {} ({})", icon, String.valueOf(state.id()), state);
+            fileIconControl.registerIconWithId(
+                    icon.toAbsolutePath().toString(), state.name(), String.valueOf(state.id()));
+            // registerIconWithId needs to wait some time so that the FinderSyncExtension reads the previous
+            // message and doesn't drop new one.
+            schedule(() -> registerIcons(icons, next + 1), timeouts.iconRegistrationMillis);
+        } else {
+            logger.warn("Cannot find overlay icon {} for ID {} ({})", icon, String.valueOf(state.id()), state);
+            registerIcons(icons, next + 1);
         }
+    }
 
-        nativityControl.setFilterFolder(syncDir.toString());
+    private void initialized() {
+        updateFilterFolders();
 
         /* Context Menus */
         // No context menu yet
         // ContextMenuControlUtil.getContextMenuControl(nativityControl, this);refresh
 
+        metrics.recordInitialized(System.currentTimeMillis() - initStart);
         logger.debug("OverlayHelper has been initialized");
+
+        refreshThread = new Thread(this::refreshLoop, "Refresh overlay icons");
+        refreshThread.start();
+        ready.complete(null);
+    }
+
+    private void updateFilterFolders() {
+        Root[] current = roots;
+        if (current.length == 1) {
+            nativityControl.setFilterFolder(current[0].name);
+            return;
+        }
+        String[] folders = new String[current.length];
+        for (int i = 0; i < current.length; i++) {
+            folders[i] = current[i].name;
+        }
+        nativityControl.setFilterFolders(folders);
+    }
+
+    private void refreshLoop() {
         try {
-            while (!shutdown) {
-                this.refreshIcons(this.queue.take());
+            String[] batch;
+            while ((batch = this.queue.take()) != null) {
+                this.refreshIcons(batch);
             }
         } catch (InterruptedException e) {
             logger.warn("Thread for overlay icons was interrupted: {}", e.getMessage());
         }
+    }
 
+    private void execute(Runnable step) {
+        try {
+            initExecutor.execute(step);
+        } catch (RejectedExecutionException e) {
+            // shut down meanwhile
+        }
     }
 
-    public void setOK() {
-        if (!OSDetector.isWindows() && !OSDetector.isApple()) {
-            return;
+    private void schedule(Runnable step, long delayMillis) {
+        try {
+            initExecutor.schedule(step, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down meanwhile
         }
+    }
 
-        globalStateIconId = OverlayIcon.OK.id();
-        refresh();
+    /**
+     * Timeouts of the startup steps.
+     */
+    static final class StartupTimeouts {
+
+        static final StartupTimeouts DEFAULT = new StartupTimeouts(1000, 30000, 10000, 1000);
+
+        final long minRetryMillis;
+        final long maxRetryMillis;
+        final long extensionStartMillis;
+        final long iconRegistrationMillis;
+
+        /**
+         * @param minRetryMillis         delay before the first reconnect, doubled on every failed attempt.
+         * @param maxRetryMillis         upper bound of the reconnect delay.
+         * @param extensionStartMillis   how long to wait for the first icon request before registering the icons.
+         * @param iconRegistrationMillis pause between two icon registrations.
+         */
+        StartupTimeouts(long minRetryMillis, long maxRetryMillis, long extensionStartMillis,
+                        long iconRegistrationMillis) {
+            this.minRetryMillis = minRetryMillis;
+            this.maxRetryMillis = maxRetryMillis;
+            this.extensionStartMillis = extensionStartMillis;
+            this.iconRegistrationMillis = iconRegistrationMillis;
+        }
+
+        /**
+         * Exponential backoff with jitter, so that several apps don't retry the same port in lockstep.
+         */
+        long retryDelay(int attempt) {
+            long delay = Math.min(maxRetryMillis, minRetryMillis << Math.min(attempt, 20));
+            return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        }
+
+    }
+
+    /**
+     * Sets the global state icon of all sync dirs to {@link OverlayIcon#OK}.
+     */
+    public void setOK() {
+        setGlobalState(null, OverlayIcon.OK);
     }
 
+    /**
+     * Sets the global state icon of all sync dirs to {@link OverlayIcon#SYNCING}.
+     */
     public void setSynchronizing() {
-        if (!OSDetector.isWindows() && !OSDetector.isApple()) {
+        setGlobalState(null, OverlayIcon.SYNCING);
+    }
+
+    public void setOK(Path syncDir) {
+        setGlobalState(syncDir, OverlayIcon.OK);
+    }
+
+    public void setSynchronizing(Path syncDir) {
+        setGlobalState(syncDir, OverlayIcon.SYNCING);
+    }
+
+    private void setGlobalState(Path syncDir, OverlayIcon icon) {
+        if (nativityControl == null) {
             return;
         }
 
-        globalStateIconId = OverlayIcon.SYNCING.id();
-        refresh();
+        for (Root root : roots) {
+            if (syncDir == null || root.syncDir.equals(syncDir)) {
+                root.globalStateIconId = icon.id();
+                if (fileIconControl != null) {
+                    queue.addRoot(root.syncDir);
+                }
+            }
+        }
     }
 
+    /**
+     * Stops the overlay icons: removes the global state icon, delivers the pending refreshes within
+     * {@value #SHUTDOWN_DRAIN_MILLIS} ms and disconnects from the native service. Register it with a
+     * {@link io.goobox.sync.common.ShutdownCoordinator} in the drain phase.
+     */
+    @Override
     public void shutdown() {
-        if (!OSDetector.isWindows() && !OSDetector.isApple()) {
+        if (nativityControl == null) {
             return;
         }
 
-        // interupt init() if still running
-        synchronized (this) {
-            shutdown = true;
-            notify();
-        }
+        // stop init() if still running
+        shutdown = true;
+        initExecutor.shutdownNow();
+        ready.cancel(false);
 
-        globalStateIconId = OverlayIcon.NONE.id();
-        refresh();
+        // deliver the pending refreshes and the removal of the global state icons before disconnecting
+        for (Root root : roots) {
+            root.globalStateIconId = OverlayIcon.NONE.id();
+        }
+        if (fileIconControl != null) {
+            queue.addRoot();
+        }
+        queue.close();
+        drainRefreshQueue();
 
         if (nativityControl != null) {
             nativityControl.disconnect();
         }
+
+        if (defaultLookupExecutor != null) {
+            defaultLookupExecutor.shutdownNow();
+        }
+        for (Root root : roots) {
+            closeStateFile(root);
+        }
+        metrics.unregister();
     }
 
-    public void refresh(Path path) {
-        if (fileIconControl != null && path != null) {
-            String[] pathAndParents = Stream.iterate(path, Path::getParent)
-                    .limit(syncDir.relativize(path).getNameCount())
-                    .map(Path::toString)
-                    .toArray(String[]::new);
-            this.queue.offer(pathAndParents);
+    private static void closeStateFile(Root root) {
+        OverlayStateFile stateFile = root.stateFile;
+        root.stateFile = null;
+        if (stateFile != null) {
+            try {
+                stateFile.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close overlay state file {}: {}", stateFile.getFile(), e.getMessage());
+            }
         }
     }
 
-    private void refresh() {
+    private void drainRefreshQueue() {
+        Thread thread = refreshThread;
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join(SHUTDOWN_DRAIN_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            logger.warn("Overlay icon refreshes not drained in {} ms, {} paths dropped", SHUTDOWN_DRAIN_MILLIS,
+                    queue.size());
+            thread.interrupt();
+        }
+    }
+
+    public void refresh(Path path) {
+        if (nativityControl == null || path == null) {
+            return;
+        }
+        Root root = findRoot(path);
+        if (root == null) {
+            return;
+        }
+
+        if (Files.exists(path)) {
+            root.stateIndex.update(path, root.iconProvider.getIcon(path));
+        } else {
+            root.stateIndex.remove(path);
+        }
+
         if (fileIconControl != null) {
-            this.queue.offer(new String[]{syncDir.toString()});
+            this.queue.add(path);
+        }
+    }
+
+    /**
+     * Refreshes the icons of the changed paths, e.g. when registered as a listener of a {@link DirectoryWatcher} of
+     * the sync dirs.
+     */
+    @Override
+    public void changed(List<Change> changes) {
+        if (nativityControl == null) {
+            return;
+        }
+        for (Change change : changes) {
+            Path path = change.getPath();
+            if (change.getKind() != Change.Kind.RESCAN) {
+                refresh(path);
+                continue;
+            }
+            Root root = findRoot(path);
+            if (root != null) {
+                root.stateIndex.rebuild(path, root.iconProvider);
+                if (fileIconControl != null) {
+                    if (root.syncDir.equals(path)) {
+                        queue.addRoot(path);
+                    } else {
+                        queue.add(path);
+                    }
+                }
+            }
         }
     }
 
     private void refreshIcons(String[] paths) {
+        long start = System.nanoTime();
         fileIconControl.refreshIcons(paths);
+        metrics.recordRefreshBatch(paths.length, System.nanoTime() - start);
+    }
+
+    public OverlayMetrics getMetrics() {
+        return metrics;
     }
 
     /* FileIconControlCallback used by Windows and Mac */
     @Override
     public int getIconForFile(String path) {
+        long start = System.nanoTime();
+        try {
+            return getIconId(path);
+        } finally {
+            metrics.recordIconLookup(path, System.nanoTime() - start);
+        }
+    }
+
+    private int getIconId(String path) {
+        if (!extensionStarted.isDone()) {
+            extensionStarted.complete(null);
+        }
+
+        // fast path without allocations for the paths in the index
+        Root root = findRoot(path);
+        if (root != null) {
+            OverlayStateIndex stateIndex = root.stateIndex;
+            int id = stateIndex.find(path);
+            if (id == PathTable.ROOT) {
+                return root.globalStateIconId;
+            } else if (id != PathTable.NOT_FOUND) {
+                if (missingIcons != null && !stateIndex.contains(id)) {
+                    missingIcons.resolve(stateIndex.toPath(id));
+                }
+                return stateIndex.getIcon(id).id();
+            }
+        }
+
         Path p = Paths.get(path);
-        if (!p.startsWith(syncDir)) {
+        root = findRoot(p);
+        if (root == null) {
             return OverlayIcon.NONE.id();
-        } else if (syncDir.equals(p)) {
-            return globalStateIconId;
+        } else if (root.syncDir.equals(p)) {
+            return root.globalStateIconId;
         } else {
-            try {
-                return Files.walk(p)
-                        .map(iconProvider::getIcon)
-                        .map(OverlayIcon::id)
-                        .reduce(OverlayIcon.NONE.id(), Integer::max);
-            } catch (IOException | UncheckedIOException e) {
-                logger.error("Failed walking the file tree", e);
+            // never wait for the provider on the native callback thread
+            if (missingIcons != null && !root.stateIndex.contains(p)) {
+                missingIcons.resolve(p);
+            }
+            return root.stateIndex.getIcon(p).id();
+        }
+    }
+
+    /*
+     * Prefix lookup of the sync dir of a native path, without parsing it.
+     */
+    private Root findRoot(String path) {
+        for (Root root : roots) {
+            String name = root.name;
+            if (path.startsWith(name) && (path.length() == name.length()
+                    || path.charAt(name.length()) == File.separatorChar
+                    || name.charAt(name.length() - 1) == File.separatorChar)) {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    private Root findRoot(Path path) {
+        for (Root root : roots) {
+            if (path.startsWith(root.syncDir)) {
+                return root;
             }
         }
-        return 0;
+        return null;
+    }
+
+    private int indexedFiles() {
+        int count = 0;
+        for (Root root : roots) {
+            count += root.stateIndex.size();
+        }
+        return count;
+    }
+
+    /**
+     * A sync dir with its icons.
+     */
+    private static final class Root {
+
+        final Path syncDir;
+        final String name;
+        final OverlayIconProvider iconProvider;
+        final OverlayStateIndex stateIndex;
+        final Path stateFilePath;
+        final CompletableFuture<Void> indexed = new CompletableFuture<>();
+        volatile OverlayStateFile stateFile;
+        volatile int globalStateIconId = OverlayIcon.NONE.id();
+
+        Root(Path syncDir, OverlayIconProvider iconProvider, Path stateFilePath) {
+            this.syncDir = syncDir;
+            this.name = syncDir.toString();
+            this.iconProvider = iconProvider;
+            this.stateIndex = new OverlayStateIndex(syncDir);
+            this.stateFilePath = stateFilePath;
+        }
+
     }
 
     @Override
@@ -16,10 +16,66 @@
  */
 package io.goobox.sync.common.overlay;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public interface OverlayIconProvider {
 
     public OverlayIcon getIcon(Path path);
 
+    /**
+     * Returns the icons of the given paths.
+     * <p>
+     * The default implementation calls {@link #getIcon(Path)} for every path. Providers backed by a database should
+     * override it to fetch all icons with a single query.
+     * </p>
+     *
+     * @param paths to look up, usually the entries of a single directory.
+     * @return the icon of each path in the iteration order of the given collection.
+     */
+    public default Map<Path, OverlayIcon> getIcons(Collection<Path> paths) {
+        Map<Path, OverlayIcon> icons = new LinkedHashMap<>();
+        for (Path path : paths) {
+            icons.put(path, getIcon(path));
+        }
+        return icons;
+    }
+
+    /**
+     * Returns the icons of the given paths.
+     *
+     * @param paths to look up.
+     * @return the icon of each path in the encounter order of the stream.
+     * @see #getIcons(Collection)
+     */
+    public default Map<Path, OverlayIcon> getIcons(Stream<Path> paths) {
+        return getIcons(paths.collect(Collectors.toList()));
+    }
+
+    /**
+     * Returns the icon with the highest severity among the given path and all its descendants.
+     * <p>
+     * The default implementation walks the file tree and looks up the icons with {@link #getIcons(Stream)}.
+     * </p>
+     *
+     * @param path root of the subtree.
+     * @return the aggregated icon.
+     * @throws UncheckedIOException if the file tree cannot be walked.
+     */
+    public default OverlayIcon getMaxIcon(Path path) {
+        try (Stream<Path> paths = Files.walk(path)) {
+            return getIcons(paths).values().stream()
+                    .reduce(OverlayIcon.NONE, (a, b) -> a.id() >= b.id() ? a : b);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Metrics of an {@link OverlayHelper}, exposed as an MXBean and forwarded to registered listeners.
+ */
+public class OverlayMetrics implements OverlayMetricsMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(OverlayMetrics.class);
+
+    private final LatencyHistogram iconLookups = new LatencyHistogram();
+    private final LatencyHistogram refreshes = new LatencyHistogram();
+    private final LongAdder refreshedPaths = new LongAdder();
+    private volatile long maxRefreshBatchSize;
+    private final LongAdder connectRetries = new LongAdder();
+    private volatile long initializationMillis = -1;
+    private volatile long indexRebuildMillis = -1;
+
+    private final IntSupplier queueDepth;
+    private final IntSupplier indexedFiles;
+
+    private final List<OverlayMetricsListener> listeners = new CopyOnWriteArrayList<>();
+
+    private ObjectName objectName;
+
+    public OverlayMetrics(IntSupplier queueDepth, IntSupplier indexedFiles) {
+        this.queueDepth = queueDepth;
+        this.indexedFiles = indexedFiles;
+    }
+
+    public void addListener(OverlayMetricsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(OverlayMetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    void recordIconLookup(String path, long nanos) {
+        iconLookups.record(nanos);
+        for (OverlayMetricsListener listener : listeners) {
+            listener.iconLookup(path, nanos);
+        }
+    }
+
+    void recordRefreshBatch(int paths, long nanos) {
+        refreshes.record(nanos);
+        refreshedPaths.add(paths);
+        if (paths > maxRefreshBatchSize) {
+            maxRefreshBatchSize = paths;
+        }
+        for (OverlayMetricsListener listener : listeners) {
+            listener.refreshBatch(paths, nanos);
+        }
+    }
+
+    void recordConnectRetry(int attempt) {
+        connectRetries.increment();
+        for (OverlayMetricsListener listener : listeners) {
+            listener.connectRetry(attempt);
+        }
+    }
+
+    void recordInitialized(long millis) {
+        initializationMillis = millis;
+        for (OverlayMetricsListener listener : listeners) {
+            listener.initialized(millis);
+        }
+    }
+
+    void recordIndexRebuild(long millis) {
+        indexRebuildMillis = millis;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server. Failures are logged and otherwise ignored.
+     *
+     * @param syncDir distinguishes the metrics of helpers for different sync dirs. Only the first one is used if
+     *                the helper has several.
+     */
+    synchronized void register(Path syncDir) {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("io.goobox.sync.common:type=OverlayHelper,syncDir="
+                    + ObjectName.quote(syncDir.toString()));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+                objectName = name;
+            }
+        } catch (JMException e) {
+            logger.warn("Cannot register overlay metrics: {}", e.getMessage());
+        }
+    }
+
+    synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.warn("Cannot unregister overlay metrics: {}", e.getMessage());
+        }
+        objectName = null;
+    }
+
+    @Override
+    public long getIconLookups() {
+        return iconLookups.getCount();
+    }
+
+    @Override
+    public long getIconLookupMeanMicros() {
+        return toMicros(iconLookups.getMean());
+    }
+
+    @Override
+    public long getIconLookupP50Micros() {
+        return toMicros(iconLookups.getPercentile(50));
+    }
+
+    @Override
+    public long getIconLookupP99Micros() {
+        return toMicros(iconLookups.getPercentile(99));
+    }
+
+    @Override
+    public long getIconLookupMaxMicros() {
+        return toMicros(iconLookups.getMax());
+    }
+
+    public LatencyHistogram getIconLookupHistogram() {
+        return iconLookups;
+    }
+
+    @Override
+    public int getIndexedFiles() {
+        return indexedFiles.getAsInt();
+    }
+
+    @Override
+    public long getIndexRebuildMillis() {
+        return indexRebuildMillis;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public long getRefreshBatches() {
+        return refreshes.getCount();
+    }
+
+    @Override
+    public long getRefreshedPaths() {
+        return refreshedPaths.sum();
+    }
+
+    @Override
+    public long getMaxRefreshBatchSize() {
+        return maxRefreshBatchSize;
+    }
+
+    @Override
+    public long getRefreshMeanMicros() {
+        return toMicros(refreshes.getMean());
+    }
+
+    @Override
+    public long getConnectRetries() {
+        return connectRetries.sum();
+    }
+
+    @Override
+    public long getInitializationMillis() {
+        return initializationMillis;
+    }
+
+    @Override
+    public void reset() {
+        iconLookups.reset();
+        refreshes.reset();
+        refreshedPaths.reset();
+        maxRefreshBatchSize = 0;
+        connectRetries.reset();
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+/**
+ * Receives the events measured by {@link OverlayMetrics}, e.g. to forward them to the metrics system of the app.
+ * Methods are invoked on the thread doing the measured work and must return quickly.
+ */
+public interface OverlayMetricsListener {
+
+    public default void iconLookup(String path, long nanos) {
+    }
+
+    public default void refreshBatch(int paths, long nanos) {
+    }
+
+    public default void connectRetry(int attempt) {
+    }
+
+    public default void initialized(long millis) {
+    }
+
+}
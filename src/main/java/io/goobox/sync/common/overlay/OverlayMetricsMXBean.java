@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+/**
+ * JMX view of the {@link OverlayMetrics}. Times are in microseconds unless stated otherwise. Counters only grow until
+ * {@link #reset()}, so JMX consoles can derive rates from them.
+ */
+public interface OverlayMetricsMXBean {
+
+    public long getIconLookups();
+
+    public long getIconLookupMeanMicros();
+
+    public long getIconLookupP50Micros();
+
+    public long getIconLookupP99Micros();
+
+    public long getIconLookupMaxMicros();
+
+    public int getIndexedFiles();
+
+    public long getIndexRebuildMillis();
+
+    public int getQueueDepth();
+
+    public long getRefreshBatches();
+
+    public long getRefreshedPaths();
+
+    public long getMaxRefreshBatchSize();
+
+    public long getRefreshMeanMicros();
+
+    public long getConnectRetries();
+
+    public long getInitializationMillis();
+
+    public void reset();
+
+}
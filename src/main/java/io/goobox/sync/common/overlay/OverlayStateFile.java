@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+import io.goobox.sync.common.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Memory-mapped file with the overlay states of a sync dir, so that the icons are right from the start of the app.
+ * <p>
+ * The file has a fixed-record layout: a header, one record per path ID of the {@link OverlayStateIndex} with the ID
+ * of the parent, the own state and the aggregated state of the subtree, and then the UTF-8 names of the paths. Once
+ * attached to an index, every change of the index is written in place to the mapping, so the states live off-heap
+ * in the page cache and the file needs no saving. Another process can read the same file with
+ * {@link #load(Path, OverlayStateIndex)} without any IPC.
+ * </p>
+ * <p>
+ * The file is sized when opened and never resized while mapped, as Windows does not allow that. If the index
+ * outgrows the records or the names region of the file, the file is marked incomplete and stops following the index.
+ * The next {@link #open} then discards it and sizes both regions for twice what was used. A record reused for another
+ * path reuses the name of the removed path if the new name fits, so that file churn does not fill the names region.
+ * </p>
+ */
+public class OverlayStateFile implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OverlayStateFile.class);
+
+    public static final int MIN_RECORDS = 16384;
+    public static final int MAX_RECORDS = 1 << 24;
+
+    private static final int MAGIC = 0x47424f53; // "GBOS"
+    private static final int VERSION = 1;
+    private static final int FLAG_INCOMPLETE = 1;
+    private static final int AVERAGE_NAME_BYTES = 32;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int FLAGS_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int COUNT_OFFSET = 16;
+    private static final int NAMES_END_OFFSET = 20;
+
+    /*
+     * Record: parent ID + 1 or 0 if unused (int), offset of the name (int), length of the name (unsigned short),
+     * state ordinal + 1 or 0 (byte), ordinal of the aggregated state (byte). The root record is always used and its
+     * name is the sync dir.
+     */
+    private static final int RECORD_SIZE = 12;
+    private static final int NAME_OFFSET = 4;
+    private static final int NAME_LENGTH = 8;
+    private static final int STATE = 10;
+    private static final int AGGREGATE = 11;
+
+    private static final OverlayIcon[] ICONS = OverlayIcon.values();
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int namesStart;
+
+    /* records to clear on the first reset, all of them if the record region moved over old names */
+    private int staleRecords;
+
+    private OverlayStateIndex index;
+    private int count;
+    private int namesEnd;
+    private boolean incomplete;
+
+    /**
+     * Returns the default location of the state file of the given sync dir in the app data dir.
+     *
+     * @param syncDir the sync dir.
+     * @return the path of the file.
+     */
+    public static Path defaultFile(Path syncDir) {
+        return Utils.getDataDir().resolve(String.format("overlay-%08x.bin", syncDir.toString().hashCode()));
+    }
+
+    /**
+     * Loads the states from the file into the index and attaches the file to the index, so that it follows all
+     * later changes. The file is created if missing, and discarded if unreadable or of another sync dir.
+     *
+     * @param file  the state file.
+     * @param index to load the states into, usually empty.
+     * @return the opened file.
+     * @throws IOException if the file cannot be opened or mapped.
+     */
+    public static OverlayStateFile open(Path file, OverlayStateIndex index) throws IOException {
+        long start = System.currentTimeMillis();
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            // size the file before mapping it - it cannot be resized afterwards
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // read the whole header
+            }
+            int capacity = MIN_RECORDS;
+            long usedNames = 0;
+            if (!header.hasRemaining() && header.getInt(MAGIC_OFFSET) == MAGIC
+                    && header.getInt(VERSION_OFFSET) == VERSION) {
+                int oldCapacity = header.getInt(CAPACITY_OFFSET);
+                capacity = Math.max(capacity, oldCapacity);
+                capacity = (int) Math.min(MAX_RECORDS, Math.max(capacity, 2L * header.getInt(COUNT_OFFSET)));
+                usedNames = header.getInt(NAMES_END_OFFSET) - (HEADER_SIZE + (long) oldCapacity * RECORD_SIZE);
+            }
+            long namesSize = Math.max((long) capacity * AVERAGE_NAME_BYTES, 2 * usedNames);
+            long size = Math.min(Integer.MAX_VALUE,
+                    Math.max(channel.size(), HEADER_SIZE + (long) capacity * RECORD_SIZE + namesSize));
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            int loaded = read(buffer, index);
+            if (loaded < 0) {
+                logger.info("Ignoring overlay state file {}", file);
+            }
+            OverlayStateFile stateFile = new OverlayStateFile(file, channel, buffer, capacity);
+            stateFile.index = index;
+            index.attach(stateFile);
+            logger.debug("Loaded {} overlay states from {} in {} ms", Math.max(loaded, 0), file,
+                    System.currentTimeMillis() - start);
+            return stateFile;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Loads the states from the file into the index by mapping it read-only, e.g. in a helper process of the app
+     * that keeps the file open.
+     *
+     * @param file  the state file.
+     * @param index to load the states into.
+     * @return whether the file was loaded. An incomplete or unreadable file, or one of another sync dir, is ignored.
+     * @throws IOException if the file cannot be mapped.
+     */
+    public static boolean load(Path file, OverlayStateIndex index) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), index) >= 0;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private OverlayStateFile(Path file, FileChannel channel, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.namesStart = HEADER_SIZE + capacity * RECORD_SIZE;
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION
+                || buffer.getInt(CAPACITY_OFFSET) != capacity) {
+            staleRecords = capacity;
+        }
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return whether the index outgrew the file, so it does not follow the index anymore.
+     */
+    public synchronized boolean isIncomplete() {
+        return incomplete;
+    }
+
+    /**
+     * Detaches the file from the index and writes the mapped content to the storage device.
+     */
+    @Override
+    public void close() throws IOException {
+        OverlayStateIndex index;
+        synchronized (this) {
+            index = this.index;
+            this.index = null;
+        }
+        if (index != null) {
+            index.attach(null);
+        }
+        synchronized (this) {
+            if (channel.isOpen()) {
+                buffer.force();
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Drops all records except the root. Called by the index with its lock held.
+     */
+    synchronized void reset(Path syncDir) {
+        if (!channel.isOpen()) {
+            return;
+        }
+        // including the records of the previous run
+        int used = Math.max(Math.max(count, staleRecords), buffer.getInt(COUNT_OFFSET));
+        for (int id = 0; id < Math.min(used, capacity); id++) {
+            int offset = recordOffset(id);
+            buffer.putInt(offset, 0);
+            buffer.putInt(offset + NAME_OFFSET, 0);
+            buffer.putShort(offset + NAME_LENGTH, (short) 0);
+            buffer.put(offset + STATE, (byte) 0);
+        }
+        staleRecords = 0;
+        count = 1;
+        namesEnd = namesStart;
+        incomplete = false;
+        buffer.putInt(FLAGS_OFFSET, 0);
+        buffer.putInt(COUNT_OFFSET, count);
+
+        if (!writeName(PathTable.ROOT, syncDir.toString())) {
+            markIncomplete(0);
+        }
+    }
+
+    /**
+     * Writes the record of a path. Called by the index with its lock held.
+     */
+    synchronized void put(int id, int parent, String name, int state, OverlayIcon aggregate) {
+        if (incomplete || !channel.isOpen()) {
+            return;
+        }
+        if (id >= capacity) {
+            markIncomplete(id);
+            return;
+        }
+
+        int offset = recordOffset(id);
+        if (id != PathTable.ROOT && buffer.getInt(offset) == 0) {
+            if (!writeName(id, name)) {
+                markIncomplete(id);
+                return;
+            }
+            // set last, so that a reader never sees a used record without its name
+            buffer.putInt(offset, parent + 1);
+        }
+        buffer.put(offset + STATE, (byte) state);
+        buffer.put(offset + AGGREGATE, (byte) aggregate.ordinal());
+        if (id >= count) {
+            count = id + 1;
+            buffer.putInt(COUNT_OFFSET, count);
+        }
+    }
+
+    /**
+     * Marks the record of a path as unused. Called by the index with its lock held.
+     */
+    synchronized void remove(int id) {
+        if (id < capacity && id != PathTable.ROOT && channel.isOpen()) {
+            buffer.putInt(recordOffset(id), 0);
+        }
+    }
+
+    private boolean writeName(int id, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int offset = recordOffset(id);
+        int slot = buffer.getInt(offset + NAME_OFFSET);
+        int slotLength = buffer.getShort(offset + NAME_LENGTH) & 0xffff;
+        if (slot >= namesStart && bytes.length <= slotLength) {
+            // the name of the removed path that had this ID
+            ByteBuffer names = buffer.duplicate();
+            names.position(slot);
+            names.put(bytes);
+            buffer.putShort(offset + NAME_LENGTH, (short) bytes.length);
+            return true;
+        }
+
+        if (bytes.length > 0xffff || namesEnd + bytes.length > buffer.capacity()) {
+            return false;
+        }
+        ByteBuffer names = buffer.duplicate();
+        names.position(namesEnd);
+        names.put(bytes);
+
+        buffer.putInt(offset + NAME_OFFSET, namesEnd);
+        buffer.putShort(offset + NAME_LENGTH, (short) bytes.length);
+        namesEnd += bytes.length;
+        buffer.putInt(NAMES_END_OFFSET, namesEnd);
+        return true;
+    }
+
+    private void markIncomplete(int id) {
+        if (!incomplete) {
+            logger.warn("Overlay state file {} is full, it will be resized on the next start", file);
+        }
+        incomplete = true;
+        buffer.putInt(FLAGS_OFFSET, FLAG_INCOMPLETE);
+        // so that the next start makes room for this ID
+        count = Math.max(count, id + 1);
+        buffer.putInt(COUNT_OFFSET, count);
+    }
+
+    /**
+     * Loads the records into the index.
+     *
+     * @return the number of loaded states, or -1 if the content is not valid.
+     */
+    private static int read(ByteBuffer buffer, OverlayStateIndex index) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC
+                || buffer.getInt(VERSION_OFFSET) != VERSION
+                || (buffer.getInt(FLAGS_OFFSET) & FLAG_INCOMPLETE) != 0) {
+            return -1;
+        }
+        int capacity = buffer.getInt(CAPACITY_OFFSET);
+        int count = buffer.getInt(COUNT_OFFSET);
+        if (capacity < 1 || count < 1 || count > capacity || fileSize(capacity) > buffer.capacity()) {
+            return -1;
+        }
+        Path syncDir = index.getSyncDir();
+        String root = readName(buffer, PathTable.ROOT);
+        if (!syncDir.toString().equals(root)) {
+            return -1;
+        }
+
+        Path[] paths = new Path[count];
+        paths[PathTable.ROOT] = syncDir;
+        int loaded = 0;
+        for (int id = PathTable.ROOT + 1; id < count; id++) {
+            int state = buffer.get(recordOffset(id) + STATE);
+            if (state <= 0 || state > ICONS.length) {
+                continue;
+            }
+            Path path = resolve(buffer, paths, id);
+            if (path != null) {
+                index.update(path, ICONS[state - 1]);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /*
+     * Creates the path of a record from the names of its parents, reusing the paths already created.
+     */
+    private static Path resolve(ByteBuffer buffer, Path[] paths, int id) {
+        int[] chain = new int[16];
+        int length = 0;
+        int e = id;
+        while (paths[e] == null) {
+            int parent = buffer.getInt(recordOffset(e)) - 1;
+            if (parent < 0 || parent >= paths.length || length == paths.length) {
+                // unused or corrupted
+                return null;
+            }
+            if (length == chain.length) {
+                chain = Arrays.copyOf(chain, length * 2);
+            }
+            chain[length++] = e;
+            e = parent;
+        }
+        Path path = paths[e];
+        for (int i = length - 1; i >= 0; i--) {
+            String name = readName(buffer, chain[i]);
+            if (name == null) {
+                return null;
+            }
+            path = path.resolve(name);
+            paths[chain[i]] = path;
+        }
+        return path;
+    }
+
+    private static String readName(ByteBuffer buffer, int id) {
+        int offset = recordOffset(id);
+        int start = buffer.getInt(offset + NAME_OFFSET);
+        int length = buffer.getShort(offset + NAME_LENGTH) & 0xffff;
+        if (start < HEADER_SIZE || start + length > buffer.capacity()) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer names = buffer.duplicate();
+        names.position(start);
+        names.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int recordOffset(int id) {
+        return HEADER_SIZE + id * RECORD_SIZE;
+    }
+
+    private static long fileSize(int capacity) {
+        return HEADER_SIZE + (long) capacity * (RECORD_SIZE + AVERAGE_NAME_BYTES);
+    }
+
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+import io.goobox.sync.common.ExclusionRules;
+import io.goobox.sync.common.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * In-memory index of the overlay icons under the sync dir.
+ * <p>
+ * Every directory keeps the number of descendants in each {@link OverlayIcon} state. The counters are updated
+ * incrementally on every change, so the icon of a directory is resolved without walking its subtree.
+ * </p>
+ * <p>
+ * The paths are stored in a {@link PathTable} and the states and counters in arrays indexed by the path IDs, so the
+ * index holds no {@link Path} objects and a lookup by native path string does not allocate. Lookups do not lock the
+ * index: a lookup racing with an update may see the state from just before it.
+ * </p>
+ */
+public class OverlayStateIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(OverlayStateIndex.class);
+
+    private static final OverlayIcon[] ICONS = OverlayIcon.values();
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Path syncDir;
+    private final PathTable paths;
+
+    /**
+     * Per path ID: the ordinal of the icon + 1, or 0 if the path is not indexed.
+     */
+    private volatile AtomicIntegerArray states;
+    /**
+     * Per path ID: the number of descendants in each state, at ID * number of icons + ordinal.
+     */
+    private volatile AtomicIntegerArray counts;
+    private volatile int size;
+
+    private OverlayStateFile stateFile;
+
+    public OverlayStateIndex(Path syncDir) {
+        this.syncDir = syncDir;
+        this.paths = new PathTable(syncDir);
+        clear();
+    }
+
+    public Path getSyncDir() {
+        return syncDir;
+    }
+
+    /**
+     * Replaces the content of the index by walking the sync dir once. Excluded files and directories are skipped.
+     * <p>
+     * The icons are requested from the provider with a single {@link OverlayIconProvider#getIcons(Collection)} call
+     * per directory. A non-empty index, e.g. loaded from an {@link OverlayStateFile}, keeps answering lookups while
+     * walking: the states are updated in place and the paths not found are removed at the end.
+     * </p>
+     *
+     * @param iconProvider provider of the icons of the individual files.
+     */
+    public synchronized void rebuild(OverlayIconProvider iconProvider) {
+        if (size == 0) {
+            clear();
+            walk(syncDir, iconProvider, null);
+            return;
+        }
+        BitSet visited = new BitSet();
+        walk(syncDir, iconProvider, visited);
+
+        List<Path> stale = new ArrayList<>();
+        AtomicIntegerArray states = this.states;
+        for (int id = PathTable.ROOT + 1; id < states.length(); id++) {
+            if (states.get(id) != 0 && !visited.get(id)) {
+                stale.add(paths.toPath(id));
+            }
+        }
+        stale.forEach(this::remove);
+    }
+
+    private synchronized void clear() {
+        paths.clear();
+        states = new AtomicIntegerArray(INITIAL_CAPACITY);
+        counts = new AtomicIntegerArray(INITIAL_CAPACITY * ICONS.length);
+        size = 0;
+        if (stateFile != null) {
+            stateFile.reset(syncDir);
+        }
+    }
+
+    /**
+     * Writes the current content of the index to the state file and keeps it updated on every change.
+     *
+     * @param stateFile the file, or null to stop writing to the current one.
+     */
+    synchronized void attach(OverlayStateFile stateFile) {
+        this.stateFile = stateFile;
+        if (stateFile != null) {
+            stateFile.reset(syncDir);
+            // parents before children
+            paths.forEachInSubtree(PathTable.ROOT, this::persist);
+        }
+    }
+
+    private void persist(int id) {
+        stateFile.put(id, paths.getParent(id), paths.getName(id), states.get(id), getIcon(id));
+    }
+
+    /**
+     * Replaces the content of the index under the given directory by walking its subtree, e.g. after file system
+     * events were lost.
+     *
+     * @param dir          under the sync dir, or the sync dir itself.
+     * @param iconProvider provider of the icons of the individual files.
+     */
+    public synchronized void rebuild(Path dir, OverlayIconProvider iconProvider) {
+        if (syncDir.equals(dir)) {
+            rebuild(iconProvider);
+            return;
+        }
+        remove(dir);
+        if (Files.isDirectory(dir)) {
+            update(dir, iconProvider.getIcon(dir));
+            walk(dir, iconProvider, null);
+        }
+    }
+
+    private void walk(Path root, OverlayIconProvider iconProvider, BitSet visited) {
+        long start = System.currentTimeMillis();
+        ExclusionRules rules = Utils.getExclusionRules();
+        Deque<List<Path>> batches = new ArrayDeque<>();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!batches.isEmpty() && rules.isSubtreeExcluded(dir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if (!batches.isEmpty()) {
+                        batches.peek().add(dir);
+                    }
+                    batches.push(new ArrayList<>());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!rules.isExcluded(file)) {
+                        batches.peek().add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    logger.warn("Cannot read {}: {}", file, e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    List<Path> batch = batches.pop();
+                    if (!batch.isEmpty()) {
+                        iconProvider.getIcons(batch).forEach((path, icon) -> {
+                            update(path, icon);
+                            int id = visited != null ? paths.find(path) : PathTable.NOT_FOUND;
+                            if (id != PathTable.NOT_FOUND) {
+                                visited.set(id);
+                            }
+                        });
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("Failed walking the file tree", e);
+        }
+        logger.debug("Indexed {} in {} ms, {} overlay states in total", root, System.currentTimeMillis() - start,
+                size);
+    }
+
+    /**
+     * Sets the icon of the given path and updates the counters of all its parents.
+     *
+     * @param path  under the sync dir.
+     * @param state new icon of the path.
+     */
+    public synchronized void update(Path path, OverlayIcon state) {
+        if (!isIndexed(path)) {
+            return;
+        }
+
+        int id = paths.intern(path);
+        ensureCapacity(id);
+        int old = states.get(id);
+        if (old == state.ordinal() + 1) {
+            return;
+        }
+        states.set(id, state.ordinal() + 1);
+        if (old == 0) {
+            size++;
+        }
+
+        for (int parent = paths.getParent(id); parent != PathTable.NOT_FOUND; parent = paths.getParent(parent)) {
+            int base = parent * ICONS.length;
+            if (old != 0) {
+                counts.decrementAndGet(base + old - 1);
+            }
+            counts.incrementAndGet(base + state.ordinal());
+        }
+
+        if (stateFile != null) {
+            for (int p = id; p != PathTable.NOT_FOUND; p = paths.getParent(p)) {
+                persist(p);
+            }
+        }
+    }
+
+    /**
+     * Removes the given path and all its descendants from the index.
+     *
+     * @param path under the sync dir.
+     */
+    public synchronized void remove(Path path) {
+        int id = paths.find(path);
+        if (id == PathTable.NOT_FOUND || id == PathTable.ROOT) {
+            return;
+        }
+
+        int old = states.get(id);
+        int base = id * ICONS.length;
+        int parent = paths.getParent(id);
+        for (int p = parent; p != PathTable.NOT_FOUND; p = paths.getParent(p)) {
+            int parentBase = p * ICONS.length;
+            if (old != 0) {
+                counts.decrementAndGet(parentBase + old - 1);
+            }
+            for (int i = 0; i < ICONS.length; i++) {
+                counts.addAndGet(parentBase + i, -counts.get(base + i));
+            }
+        }
+
+        paths.forEachInSubtree(id, this::reset);
+        paths.remove(id);
+
+        // drop the parents that were only created for the removed path
+        while (parent != PathTable.ROOT && states.get(parent) == 0 && !paths.hasChildren(parent)) {
+            int grandParent = paths.getParent(parent);
+            if (stateFile != null) {
+                stateFile.remove(parent);
+            }
+            paths.remove(parent);
+            parent = grandParent;
+        }
+
+        if (stateFile != null) {
+            for (int p = parent; p != PathTable.NOT_FOUND; p = paths.getParent(p)) {
+                persist(p);
+            }
+        }
+    }
+
+    private void reset(int id) {
+        if (stateFile != null) {
+            stateFile.remove(id);
+        }
+        if (states.get(id) != 0) {
+            states.set(id, 0);
+            size--;
+        }
+        int base = id * ICONS.length;
+        for (int i = 0; i < ICONS.length; i++) {
+            counts.set(base + i, 0);
+        }
+    }
+
+    /**
+     * Returns the icon with the highest severity among the given path and all its descendants.
+     *
+     * @param path under the sync dir.
+     * @return the aggregated icon, or {@link OverlayIcon#NONE} if the path is not indexed.
+     */
+    public OverlayIcon getIcon(Path path) {
+        return getIcon(paths.find(path));
+    }
+
+    /**
+     * Returns the icon with the highest severity among the given path and all its descendants. Does not allocate.
+     *
+     * @param id of the path, as returned by {@link #find(String)}.
+     * @return the aggregated icon, or {@link OverlayIcon#NONE} if the path is not indexed.
+     */
+    public OverlayIcon getIcon(int id) {
+        AtomicIntegerArray states = this.states;
+        AtomicIntegerArray counts = this.counts;
+        if (id < 0 || id >= states.length()) {
+            return OverlayIcon.NONE;
+        }
+        int state = states.get(id);
+        int ordinal = state == 0 ? OverlayIcon.NONE.ordinal() : state - 1;
+        int base = id * ICONS.length;
+        if (base + ICONS.length <= counts.length()) {
+            for (int i = ICONS.length - 1; i > ordinal; i--) {
+                if (counts.get(base + i) > 0) {
+                    return ICONS[i];
+                }
+            }
+        }
+        return ICONS[ordinal];
+    }
+
+    /**
+     * Looks up the ID of a path in its native string form. Does not allocate.
+     *
+     * @param path absolute path.
+     * @return the ID, or {@link PathTable#NOT_FOUND} if neither the path nor any of its descendants is indexed.
+     */
+    public int find(String path) {
+        return paths.find(path);
+    }
+
+    public Path toPath(int id) {
+        return paths.toPath(id);
+    }
+
+    public boolean contains(Path path) {
+        return contains(paths.find(path));
+    }
+
+    /**
+     * @param id of the path, as returned by {@link #find(String)}.
+     * @return whether the path itself is indexed, not only some of its descendants.
+     */
+    public boolean contains(int id) {
+        AtomicIntegerArray states = this.states;
+        return id >= 0 && id < states.length() && states.get(id) != 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int id) {
+        int capacity = states.length();
+        if (id < capacity) {
+            return;
+        }
+        while (capacity <= id) {
+            capacity *= 2;
+        }
+        AtomicIntegerArray newStates = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < states.length(); i++) {
+            newStates.set(i, states.get(i));
+        }
+        AtomicIntegerArray newCounts = new AtomicIntegerArray(capacity * ICONS.length);
+        for (int i = 0; i < counts.length(); i++) {
+            newCounts.set(i, counts.get(i));
+        }
+        counts = newCounts;
+        states = newStates;
+    }
+
+    private boolean isIndexed(Path path) {
+        return path.startsWith(syncDir) && !syncDir.equals(path);
+    }
+
+}
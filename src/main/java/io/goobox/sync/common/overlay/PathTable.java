@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+import com.liferay.nativity.util.OSDetector;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Compact table of the paths under a root directory with integer IDs.
+ * <p>
+ * The paths form a trie: every entry stores only its own name and the ID of its parent, so the names of the
+ * directories are kept once no matter how many descendants they have. The entries of all directories share one
+ * open-addressing hash table keyed by parent ID and name. A native path string is resolved segment by segment
+ * directly in that table, without creating any {@link Path} or {@link String}. The IDs of removed entries are
+ * reused.
+ * </p>
+ * <p>
+ * On Windows the names are compared ignoring case, like {@link Path#startsWith(Path)} and {@link Path#equals(Object)}
+ * do there. The table is thread-safe: lookups share a read lock and modifications take the write lock.
+ * </p>
+ */
+public class PathTable {
+
+    /**
+     * ID of the root directory.
+     */
+    public static final int ROOT = 0;
+
+    /**
+     * Returned for paths that are not in the table.
+     */
+    public static final int NOT_FOUND = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Path root;
+    private final String rootString;
+    private final boolean ignoreCase;
+    private final char altSeparator;
+    private final StampedLock lock = new StampedLock();
+
+    private int[] parents;
+    private String[] names;
+    private int[] hashes;
+    private int[] firstChild;
+    private int[] nextSibling;
+    /**
+     * The hash table: ID + 1 of an entry, or 0 if empty.
+     */
+    private int[] slots;
+    private int next;
+    private int free;
+    private int size;
+
+    public PathTable(Path root) {
+        this(root, OSDetector.isWindows());
+    }
+
+    public PathTable(Path root, boolean ignoreCase) {
+        this.root = root;
+        this.rootString = root.toString();
+        this.ignoreCase = ignoreCase;
+        this.altSeparator = File.separatorChar == '\\' ? '/' : File.separatorChar;
+        clear();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Removes all entries except the root.
+     */
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            parents = new int[INITIAL_CAPACITY];
+            names = new String[INITIAL_CAPACITY];
+            hashes = new int[INITIAL_CAPACITY];
+            firstChild = new int[INITIAL_CAPACITY];
+            nextSibling = new int[INITIAL_CAPACITY];
+            slots = new int[INITIAL_CAPACITY * 2];
+            parents[ROOT] = NOT_FOUND;
+            firstChild[ROOT] = NOT_FOUND;
+            nextSibling[ROOT] = NOT_FOUND;
+            next = ROOT + 1;
+            free = NOT_FOUND;
+            size = 1;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Looks up a path in its native string form. Does not allocate.
+     *
+     * @param path absolute path.
+     * @return the ID of the path, or {@link #NOT_FOUND} if it is not in the table or not under the root.
+     */
+    public int find(String path) {
+        long stamp = lock.readLock();
+        try {
+            return resolve(path, false);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int find(Path path) {
+        return find(path.toString());
+    }
+
+    /**
+     * Returns the ID of the given path, adding it and its missing parents to the table.
+     *
+     * @param path under the root, or the root itself.
+     * @return the ID of the path, or {@link #NOT_FOUND} if it is not under the root.
+     */
+    public int intern(Path path) {
+        String s = path.toString();
+        long stamp = lock.readLock();
+        try {
+            int id = resolve(s, false);
+            if (id != NOT_FOUND || !startsWithRoot(s)) {
+                return id;
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        stamp = lock.writeLock();
+        try {
+            return resolve(s, true);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @param id of an entry.
+     * @return the ID of the parent, or {@link #NOT_FOUND} for the root.
+     */
+    public int getParent(int id) {
+        long stamp = lock.readLock();
+        try {
+            return parents[id];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param id of an entry.
+     * @return the file name of the entry, or null for the root.
+     */
+    public String getName(int id) {
+        long stamp = lock.readLock();
+        try {
+            return names[id];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean hasChildren(int id) {
+        long stamp = lock.readLock();
+        try {
+            return firstChild[id] != NOT_FOUND;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Creates the path of the given entry.
+     *
+     * @param id of an entry.
+     * @return the path.
+     */
+    public Path toPath(int id) {
+        long stamp = lock.readLock();
+        try {
+            Path path = root;
+            for (String name : namesOf(id)) {
+                path = path.resolve(name);
+            }
+            return path;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Calls the action with the ID of the given entry and of all its descendants, parents before children.
+     *
+     * @param id     of an entry.
+     * @param action to call. Must not modify the table.
+     */
+    public void forEachInSubtree(int id, IntConsumer action) {
+        long stamp = lock.readLock();
+        try {
+            action.accept(id);
+            IntStack stack = new IntStack();
+            stack.pushChildren(id);
+            while (!stack.isEmpty()) {
+                int child = stack.pop();
+                action.accept(child);
+                stack.pushChildren(child);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Removes the given entry and all its descendants. Their IDs may be returned for other paths afterwards.
+     *
+     * @param id of an entry other than the root.
+     */
+    public void remove(int id) {
+        if (id == ROOT) {
+            throw new IllegalArgumentException("Cannot remove the root");
+        }
+        long stamp = lock.writeLock();
+        try {
+            unlink(id);
+            IntStack stack = new IntStack();
+            stack.push(id);
+            while (!stack.isEmpty()) {
+                int e = stack.pop();
+                stack.pushChildren(e);
+                deleteSlot(e);
+                names[e] = null;
+                parents[e] = NOT_FOUND;
+                firstChild[e] = NOT_FOUND;
+                nextSibling[e] = free;
+                free = e;
+                size--;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return the number of entries including the root.
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private boolean startsWithRoot(String path) {
+        int length = rootString.length();
+        return path.regionMatches(ignoreCase, 0, rootString, 0, length)
+                && (path.length() == length || isSeparator(path.charAt(length))
+                || length > 0 && isSeparator(rootString.charAt(length - 1)));
+    }
+
+    /**
+     * Walks the segments of the path after the root. Must be called with the read lock, or with the write lock if
+     * missing entries are created.
+     */
+    private int resolve(String path, boolean create) {
+        if (!startsWithRoot(path)) {
+            return NOT_FOUND;
+        }
+        int id = ROOT;
+        int length = path.length();
+        int i = rootString.length();
+        while (i < length) {
+            char c = path.charAt(i);
+            if (isSeparator(c)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int h = 0;
+            for (; i < length && !isSeparator(c = path.charAt(i)); i++) {
+                h = 31 * h + fold(c);
+            }
+            h = mix(id, h);
+            int child = findChild(id, path, start, i, h);
+            if (child == NOT_FOUND) {
+                if (!create) {
+                    return NOT_FOUND;
+                }
+                child = add(id, path.substring(start, i), h);
+            }
+            id = child;
+        }
+        return id;
+    }
+
+    private int findChild(int parent, String path, int start, int end, int h) {
+        int mask = slots.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            int slot = slots[i];
+            if (slot == 0) {
+                return NOT_FOUND;
+            }
+            int id = slot - 1;
+            if (hashes[id] == h && parents[id] == parent && names[id].length() == end - start
+                    && names[id].regionMatches(ignoreCase, 0, path, start, end - start)) {
+                return id;
+            }
+        }
+    }
+
+    private int add(int parent, String name, int h) {
+        int id;
+        if (free != NOT_FOUND) {
+            id = free;
+            free = nextSibling[id];
+        } else {
+            id = next++;
+            if (id == parents.length) {
+                grow();
+            }
+        }
+        parents[id] = parent;
+        names[id] = name;
+        hashes[id] = h;
+        firstChild[id] = NOT_FOUND;
+        nextSibling[id] = firstChild[parent];
+        firstChild[parent] = id;
+        insertSlot(id);
+        size++;
+        return id;
+    }
+
+    private void grow() {
+        int capacity = parents.length * 2;
+        parents = Arrays.copyOf(parents, capacity);
+        names = Arrays.copyOf(names, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+
+        // keep the load factor of the hash table at most 1/2
+        slots = new int[capacity * 2];
+        for (int id = ROOT + 1; id < next - 1; id++) {
+            if (names[id] != null) {
+                insertSlot(id);
+            }
+        }
+    }
+
+    private void insertSlot(int id) {
+        int mask = slots.length - 1;
+        int i = hashes[id] & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = id + 1;
+    }
+
+    /**
+     * Deletes the slot of the entry and shifts back the following slots of the probe sequence.
+     */
+    private void deleteSlot(int id) {
+        int mask = slots.length - 1;
+        int i = hashes[id] & mask;
+        while (slots[i] != id + 1) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = 0;
+        for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+            int home = hashes[slots[j] - 1] & mask;
+            // move the entry unless its home slot lies cyclically in (i, j]
+            boolean stays = i <= j ? i < home && home <= j : i < home || home <= j;
+            if (!stays) {
+                slots[i] = slots[j];
+                slots[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    private void unlink(int id) {
+        int parent = parents[id];
+        if (firstChild[parent] == id) {
+            firstChild[parent] = nextSibling[id];
+            return;
+        }
+        for (int e = firstChild[parent]; e != NOT_FOUND; e = nextSibling[e]) {
+            if (nextSibling[e] == id) {
+                nextSibling[e] = nextSibling[id];
+                return;
+            }
+        }
+    }
+
+    private String[] namesOf(int id) {
+        int depth = 0;
+        for (int e = id; e != ROOT; e = parents[e]) {
+            depth++;
+        }
+        String[] result = new String[depth];
+        for (int e = id; e != ROOT; e = parents[e]) {
+            result[--depth] = names[e];
+        }
+        return result;
+    }
+
+    private boolean isSeparator(char c) {
+        return c == File.separatorChar || c == altSeparator;
+    }
+
+    private char fold(char c) {
+        return ignoreCase ? Character.toLowerCase(Character.toUpperCase(c)) : c;
+    }
+
+    private static int mix(int parent, int nameHash) {
+        int h = parent * 0x9e3779b9 + nameHash;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Stack of IDs for walking a subtree without recursion.
+     */
+    private final class IntStack {
+
+        private int[] ids = new int[16];
+        private int top = 0;
+
+        void push(int id) {
+            if (top == ids.length) {
+                ids = Arrays.copyOf(ids, top * 2);
+            }
+            ids[top++] = id;
+        }
+
+        void pushChildren(int id) {
+            for (int child = firstChild[id]; child != NOT_FOUND; child = nextSibling[child]) {
+                push(child);
+            }
+        }
+
+        int pop() {
+            return ids[--top];
+        }
+
+        boolean isEmpty() {
+            return top == 0;
+        }
+
+    }
+
+}
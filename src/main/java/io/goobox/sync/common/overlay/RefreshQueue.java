@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of paths waiting for an icon refresh.
+ * <p>
+ * Paths added within the debounce window are merged into a single batch. A path and its parents are queued only
+ * once, no matter how many of their descendants change. If the number of pending paths exceeds the capacity, they
+ * are all collapsed into a single refresh of the sync dirs. Refreshes of the sync dirs are never delayed by the
+ * debounce window.
+ * </p>
+ * <p>
+ * A single queue can serve several sync dirs, so that one thread delivers the refreshes of all of them. Paths
+ * outside the sync dirs are ignored.
+ * </p>
+ * <p>
+ * After {@link #close()} the pending paths are delivered at once and {@link #take()} returns null when they are
+ * drained.
+ * </p>
+ */
+public class RefreshQueue {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 200;
+
+    private final int capacity;
+    private final long debounceNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    private final List<Path> syncDirs = new ArrayList<>();
+    private Set<Path> pending = new LinkedHashSet<>();
+    private Set<Path> pendingRoots = new LinkedHashSet<>();
+    private boolean overflow = false;
+    private boolean closed = false;
+    private long firstPendingNanos;
+
+    public RefreshQueue(Path syncDir) {
+        this(syncDir, DEFAULT_CAPACITY, DEFAULT_DEBOUNCE_MILLIS);
+    }
+
+    public RefreshQueue(Path syncDir, int capacity, long debounceMillis) {
+        this(capacity, debounceMillis);
+        syncDirs.add(syncDir);
+    }
+
+    /**
+     * Creates a queue without sync dirs. They are added with {@link #addSyncDir(Path)}.
+     */
+    public RefreshQueue(int capacity, long debounceMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+    }
+
+    public void addSyncDir(Path syncDir) {
+        lock.lock();
+        try {
+            if (!syncDirs.contains(syncDir)) {
+                syncDirs.add(syncDir);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting paths under the given sync dir. Refreshes already queued are still delivered.
+     */
+    public void removeSyncDir(Path syncDir) {
+        lock.lock();
+        try {
+            syncDirs.remove(syncDir);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a refresh of the given path and all its parents under its sync dir.
+     *
+     * @param path under a sync dir.
+     */
+    public void add(Path path) {
+        lock.lock();
+        try {
+            if (overflow) {
+                // collapsed into a refresh of the sync dirs
+                return;
+            }
+            Path syncDir = findSyncDir(path);
+            if (syncDir == null) {
+                return;
+            }
+            boolean wasEmpty = isEmpty();
+            for (Path p = path; p != null && !p.equals(syncDir); p = p.getParent()) {
+                if (!pending.add(p)) {
+                    // the parents are already queued too
+                    break;
+                }
+            }
+            if (pending.size() > capacity) {
+                pending = new LinkedHashSet<>();
+                pendingRoots.addAll(syncDirs);
+                overflow = true;
+            }
+            if (wasEmpty && !isEmpty()) {
+                firstPendingNanos = System.nanoTime();
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * The innermost sync dir wins if they are nested.
+     */
+    private Path findSyncDir(Path path) {
+        Path result = null;
+        for (Path syncDir : syncDirs) {
+            if (path.startsWith(syncDir)
+                    && (result == null || syncDir.getNameCount() > result.getNameCount())) {
+                result = syncDir;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Queues a refresh of all sync dirs. It is delivered with the next batch without waiting for the debounce window.
+     */
+    public void addRoot() {
+        lock.lock();
+        try {
+            if (!syncDirs.isEmpty()) {
+                pendingRoots.addAll(syncDirs);
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a refresh of the given sync dir. It is delivered with the next batch without waiting for the debounce
+     * window.
+     */
+    public void addRoot(Path syncDir) {
+        lock.lock();
+        try {
+            pendingRoots.add(syncDir);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops waiting for the debounce window. Paths can still be added, but the queue is expected to be drained.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the next batch is ready and returns it.
+     *
+     * @return the paths to refresh, the sync dirs first if queued, or null if the queue is closed and drained.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public String[] take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            // wait for more changes unless a sync dir needs a refresh
+            long remaining;
+            while (pendingRoots.isEmpty() && !closed
+                    && (remaining = firstPendingNanos + debounceNanos - System.nanoTime()) > 0) {
+                notEmpty.awaitNanos(remaining);
+            }
+
+            String[] batch = new String[pendingRoots.size() + pending.size()];
+            int i = 0;
+            for (Path p : pendingRoots) {
+                batch[i++] = p.toString();
+            }
+            for (Path p : pending) {
+                batch[i++] = p.toString();
+            }
+
+            pending = new LinkedHashSet<>();
+            pendingRoots = new LinkedHashSet<>();
+            overflow = false;
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of paths waiting for a refresh.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return pendingRoots.size() + pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isEmpty() {
+        return pendingRoots.isEmpty() && pending.isEmpty();
+    }
+
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.scan;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.PriorityQueue;
+
+/**
+ * Immutable listing of the entries under a root directory.
+ * <p>
+ * Entries are kept in parallel arrays sorted by their path relative to the root, using '/' as separator. There is
+ * no object per entry except for the path string, which keeps the heap small on trees with millions of files.
+ * </p>
+ */
+public final class Snapshot {
+
+    public static final byte FILE = 0;
+    public static final byte DIRECTORY = 1;
+    public static final byte SYMLINK = 2;
+    public static final byte OTHER = 3;
+
+    private final Path root;
+    private final String[] paths;
+    private final long[] sizes;
+    private final long[] lastModified;
+    private final byte[] types;
+    private final String[] hashes;
+
+    private Snapshot(Path root, String[] paths, long[] sizes, long[] lastModified, byte[] types, String[] hashes) {
+        this.root = root;
+        this.paths = paths;
+        this.sizes = sizes;
+        this.lastModified = lastModified;
+        this.types = types;
+        this.hashes = hashes;
+    }
+
+    public static Builder builder(Path root) {
+        return new Builder(root, 256);
+    }
+
+    /**
+     * Merges builders into one snapshot, copying every entry once. Each builder must be {@link Builder#sort() sorted}
+     * and is emptied while merged.
+     *
+     * @param root     of the snapshot.
+     * @param builders sorted builders with distinct paths.
+     * @return the new snapshot.
+     * @throws IllegalStateException if a path was added twice.
+     */
+    static Snapshot merge(Path root, Collection<Builder> builders) {
+        int total = 0;
+        boolean withHashes = false;
+        PriorityQueue<Builder> queue = new PriorityQueue<>(Math.max(1, builders.size()),
+                (a, b) -> a.paths[a.cursor].compareTo(b.paths[b.cursor]));
+        for (Builder builder : builders) {
+            total += builder.size;
+            withHashes |= builder.hashes != null;
+            if (builder.size > 0) {
+                builder.cursor = 0;
+                queue.add(builder);
+            }
+        }
+
+        String[] paths = new String[total];
+        long[] sizes = new long[total];
+        long[] lastModified = new long[total];
+        byte[] types = new byte[total];
+        String[] hashes = withHashes ? new String[total] : null;
+        int i = 0;
+        Builder builder;
+        while ((builder = queue.poll()) != null) {
+            int j = builder.cursor++;
+            paths[i] = builder.paths[j];
+            sizes[i] = builder.sizes[j];
+            lastModified[i] = builder.lastModified[j];
+            types[i] = builder.types[j];
+            if (builder.hashes != null) {
+                hashes[i] = builder.hashes[j];
+            }
+            if (i > 0 && paths[i].equals(paths[i - 1])) {
+                throw new IllegalStateException("Duplicate path: " + paths[i]);
+            }
+            i++;
+            if (builder.cursor < builder.size) {
+                queue.add(builder);
+            } else {
+                builder.clear();
+            }
+        }
+        return new Snapshot(root, paths, sizes, lastModified, types, hashes);
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public int size() {
+        return paths.length;
+    }
+
+    /**
+     * @param i index of the entry.
+     * @return the path of the entry relative to the root with '/' as separator.
+     */
+    public String getPath(int i) {
+        return paths[i];
+    }
+
+    public Path toPath(int i) {
+        return root.resolve(paths[i].replace('/', File.separatorChar));
+    }
+
+    public long getSize(int i) {
+        return sizes[i];
+    }
+
+    public long getLastModified(int i) {
+        return lastModified[i];
+    }
+
+    public byte getType(int i) {
+        return types[i];
+    }
+
+    public boolean isDirectory(int i) {
+        return types[i] == DIRECTORY;
+    }
+
+    /**
+     * @param i index of the entry.
+     * @return the content hash of the entry, or null if not known.
+     */
+    public String getHash(int i) {
+        return hashes == null ? null : hashes[i];
+    }
+
+    /**
+     * @param path relative to the root with '/' as separator.
+     * @return the index of the entry, or a negative value if not found.
+     */
+    public int indexOf(String path) {
+        return Arrays.binarySearch(paths, path);
+    }
+
+    public static class Builder {
+
+        private final Path root;
+        private String[] paths;
+        private long[] sizes;
+        private long[] lastModified;
+        private byte[] types;
+        private String[] hashes;
+        private int size;
+        private int cursor;
+
+        Builder(Path root, int initialCapacity) {
+            this.root = root;
+            int capacity = Math.max(1, initialCapacity);
+            paths = new String[capacity];
+            sizes = new long[capacity];
+            lastModified = new long[capacity];
+            types = new byte[capacity];
+        }
+
+        public Builder add(String path, byte type, long size, long lastModified) {
+            return add(path, type, size, lastModified, null);
+        }
+
+        /**
+         * Adds an entry. Entries may be added in any order.
+         *
+         * @param path         relative to the root with '/' as separator.
+         * @param type         one of {@link #FILE}, {@link #DIRECTORY}, {@link #SYMLINK}, {@link #OTHER}.
+         * @param size         in bytes.
+         * @param lastModified in milliseconds.
+         * @param hash         content hash, or null if not known.
+         * @return this builder.
+         */
+        public Builder add(String path, byte type, long size, long lastModified, String hash) {
+            if (this.size == paths.length) {
+                grow();
+            }
+            paths[this.size] = path;
+            sizes[this.size] = size;
+            this.lastModified[this.size] = lastModified;
+            types[this.size] = type;
+            if (hash != null) {
+                if (hashes == null) {
+                    hashes = new String[paths.length];
+                }
+                hashes[this.size] = hash;
+            }
+            this.size++;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Sorts the entries by path and creates the snapshot.
+         *
+         * @return the new snapshot.
+         * @throws IllegalStateException if a path was added twice.
+         */
+        public Snapshot build() {
+            sort();
+            for (int i = 1; i < size; i++) {
+                if (paths[i].equals(paths[i - 1])) {
+                    throw new IllegalStateException("Duplicate path: " + paths[i]);
+                }
+            }
+            Snapshot snapshot = new Snapshot(root, paths, sizes, lastModified, types, hashes);
+            clear();
+            return snapshot;
+        }
+
+        /**
+         * Sorts the entries by path into arrays of the exact size.
+         */
+        void sort() {
+            if (isSorted() && paths.length == size) {
+                return;
+            }
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            if (!isSorted()) {
+                mergeSort(order, new int[size], 0, size);
+            }
+
+            String[] sortedPaths = new String[size];
+            long[] sortedSizes = new long[size];
+            long[] sortedLastModified = new long[size];
+            byte[] sortedTypes = new byte[size];
+            String[] sortedHashes = hashes == null ? null : new String[size];
+            for (int i = 0; i < size; i++) {
+                int j = order[i];
+                sortedPaths[i] = paths[j];
+                sortedSizes[i] = sizes[j];
+                sortedLastModified[i] = lastModified[j];
+                sortedTypes[i] = types[j];
+                if (sortedHashes != null) {
+                    sortedHashes[i] = hashes[j];
+                }
+            }
+            paths = sortedPaths;
+            sizes = sortedSizes;
+            lastModified = sortedLastModified;
+            types = sortedTypes;
+            hashes = sortedHashes;
+        }
+
+        /**
+         * Drops the entries, so that a built snapshot does not share its arrays with the builder.
+         */
+        private void clear() {
+            paths = new String[1];
+            sizes = new long[1];
+            lastModified = new long[1];
+            types = new byte[1];
+            hashes = null;
+            size = 0;
+        }
+
+        private boolean isSorted() {
+            for (int i = 1; i < size; i++) {
+                if (paths[i - 1].compareTo(paths[i]) > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Sorts the indexes by path without boxing them.
+         */
+        private void mergeSort(int[] order, int[] tmp, int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            mergeSort(order, tmp, from, mid);
+            mergeSort(order, tmp, mid, to);
+            if (paths[order[mid - 1]].compareTo(paths[order[mid]]) <= 0) {
+                return;
+            }
+            System.arraycopy(order, from, tmp, from, to - from);
+            int i = from, j = mid, k = from;
+            while (i < mid && j < to) {
+                order[k++] = paths[tmp[i]].compareTo(paths[tmp[j]]) <= 0 ? tmp[i++] : tmp[j++];
+            }
+            while (i < mid) {
+                order[k++] = tmp[i++];
+            }
+            while (j < to) {
+                order[k++] = tmp[j++];
+            }
+        }
+
+        private void grow() {
+            int capacity = Math.max(paths.length * 2, 8);
+            paths = Arrays.copyOf(paths, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            lastModified = Arrays.copyOf(lastModified, capacity);
+            types = Arrays.copyOf(types, capacity);
+            if (hashes != null) {
+                hashes = Arrays.copyOf(hashes, capacity);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.scan;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Computes the changes between two snapshots of the same root.
+ * <p>
+ * Both snapshots are sorted by path, so they are merged in linear time. Changes are streamed to a {@link Listener}
+ * instead of being collected. A file missing from the current snapshot and a new file with the same size, last
+ * modified time and hash are reported as a move. Only the removed files with a known hash are kept in memory for the
+ * move detection, which makes a second merge pass necessary.
+ * </p>
+ */
+public class SnapshotDiff {
+
+    /**
+     * Receives the changes. Entries are identified by their index in the respective snapshot.
+     */
+    public interface Listener {
+
+        void added(Snapshot current, int index);
+
+        void removed(Snapshot previous, int index);
+
+        /**
+         * Invoked for files with a different size, last modified time or hash, and for entries that changed type.
+         */
+        void modified(Snapshot previous, int previousIndex, Snapshot current, int currentIndex);
+
+        void moved(Snapshot previous, int previousIndex, Snapshot current, int currentIndex);
+
+    }
+
+    private final Snapshot previous;
+    private final Snapshot current;
+    private final Function<Path, String> hasher;
+
+    public SnapshotDiff(Snapshot previous, Snapshot current) {
+        this(previous, current, null);
+    }
+
+    /**
+     * @param previous snapshot, usually restored from the persisted state.
+     * @param current  snapshot, usually just scanned.
+     * @param hasher   computes the hash of a new file if the current snapshot doesn't have it, or null to detect only
+     *                 moves of files with a known hash in both snapshots.
+     */
+    public SnapshotDiff(Snapshot previous, Snapshot current, Function<Path, String> hasher) {
+        this.previous = previous;
+        this.current = current;
+        this.hasher = hasher;
+    }
+
+    public void run(Listener listener) {
+        Map<String, Deque<Integer>> candidates = collectMoveCandidates();
+
+        int i = 0, j = 0;
+        while (i < previous.size() || j < current.size()) {
+            int cmp = i == previous.size() ? 1
+                    : j == current.size() ? -1
+                    : previous.getPath(i).compareTo(current.getPath(j));
+            if (cmp == 0) {
+                if (isModified(i, j)) {
+                    listener.modified(previous, i, current, j);
+                }
+                i++;
+                j++;
+            } else if (cmp < 0) {
+                if (!isMoveCandidate(i)) {
+                    listener.removed(previous, i);
+                }
+                i++;
+            } else {
+                int from = findMoveSource(candidates, j);
+                if (from == -1) {
+                    listener.added(current, j);
+                } else {
+                    listener.moved(previous, from, current, j);
+                }
+                j++;
+            }
+        }
+
+        // candidates not matched by any new file
+        int[] removed = candidates.values().stream()
+                .flatMap(Deque::stream)
+                .mapToInt(Integer::intValue)
+                .sorted()
+                .toArray();
+        for (int index : removed) {
+            listener.removed(previous, index);
+        }
+    }
+
+    /**
+     * First merge pass: groups the removed files with a known hash by size and last modified time.
+     */
+    private Map<String, Deque<Integer>> collectMoveCandidates() {
+        Map<String, Deque<Integer>> candidates = new HashMap<>();
+        int i = 0, j = 0;
+        while (i < previous.size()) {
+            int cmp = j == current.size() ? -1 : previous.getPath(i).compareTo(current.getPath(j));
+            if (cmp == 0) {
+                i++;
+                j++;
+            } else if (cmp < 0) {
+                if (isMoveCandidate(i)) {
+                    candidates.computeIfAbsent(key(previous, i), k -> new ArrayDeque<>()).add(i);
+                }
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return candidates;
+    }
+
+    private int findMoveSource(Map<String, Deque<Integer>> candidates, int j) {
+        if (candidates.isEmpty() || current.getType(j) != Snapshot.FILE) {
+            return -1;
+        }
+        Deque<Integer> sources = candidates.get(key(current, j));
+        if (sources == null) {
+            return -1;
+        }
+
+        String hash = current.getHash(j);
+        if (hash == null && hasher != null) {
+            hash = hasher.apply(current.toPath(j));
+        }
+        if (hash == null) {
+            return -1;
+        }
+        for (Integer from : sources) {
+            if (hash.equals(previous.getHash(from))) {
+                sources.remove(from);
+                return from;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isMoveCandidate(int i) {
+        return previous.getType(i) == Snapshot.FILE && previous.getHash(i) != null;
+    }
+
+    private boolean isModified(int i, int j) {
+        if (previous.getType(i) != current.getType(j)) {
+            return true;
+        }
+        if (previous.getType(i) != Snapshot.FILE) {
+            return false;
+        }
+        String previousHash = previous.getHash(i);
+        String currentHash = current.getHash(j);
+        return previous.getSize(i) != current.getSize(j)
+                || previous.getLastModified(i) != current.getLastModified(j)
+                || previousHash != null && currentHash != null && !previousHash.equals(currentHash);
+    }
+
+    private static String key(Snapshot snapshot, int i) {
+        return snapshot.getSize(i) + ":" + snapshot.getLastModified(i);
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.scan;
+
+import io.goobox.sync.common.ExclusionRules;
+import io.goobox.sync.common.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scans a directory tree in parallel and produces a {@link Snapshot} of it.
+ * <p>
+ * Every directory is listed by a separate fork/join task. The attributes of each entry are read once, without
+ * following symbolic links. Entries matching the exclusion rules are skipped and excluded directories are not
+ * descended into. Directories that cannot be read are logged and skipped.
+ * </p>
+ * <p>
+ * Each listing is sorted by its task into arrays of its own size, and the sorted listings are merged into the arrays
+ * of the snapshot at the end, so the heap holds at most about twice the snapshot.
+ * </p>
+ */
+public class SnapshotScanner {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotScanner.class);
+
+    private static final int LISTING_CAPACITY = 8;
+
+    private final Path root;
+    private final ExclusionRules rules;
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a scanner of the sync dir using the current exclusion rules and a pool shared by the default scanners.
+     * The listing blocks on I/O, so it does not run in the common pool, which the app uses for its computations.
+     */
+    public SnapshotScanner() {
+        this(Utils.getSyncDir(), Utils.getExclusionRules(), DefaultPool.INSTANCE);
+    }
+
+    public SnapshotScanner(Path root, ExclusionRules rules, ForkJoinPool pool) {
+        this.root = root;
+        this.rules = rules;
+        this.pool = pool;
+    }
+
+    /**
+     * Scans the tree below the root. The root itself is not part of the snapshot.
+     *
+     * @return the snapshot of the tree.
+     * @throws IOException if the root is not a readable directory.
+     */
+    public Snapshot scan() throws IOException {
+        if (!Files.isDirectory(root)) {
+            throw new IOException("Not a directory: " + root);
+        }
+
+        long start = System.currentTimeMillis();
+        Queue<Snapshot.Builder> listings = new ConcurrentLinkedQueue<>();
+        pool.invoke(new ListTask(root, "", listings));
+
+        Snapshot snapshot = Snapshot.merge(root, listings);
+        logger.debug("Scanned {} entries under {} in {} ms", snapshot.size(), root, System.currentTimeMillis() - start);
+        return snapshot;
+    }
+
+    private class ListTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final String prefix;
+        private final Queue<Snapshot.Builder> listings;
+
+        ListTask(Path dir, String prefix, Queue<Snapshot.Builder> listings) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.listings = listings;
+        }
+
+        @Override
+        protected void compute() {
+            Snapshot.Builder listing = new Snapshot.Builder(root, LISTING_CAPACITY);
+            List<ListTask> subdirs = new ArrayList<>();
+
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        logger.warn("Cannot read attributes of {}: {}", entry, e.getMessage());
+                        continue;
+                    }
+
+                    boolean directory = attrs.isDirectory();
+                    if (rules.isExcluded(name, directory)) {
+                        continue;
+                    }
+
+                    String path = prefix + name;
+                    listing.add(path, typeOf(attrs), directory ? 0 : attrs.size(), attrs.lastModifiedTime().toMillis());
+                    if (directory) {
+                        subdirs.add(new ListTask(entry, path + '/', listings));
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Cannot list directory {}: {}", dir, e.getMessage());
+            }
+
+            if (listing.size() > 0) {
+                listing.sort();
+                listings.add(listing);
+            }
+            invokeAll(subdirs);
+        }
+
+    }
+
+    /**
+     * Pool for the blocking directory listings of the default scanners. Its threads are daemons and end when idle.
+     */
+    private static final class DefaultPool {
+
+        static final ForkJoinPool INSTANCE = new ForkJoinPool(2 * Runtime.getRuntime().availableProcessors(),
+                pool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("Snapshot scanner " + thread.getPoolIndex());
+                    return thread;
+                }, null, false);
+
+    }
+
+    private static byte typeOf(BasicFileAttributes attrs) {
+        if (attrs.isRegularFile()) {
+            return Snapshot.FILE;
+        } else if (attrs.isDirectory()) {
+            return Snapshot.DIRECTORY;
+        } else if (attrs.isSymbolicLink()) {
+            return Snapshot.SYMLINK;
+        }
+        return Snapshot.OTHER;
+    }
+
+}
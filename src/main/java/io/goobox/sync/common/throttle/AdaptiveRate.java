@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.throttle;
+
+/**
+ * Adjusts the limit of a bucket to the latency reported by the app, like a congestion control.
+ * <p>
+ * The baseline is the lowest latency seen over the last minute. When the smoothed latency rises above the baseline,
+ * the traffic is queueing somewhere on the path, so the limit is cut multiplicatively. Otherwise it grows by a tenth
+ * per interval up to the configured limit. Without a configured limit, the bucket becomes unlimited again once the
+ * limit is well above the actual rate.
+ * </p>
+ */
+final class AdaptiveRate {
+
+    static final long INTERVAL_NANOS = 500_000_000L;
+    static final long WINDOW_NANOS = 60_000_000_000L;
+    static final long MIN_LIMIT = 16 * 1024;
+
+    private static final double TOLERANCE = 1.5;
+    private static final long SLACK_NANOS = 5_000_000L;
+    private static final double DECREASE = 0.7;
+    private static final double SMOOTHING = 0.2;
+
+    private final TokenBucket bucket;
+    private long ceiling;
+    private long baseline;
+    private long windowMin;
+    private long windowStart;
+    private long lastAdjust;
+    private double smoothed = -1;
+
+    AdaptiveRate(TokenBucket bucket) {
+        this.bucket = bucket;
+    }
+
+    /**
+     * Forgets the latency history and restores the configured limit.
+     *
+     * @param ceiling the configured limit in bytes per second, or 0 for unlimited.
+     */
+    synchronized void reset(long ceiling) {
+        this.ceiling = ceiling;
+        smoothed = -1;
+        bucket.setLimit(ceiling);
+    }
+
+    synchronized void sample(long latencyNanos, long nowNanos) {
+        if (smoothed < 0) {
+            baseline = windowMin = smoothed = latencyNanos;
+            windowStart = lastAdjust = nowNanos;
+            return;
+        }
+        baseline = Math.min(baseline, latencyNanos);
+        windowMin = Math.min(windowMin, latencyNanos);
+        if (nowNanos - windowStart >= WINDOW_NANOS) {
+            // let the baseline follow a path that got slower for good
+            baseline = windowMin;
+            windowMin = latencyNanos;
+            windowStart = nowNanos;
+        }
+        smoothed += SMOOTHING * (latencyNanos - smoothed);
+
+        if (nowNanos - lastAdjust < INTERVAL_NANOS) {
+            return;
+        }
+        lastAdjust = nowNanos;
+
+        long limit = bucket.getLimit();
+        if (smoothed > baseline * TOLERANCE + SLACK_NANOS) {
+            long current = limit > 0 ? limit : bucket.getRate(nowNanos);
+            bucket.setLimit(Math.max(MIN_LIMIT, (long) (current * DECREASE)));
+        } else if (limit > 0) {
+            long increased = limit + Math.max(limit / 10, MIN_LIMIT);
+            if (ceiling > 0) {
+                bucket.setLimit(Math.min(increased, ceiling));
+            } else if (increased > 2 * bucket.getRate(nowNanos)) {
+                bucket.setLimit(0);
+            } else {
+                bucket.setLimit(increased);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.throttle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the bandwidth and the number of concurrent transfers of a sync app.
+ * <p>
+ * The limiter has a global token bucket and one per {@link Direction} nested in it, and each transfer gets its own
+ * bucket nested in the one of its direction. All limits are unlimited by default. Starting a transfer waits for a free
+ * slot if the direction has a concurrency limit, which keeps big syncs from saturating the disk as well:
+ * </p>
+ *
+ * <pre>
+ * try (Transfer transfer = limiter.start(Direction.UPLOAD);
+ *      InputStream in = transfer.wrap(Files.newInputStream(file))) {
+ *     upload(in);
+ * }
+ * </pre>
+ * <p>
+ * In adaptive mode the direction limits follow the latency samples reported with
+ * {@link #recordLatency(Direction, long)}, e.g. the round trip times of the API calls, and back off when it rises. The
+ * configured direction limits are then the upper bounds. The live rates are exposed as an MXBean once
+ * {@link #register(String) registered}.
+ * </p>
+ */
+public class BandwidthLimiter implements BandwidthLimiterMXBean, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BandwidthLimiter.class);
+
+    private final TokenBucket global = new TokenBucket(null, 0);
+    private final Map<Direction, TokenBucket> buckets = new EnumMap<>(Direction.class);
+    private final Map<Direction, AdaptiveRate> adaptiveRates = new EnumMap<>(Direction.class);
+    private final Map<Direction, Long> limits = new EnumMap<>(Direction.class);
+    private final Map<Direction, Slots> slots = new EnumMap<>(Direction.class);
+    private final Map<Direction, AtomicInteger> active = new EnumMap<>(Direction.class);
+    private final LongAdder throttledNanos = new LongAdder();
+    private volatile boolean adaptive;
+
+    private ObjectName objectName;
+
+    public BandwidthLimiter() {
+        for (Direction direction : Direction.values()) {
+            TokenBucket bucket = new TokenBucket(global, 0);
+            buckets.put(direction, bucket);
+            adaptiveRates.put(direction, new AdaptiveRate(bucket));
+            limits.put(direction, 0L);
+            slots.put(direction, new Slots());
+            active.put(direction, new AtomicInteger());
+        }
+    }
+
+    /**
+     * Starts an unlimited transfer, waiting for a free slot.
+     *
+     * @param direction of the transfer.
+     * @return the transfer, to be closed when done.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Transfer start(Direction direction) throws InterruptedException {
+        return start(direction, 0);
+    }
+
+    /**
+     * Starts a transfer, waiting for a free slot.
+     *
+     * @param direction of the transfer.
+     * @param limit     of the transfer alone in bytes per second, or 0 for unlimited.
+     * @return the transfer, to be closed when done.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Transfer start(Direction direction, long limit) throws InterruptedException {
+        slots.get(direction).acquire();
+        active.get(direction).incrementAndGet();
+        return new Transfer(this, direction, buckets.get(direction), limit);
+    }
+
+    void finished(Direction direction) {
+        active.get(direction).decrementAndGet();
+        slots.get(direction).release();
+    }
+
+    void throttled(long nanos) {
+        if (nanos > 0) {
+            throttledNanos.add(nanos);
+        }
+    }
+
+    /**
+     * Reports a latency sample for the adaptive mode. Ignored otherwise.
+     *
+     * @param direction    the samples are for.
+     * @param latencyNanos e.g. the round trip time of a request.
+     */
+    public void recordLatency(Direction direction, long latencyNanos) {
+        if (adaptive) {
+            adaptiveRates.get(direction).sample(latencyNanos, System.nanoTime());
+        }
+    }
+
+    public TokenBucket getBucket() {
+        return global;
+    }
+
+    public TokenBucket getBucket(Direction direction) {
+        return buckets.get(direction);
+    }
+
+    /**
+     * @param direction of the transfers.
+     * @return the configured limit, or 0 if unlimited. In adaptive mode, the actual limit may be lower.
+     */
+    public synchronized long getLimit(Direction direction) {
+        return limits.get(direction);
+    }
+
+    /**
+     * @param direction of the transfers.
+     * @param limit     in bytes per second, or 0 for unlimited.
+     */
+    public synchronized void setLimit(Direction direction, long limit) {
+        limit = Math.max(0, limit);
+        limits.put(direction, limit);
+        adaptiveRates.get(direction).reset(limit);
+    }
+
+    /**
+     * @param direction of the transfers.
+     * @return the maximum number of concurrent transfers, or 0 if unlimited.
+     */
+    public int getMaxConcurrentTransfers(Direction direction) {
+        return slots.get(direction).getMax();
+    }
+
+    /**
+     * Changes the maximum number of concurrent transfers. Running transfers are not stopped when it is lowered.
+     *
+     * @param direction of the transfers.
+     * @param max       number of transfers, or 0 for unlimited.
+     */
+    public void setMaxConcurrentTransfers(Direction direction, int max) {
+        slots.get(direction).setMax(max);
+    }
+
+    public int getActiveTransfers(Direction direction) {
+        return active.get(direction).get();
+    }
+
+    /**
+     * Registers the limiter in the platform MBean server. Failures are logged and otherwise ignored.
+     *
+     * @param name distinguishes the limiters of different apps.
+     */
+    public synchronized void register(String name) {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("io.goobox.sync.common:type=BandwidthLimiter,name="
+                    + ObjectName.quote(name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+                this.objectName = objectName;
+            }
+        } catch (JMException e) {
+            logger.warn("Cannot register bandwidth limiter: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Unregisters the limiter from the platform MBean server. Transfers can still be started.
+     */
+    @Override
+    public synchronized void close() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.warn("Cannot unregister bandwidth limiter: {}", e.getMessage());
+        }
+        objectName = null;
+    }
+
+    @Override
+    public long getLimit() {
+        return global.getLimit();
+    }
+
+    @Override
+    public void setLimit(long limit) {
+        global.setLimit(limit);
+    }
+
+    @Override
+    public long getUploadLimit() {
+        return getLimit(Direction.UPLOAD);
+    }
+
+    @Override
+    public void setUploadLimit(long limit) {
+        setLimit(Direction.UPLOAD, limit);
+    }
+
+    @Override
+    public long getDownloadLimit() {
+        return getLimit(Direction.DOWNLOAD);
+    }
+
+    @Override
+    public void setDownloadLimit(long limit) {
+        setLimit(Direction.DOWNLOAD, limit);
+    }
+
+    @Override
+    public long getEffectiveUploadLimit() {
+        return buckets.get(Direction.UPLOAD).getLimit();
+    }
+
+    @Override
+    public long getEffectiveDownloadLimit() {
+        return buckets.get(Direction.DOWNLOAD).getLimit();
+    }
+
+    @Override
+    public long getRate() {
+        return global.getRate();
+    }
+
+    @Override
+    public long getUploadRate() {
+        return buckets.get(Direction.UPLOAD).getRate();
+    }
+
+    @Override
+    public long getDownloadRate() {
+        return buckets.get(Direction.DOWNLOAD).getRate();
+    }
+
+    @Override
+    public long getUploadedBytes() {
+        return buckets.get(Direction.UPLOAD).getTotal();
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return buckets.get(Direction.DOWNLOAD).getTotal();
+    }
+
+    @Override
+    public int getActiveUploads() {
+        return getActiveTransfers(Direction.UPLOAD);
+    }
+
+    @Override
+    public int getActiveDownloads() {
+        return getActiveTransfers(Direction.DOWNLOAD);
+    }
+
+    @Override
+    public int getMaxConcurrentUploads() {
+        return getMaxConcurrentTransfers(Direction.UPLOAD);
+    }
+
+    @Override
+    public void setMaxConcurrentUploads(int max) {
+        setMaxConcurrentTransfers(Direction.UPLOAD, max);
+    }
+
+    @Override
+    public int getMaxConcurrentDownloads() {
+        return getMaxConcurrentTransfers(Direction.DOWNLOAD);
+    }
+
+    @Override
+    public void setMaxConcurrentDownloads(int max) {
+        setMaxConcurrentTransfers(Direction.DOWNLOAD, max);
+    }
+
+    @Override
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Turns the adaptive mode on or off. Either way the direction limits start from the configured ones.
+     */
+    @Override
+    public synchronized void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        for (Direction direction : Direction.values()) {
+            adaptiveRates.get(direction).reset(limits.get(direction));
+        }
+    }
+
+    @Override
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum());
+    }
+
+    /**
+     * Semaphore whose number of permits can be changed while held.
+     */
+    private static final class Slots extends Semaphore {
+
+        private static final int UNLIMITED = Integer.MAX_VALUE / 2;
+
+        private int max = UNLIMITED;
+
+        Slots() {
+            super(UNLIMITED, true);
+        }
+
+        synchronized int getMax() {
+            return max == UNLIMITED ? 0 : max;
+        }
+
+        synchronized void setMax(int max) {
+            max = max <= 0 ? UNLIMITED : max;
+            int diff = max - this.max;
+            this.max = max;
+            if (diff > 0) {
+                release(diff);
+            } else if (diff < 0) {
+                reducePermits(-diff);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.throttle;
+
+/**
+ * JMX view of a {@link BandwidthLimiter}. Limits and rates are in bytes per second, a limit of 0 means unlimited.
+ * The limits can be changed from a JMX console.
+ */
+public interface BandwidthLimiterMXBean {
+
+    public long getLimit();
+
+    public void setLimit(long limit);
+
+    public long getUploadLimit();
+
+    public void setUploadLimit(long limit);
+
+    public long getDownloadLimit();
+
+    public void setDownloadLimit(long limit);
+
+    public long getEffectiveUploadLimit();
+
+    public long getEffectiveDownloadLimit();
+
+    public long getRate();
+
+    public long getUploadRate();
+
+    public long getDownloadRate();
+
+    public long getUploadedBytes();
+
+    public long getDownloadedBytes();
+
+    public int getActiveUploads();
+
+    public int getActiveDownloads();
+
+    public int getMaxConcurrentUploads();
+
+    public void setMaxConcurrentUploads(int max);
+
+    public int getMaxConcurrentDownloads();
+
+    public void setMaxConcurrentDownloads(int max);
+
+    public boolean isAdaptive();
+
+    public void setAdaptive(boolean adaptive);
+
+    public long getThrottledMillis();
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.throttle;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free meter of the bytes per second over the last few seconds. Recording is a couple of atomic operations. A
+ * concurrent record may get lost when a slot is recycled for a new second, so the rate is approximate.
+ */
+final class RateMeter {
+
+    private static final long SECOND = 1_000_000_000L;
+    private static final int SLOTS = 8;
+    private static final int WINDOW = 4;
+
+    private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray bytes = new AtomicLongArray(SLOTS);
+    private final LongAdder total = new LongAdder();
+
+    void record(long n, long nowNanos) {
+        long second = Math.floorDiv(nowNanos, SECOND);
+        int slot = (int) (second & (SLOTS - 1));
+        long stamp = seconds.get(slot);
+        if (stamp < second && seconds.compareAndSet(slot, stamp, second)) {
+            bytes.set(slot, 0);
+        }
+        bytes.addAndGet(slot, n);
+        total.add(n);
+    }
+
+    /**
+     * @param nowNanos the current {@link System#nanoTime()}.
+     * @return the average bytes per second over the last complete seconds.
+     */
+    long getRate(long nowNanos) {
+        long second = Math.floorDiv(nowNanos, SECOND);
+        long sum = 0;
+        for (int i = 1; i <= WINDOW; i++) {
+            int slot = (int) ((second - i) & (SLOTS - 1));
+            if (seconds.get(slot) == second - i) {
+                sum += bytes.get(slot);
+            }
+        }
+        return sum / WINDOW;
+    }
+
+    long getTotal() {
+        return total.sum();
+    }
+
+}
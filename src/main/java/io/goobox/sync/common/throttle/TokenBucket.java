@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.throttle;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free token bucket limiting the bytes per second, optionally nested in a parent bucket.
+ * <p>
+ * Instead of a token count the bucket keeps the time when its tokens are next available, so taking tokens is a single
+ * compare-and-set. Callers reserve the bytes first and then wait for their turn, which queues them fairly. A reservation
+ * is taken from the parent buckets as well and the caller waits for the slowest of them. A bucket that was idle lets a
+ * burst of its {@link #getBurstNanos() burst time} of traffic through without waiting.
+ * </p>
+ */
+public class TokenBucket {
+
+    public static final long DEFAULT_BURST_NANOS = 250_000_000L;
+
+    private final TokenBucket parent;
+    private final long burstNanos;
+    private final AtomicLong nextFree = new AtomicLong(Long.MIN_VALUE);
+    private final RateMeter meter = new RateMeter();
+    private volatile long limit;
+    private volatile double nanosPerByte;
+
+    /**
+     * @param parent the bucket limiting this and its siblings together, or <code>null</code>.
+     * @param limit  in bytes per second, or 0 for unlimited.
+     */
+    public TokenBucket(TokenBucket parent, long limit) {
+        this(parent, limit, DEFAULT_BURST_NANOS);
+    }
+
+    /**
+     * @param parent     the bucket limiting this and its siblings together, or <code>null</code>.
+     * @param limit      in bytes per second, or 0 for unlimited.
+     * @param burstNanos how much traffic an idle bucket lets through at once, as time at the limit.
+     */
+    public TokenBucket(TokenBucket parent, long limit, long burstNanos) {
+        this.parent = parent;
+        this.burstNanos = burstNanos;
+        setLimit(limit);
+    }
+
+    public TokenBucket getParent() {
+        return parent;
+    }
+
+    public long getBurstNanos() {
+        return burstNanos;
+    }
+
+    /**
+     * @return the limit in bytes per second, or 0 if unlimited.
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Changes the limit. Waits already reserved are not shortened.
+     *
+     * @param limit in bytes per second, or 0 for unlimited.
+     */
+    public void setLimit(long limit) {
+        if (limit <= 0) {
+            this.limit = 0;
+            nextFree.set(Long.MIN_VALUE);
+        } else {
+            nanosPerByte = 1e9 / limit;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * @return the bytes per second that passed the bucket over the last few seconds.
+     */
+    public long getRate() {
+        return meter.getRate(System.nanoTime());
+    }
+
+    long getRate(long nowNanos) {
+        return meter.getRate(nowNanos);
+    }
+
+    /**
+     * @return the bytes that passed the bucket since it was created.
+     */
+    public long getTotal() {
+        return meter.getTotal();
+    }
+
+    /**
+     * Takes the given number of bytes from this bucket and its parents, waiting until they are available.
+     *
+     * @param bytes to take.
+     * @return how long the caller waited, in nanoseconds.
+     * @throws InterruptedException if interrupted while waiting. The bytes stay taken.
+     */
+    public long acquire(long bytes) throws InterruptedException {
+        long now = System.nanoTime();
+        long wait = reserve(bytes, now);
+        if (wait > 0) {
+            long deadline = now + wait;
+            long remaining = wait;
+            while (remaining > 0) {
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                remaining = deadline - System.nanoTime();
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * Takes the given number of bytes from this bucket and its parents without waiting.
+     *
+     * @param bytes    to take.
+     * @param nowNanos the current {@link System#nanoTime()}.
+     * @return how long the caller has to wait before using the bytes, in nanoseconds.
+     */
+    long reserve(long bytes, long nowNanos) {
+        meter.record(bytes, nowNanos);
+        long wait = 0;
+        if (limit > 0) {
+            long cost = (long) (bytes * nanosPerByte);
+            long prev;
+            long next;
+            do {
+                prev = nextFree.get();
+                next = Math.max(prev, nowNanos) + cost;
+            } while (!nextFree.compareAndSet(prev, next));
+            wait = Math.max(0, next - nowNanos - burstNanos);
+        }
+        if (parent != null) {
+            wait = Math.max(wait, parent.reserve(bytes, nowNanos));
+        }
+        return wait;
+    }
+
+}
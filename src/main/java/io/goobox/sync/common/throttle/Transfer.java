@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.throttle;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A transfer started by a {@link BandwidthLimiter}, holding one of its concurrency slots until closed.
+ * <p>
+ * The streams and channels wrapped by the transfer take their bytes from its own bucket, which is nested in the bucket
+ * of its direction and the global one. Reads are limited after the bytes arrive, writes before they are written, in
+ * chunks of at most {@link #CHUNK_SIZE} bytes so that a large buffer does not hold back the other transfers. The
+ * wrappers are meant for blocking streams and channels.
+ * </p>
+ */
+public class Transfer implements Closeable {
+
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    private final BandwidthLimiter limiter;
+    private final Direction direction;
+    private final TokenBucket bucket;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    Transfer(BandwidthLimiter limiter, Direction direction, TokenBucket parent, long limit) {
+        this.limiter = limiter;
+        this.direction = direction;
+        this.bucket = new TokenBucket(parent, limit);
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    /**
+     * @return the bucket of this transfer, e.g. to change its limit or read its rate.
+     */
+    public TokenBucket getBucket() {
+        return bucket;
+    }
+
+    /**
+     * Waits until the given number of bytes may be transferred. For transfers that do their I/O outside the wrappers.
+     *
+     * @param bytes to transfer.
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        try {
+            limiter.throttled(bucket.acquire(bytes));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    acquire(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, Math.min(len, CHUNK_SIZE));
+                if (n > 0) {
+                    acquire(n);
+                }
+                return n;
+            }
+
+        };
+    }
+
+    public OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+
+            @Override
+            public void write(int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int n = Math.min(len, CHUNK_SIZE);
+                    acquire(n);
+                    out.write(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+
+        };
+    }
+
+    public ReadableByteChannel wrap(ReadableByteChannel channel) {
+        return new ReadableByteChannel() {
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int limit = dst.limit();
+                dst.limit(dst.position() + Math.min(dst.remaining(), CHUNK_SIZE));
+                int n;
+                try {
+                    n = channel.read(dst);
+                } finally {
+                    dst.limit(limit);
+                }
+                if (n > 0) {
+                    acquire(n);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+
+        };
+    }
+
+    public WritableByteChannel wrap(WritableByteChannel channel) {
+        return new WritableByteChannel() {
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                int limit = src.limit();
+                int n = Math.min(src.remaining(), CHUNK_SIZE);
+                acquire(n);
+                src.limit(src.position() + n);
+                try {
+                    return channel.write(src);
+                } finally {
+                    src.limit(limit);
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+
+        };
+    }
+
+    /**
+     * Frees the concurrency slot of the transfer. The wrapped streams and channels are not closed.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            limiter.finished(direction);
+        }
+    }
+
+}
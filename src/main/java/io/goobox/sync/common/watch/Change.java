@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.watch;
+
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * A change of a file or directory detected by the {@link DirectoryWatcher}.
+ */
+public final class Change {
+
+    public enum Kind {
+        CREATED,
+        MODIFIED,
+        DELETED,
+        /**
+         * Some events of the directory were lost. Its whole subtree must be compared to the known state.
+         */
+        RESCAN
+    }
+
+    private final Path path;
+    private final Kind kind;
+
+    public Change(Path path, Kind kind) {
+        this.path = path;
+        this.kind = kind;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Change)) {
+            return false;
+        }
+        Change other = (Change) o;
+        return path.equals(other.path) && kind == other.kind;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(path, kind);
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + path;
+    }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.watch;
+
+import java.util.List;
+
+/**
+ * The listener interface for receiving batches of changes from the {@link DirectoryWatcher}.
+ */
+public interface ChangeListener {
+
+    /**
+     * Invoked on the watcher thread with the changes collected since the previous batch. Every path appears at most
+     * once in a batch.
+     *
+     * @param changes in the order the paths were first changed.
+     */
+    public void changed(List<Change> changes);
+
+}
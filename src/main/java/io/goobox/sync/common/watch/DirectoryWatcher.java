@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.watch;
+
+import io.goobox.sync.common.ExclusionRules;
+import io.goobox.sync.common.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory tree for changes and publishes them in coalesced batches.
+ * <p>
+ * Directories are registered recursively, including the ones created while watching. Entries matching the exclusion
+ * rules are ignored and excluded directories are not watched. Changes of the same path are merged until the tree is
+ * quiet for {@code quietMillis}, but a batch is never delayed by more than {@code maxDelayMillis}. If the watch
+ * service loses events, or more than {@code capacity} paths are pending, a {@link Change.Kind#RESCAN} of the affected
+ * directory is published instead. Lost events also make the watcher walk the directory again to watch the
+ * subdirectories created meanwhile.
+ * </p>
+ * <p>
+ * The listeners are called in order on a thread of their own, so a slow listener does not stop the watcher from
+ * draining the watch service while the changes keep coming.
+ * </p>
+ */
+public class DirectoryWatcher implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    public static final long DEFAULT_QUIET_MILLIS = 100;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 1000;
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    private final Path root;
+    private final ExclusionRules rules;
+    private final long quietNanos;
+    private final long maxDelayNanos;
+    private final int capacity;
+    private final Executor listenerExecutor;
+    private final ExecutorService ownExecutor;
+
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private final Map<Path, Change.Kind> pending = new LinkedHashMap<>();
+    private long firstPendingNanos;
+    private long lastEventNanos;
+
+    private WatchService watchService;
+    private Thread thread;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a watcher of the sync dir with the current exclusion rules and the default timings.
+     */
+    public DirectoryWatcher() {
+        this(Utils.getSyncDir(), Utils.getExclusionRules(), DEFAULT_QUIET_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+                DEFAULT_CAPACITY);
+    }
+
+    public DirectoryWatcher(Path root, ExclusionRules rules, long quietMillis, long maxDelayMillis, int capacity) {
+        this(root, rules, quietMillis, maxDelayMillis, capacity, null);
+    }
+
+    /**
+     * @param listenerExecutor calls the listeners, or null for a thread of the watcher. Must run the batches in
+     *                         order.
+     */
+    DirectoryWatcher(Path root, ExclusionRules rules, long quietMillis, long maxDelayMillis, int capacity,
+                     Executor listenerExecutor) {
+        this.root = root;
+        this.rules = rules;
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.capacity = capacity;
+        if (listenerExecutor == null) {
+            ownExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "Watch listeners " + root);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.listenerExecutor = ownExecutor;
+        } else {
+            ownExecutor = null;
+            this.listenerExecutor = listenerExecutor;
+        }
+    }
+
+    public void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Registers the tree and starts the watcher thread.
+     *
+     * @throws IOException if the root cannot be watched.
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        watchService = root.getFileSystem().newWatchService();
+        register(root, false);
+
+        thread = new Thread(this::run, "Watch " + root);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (watchService != null) {
+            watchService.close();
+        }
+        if (ownExecutor != null) {
+            // the batches published already are still delivered
+            ownExecutor.shutdown();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    long deadline = Math.min(lastEventNanos + quietNanos, firstPendingNanos + maxDelayNanos);
+                    key = watchService.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+
+                // process all keys signalled meanwhile before checking the deadline
+                while (key != null) {
+                    process(key);
+                    key = watchService.poll();
+                }
+
+                long now = System.nanoTime();
+                if (!pending.isEmpty()
+                        && (now - lastEventNanos >= quietNanos || now - firstPendingNanos >= maxDelayNanos)) {
+                    publish();
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Watcher thread was interrupted: {}", e.getMessage());
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void process(WatchKey key) {
+        Path dir = keys.get(key);
+        if (dir == null) {
+            key.cancel();
+            return;
+        }
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                logger.debug("Lost events in {}", dir);
+                // directories created in the lost window are not watched yet
+                try {
+                    register(dir, false);
+                } catch (IOException e) {
+                    logger.warn("Cannot watch {}: {}", dir, e.getMessage());
+                }
+                add(dir, Change.Kind.RESCAN);
+                continue;
+            }
+
+            Path name = (Path) event.context();
+            Path path = dir.resolve(name);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                // the type of a deleted entry is unknown - ignore it only if excluded either way
+                boolean excluded = rules.isExcluded(name.toString(), false) && rules.isExcluded(name.toString(), true);
+                if (!excluded) {
+                    add(path, Change.Kind.DELETED);
+                }
+                continue;
+            }
+
+            boolean directory = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+            if (rules.isExcluded(name.toString(), directory)) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                add(path, Change.Kind.CREATED);
+                if (directory) {
+                    // entries created before the registration didn't fire events
+                    try {
+                        register(path, true);
+                    } catch (IOException e) {
+                        // most probably deleted meanwhile - the deletion event follows
+                        logger.warn("Cannot watch {}: {}", path, e.getMessage());
+                        add(path, Change.Kind.RESCAN);
+                    }
+                }
+            } else {
+                add(path, Change.Kind.MODIFIED);
+            }
+        }
+
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Registers the given directory and all its subdirectories.
+     *
+     * @param dir      root of the subtree.
+     * @param announce whether to publish the entries found as created.
+     * @throws IOException if the given directory cannot be registered.
+     */
+    private void register(Path dir, boolean announce) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+                if (!subdir.equals(dir) && rules.isSubtreeExcluded(subdir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key = subdir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(key, subdir);
+                if (announce && !subdir.equals(dir)) {
+                    add(subdir, Change.Kind.CREATED);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (announce && !rules.isExcluded(file)) {
+                    add(file, Change.Kind.CREATED);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                logger.warn("Cannot watch {}: {}", file, e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void add(Path path, Change.Kind kind) {
+        long now = System.nanoTime();
+        if (pending.isEmpty()) {
+            firstPendingNanos = now;
+        }
+        lastEventNanos = now;
+
+        if (pending.get(root) == Change.Kind.RESCAN) {
+            // the whole tree is rescanned anyway
+            return;
+        }
+
+        Change.Kind previous = pending.get(path);
+        Change.Kind merged = merge(previous, kind);
+        if (merged == null) {
+            pending.remove(path);
+        } else if (previous == null && pending.size() >= capacity) {
+            logger.debug("More than {} pending changes - rescan {}", capacity, root);
+            pending.clear();
+            pending.put(root, Change.Kind.RESCAN);
+        } else {
+            pending.put(path, merged);
+        }
+    }
+
+    /**
+     * @return the kind describing both changes, or null if they cancel each other out.
+     */
+    private static Change.Kind merge(Change.Kind previous, Change.Kind next) {
+        if (previous == null || previous == next) {
+            return next;
+        }
+        if (previous == Change.Kind.RESCAN || next == Change.Kind.RESCAN) {
+            return Change.Kind.RESCAN;
+        }
+        switch (next) {
+            case MODIFIED:
+                // still new if created within the same batch
+                return previous == Change.Kind.CREATED ? Change.Kind.CREATED : Change.Kind.MODIFIED;
+            case DELETED:
+                // created and deleted within the same batch - nothing happened
+                return previous == Change.Kind.CREATED ? null : Change.Kind.DELETED;
+            default:
+                // deleted and created again
+                return Change.Kind.MODIFIED;
+        }
+    }
+
+    private void publish() {
+        List<Change> changes = new ArrayList<>(pending.size());
+        for (Map.Entry<Path, Change.Kind> entry : pending.entrySet()) {
+            changes.add(new Change(entry.getKey(), entry.getValue()));
+        }
+        pending.clear();
+        List<Change> batch = Collections.unmodifiableList(changes);
+
+        try {
+            listenerExecutor.execute(() -> deliver(batch));
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    private void deliver(List<Change> changes) {
+        for (ChangeListener listener : listeners) {
+            try {
+                listener.changed(changes);
+            } catch (RuntimeException e) {
+                logger.error("Change listener failed", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class AppPathsTest {
+
+    private final Path tmp = Paths.get(System.getProperty("java.io.tmpdir"));
+
+    @After
+    public void tearDown() {
+        System.clearProperty(AppPaths.DATA_DIR_PROPERTY);
+        AppPaths.setDefault(null);
+    }
+
+    @Test
+    public void builder() {
+        final AppPaths paths = AppPaths.builder()
+                .homeDir(tmp.resolve("home"))
+                .dataDir(tmp.resolve("data"))
+                .logDir(tmp.resolve("log"))
+                .build();
+
+        assertEquals(tmp.resolve("home"), paths.getHomeDir());
+        assertEquals(tmp.resolve("data"), paths.getDataDir());
+        assertEquals(tmp.resolve("log"), paths.getLogDir());
+        assertEquals(tmp.resolve("home").resolve(Utils.APP_NAME), paths.getSyncDir());
+        assertSame(paths.getSyncDir(), paths.getSyncDir());
+    }
+
+    @Test
+    public void systemProperty() throws Exception {
+        System.setProperty(AppPaths.DATA_DIR_PROPERTY, tmp.resolve("data").toString());
+        final AppPaths paths = AppPaths.builder().syncDir(tmp.resolve("sync")).build();
+
+        assertSame(paths, paths.resolveAsync().get(10, TimeUnit.SECONDS));
+        assertEquals(tmp.resolve("data"), paths.getDataDir());
+        assertEquals(tmp.resolve("sync"), paths.getSyncDir());
+
+        // resolved once
+        System.setProperty(AppPaths.DATA_DIR_PROPERTY, tmp.resolve("other").toString());
+        assertEquals(tmp.resolve("data"), paths.getDataDir());
+    }
+
+    @Test
+    public void setDefault() {
+        AppPaths.setDefault(AppPaths.builder().dataDir(tmp.resolve("data")).syncDir(tmp.resolve("sync")).build());
+
+        assertEquals(tmp.resolve("data"), Utils.getDataDir());
+        assertEquals(tmp.resolve("sync"), Utils.getSyncDir());
+    }
+
+}
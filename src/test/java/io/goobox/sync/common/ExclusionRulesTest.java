@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExclusionRulesTest {
+
+    private Path tmpDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory(null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+
+    @Test
+    public void globs() {
+        final ExclusionRules rules = ExclusionRules.builder()
+                .add("*.bak")
+                .add("build-?")
+                .add("*.[oa]")
+                .add("file[!0-9]")
+                .add("a*b*c")
+                .build();
+
+        assertTrue(rules.isExcluded("notes.BAK", false));
+        assertTrue(rules.isExcluded("build-1", false));
+        assertFalse(rules.isExcluded("build-10", false));
+        assertTrue(rules.isExcluded("main.o", false));
+        assertTrue(rules.isExcluded("lib.a", false));
+        assertFalse(rules.isExcluded("lib.so", false));
+        assertTrue(rules.isExcluded("filex", false));
+        assertFalse(rules.isExcluded("file1", false));
+        assertTrue(rules.isExcluded("aXXbYYc", false));
+        assertTrue(rules.isExcluded("abbc", false));
+        assertFalse(rules.isExcluded("acb", false));
+    }
+
+    @Test
+    public void caseSensitive() {
+        final ExclusionRules rules = ExclusionRules.builder().ignoreCase(false).add("Makefile").build();
+
+        assertTrue(rules.isExcluded("Makefile", false));
+        assertFalse(rules.isExcluded("makefile", false));
+    }
+
+    @Test
+    public void directoryOnly() {
+        final ExclusionRules rules = ExclusionRules.builder().add("node_modules/").build();
+
+        assertTrue(rules.isSubtreeExcluded(Paths.get("project", "node_modules")));
+        assertFalse(rules.isExcluded(Paths.get("project", "node_modules")));
+        assertFalse(rules.isSubtreeExcluded(Paths.get("project", "src")));
+    }
+
+    @Test
+    public void negation() {
+        final ExclusionRules rules = ExclusionRules.builder()
+                .addDefaults()
+                .add("*.log")
+                .add("!important.log")
+                .add("!~keep.tmp")
+                .build();
+
+        assertTrue(rules.isExcluded("debug.log", false));
+        assertFalse(rules.isExcluded("important.log", false));
+        assertTrue(rules.isExcluded("~other.tmp", false));
+        assertFalse(rules.isExcluded("~keep.tmp", false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedPattern() {
+        ExclusionRules.builder().add("dir/file");
+    }
+
+    @Test
+    public void load() throws IOException {
+        final Path file = tmpDir.resolve("ignore");
+        Files.write(file, Arrays.asList("# comment", "", "*.swp   ", "trailing\\ "), StandardCharsets.UTF_8);
+
+        final ExclusionRules rules = ExclusionRules.builder().load(file).build();
+
+        assertTrue(rules.isExcluded(".file.swp", false));
+        assertTrue(rules.isExcluded("trailing ", false));
+        assertFalse(rules.isExcluded("trailing", false));
+        assertFalse(rules.isExcluded("# comment", false));
+    }
+
+}
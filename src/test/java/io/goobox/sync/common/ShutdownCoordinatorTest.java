@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShutdownCoordinatorTest {
+
+    private final List<String> calls = new CopyOnWriteArrayList<>();
+
+    private ShutdownListener record(String name) {
+        return () -> calls.add(name);
+    }
+
+    @Test
+    public void phases() {
+        final ShutdownCoordinator coordinator = new ShutdownCoordinator();
+        coordinator.register(record("persist"), ShutdownCoordinator.PHASE_PERSIST);
+        coordinator.register(record("drain"), ShutdownCoordinator.PHASE_DRAIN);
+        coordinator.register(() -> {
+            throw new IllegalStateException("failed");
+        }, ShutdownCoordinator.PHASE_DRAIN, "failing");
+        coordinator.register(record("stop"), ShutdownCoordinator.PHASE_STOP);
+        final ShutdownListener removed = record("removed");
+        coordinator.register(removed, ShutdownCoordinator.PHASE_STOP);
+        coordinator.unregister(removed);
+
+        coordinator.shutdown();
+        coordinator.shutdown();
+
+        assertTrue(coordinator.isShutdown());
+        assertEquals(3, calls.size());
+        assertEquals("stop", calls.get(0));
+        assertEquals("drain", calls.get(1));
+        assertEquals("persist", calls.get(2));
+    }
+
+    @Test
+    public void parallel() {
+        final ShutdownCoordinator coordinator = new ShutdownCoordinator();
+        final CountDownLatch both = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            coordinator.register(() -> {
+                both.countDown();
+                try {
+                    // returns only if the other listener runs at the same time
+                    both.await();
+                    calls.add("done");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, ShutdownCoordinator.PHASE_DRAIN, "listener" + i);
+        }
+
+        coordinator.shutdown();
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void timeout() {
+        final ShutdownCoordinator coordinator = new ShutdownCoordinator();
+        coordinator.setPhaseTimeout(ShutdownCoordinator.PHASE_DRAIN, 100);
+        coordinator.register(() -> {
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, ShutdownCoordinator.PHASE_DRAIN, "stuck");
+        coordinator.register(record("persist"), ShutdownCoordinator.PHASE_PERSIST);
+
+        final long start = System.currentTimeMillis();
+        coordinator.shutdown();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, calls.size());
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StagedFileTest {
+
+    private Path tmpDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory(null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+
+    @Test
+    public void commitNewFile() throws IOException {
+        Path target = tmpDir.resolve("file.txt");
+        byte[] content = "hello world".getBytes(StandardCharsets.UTF_8);
+
+        try (StagedFile staged = StagedFile.create(target, content.length)) {
+            assertTrue(Utils.isExcluded(staged.getTempFile()));
+            assertEquals(tmpDir, staged.getTempFile().getParent());
+            assertFalse(Files.exists(target));
+
+            staged.transferFrom(Channels.newChannel(new ByteArrayInputStream(content)));
+            assertEquals(target, staged.commit());
+        }
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(1, countFiles());
+        assertNotHidden(target);
+    }
+
+    @Test
+    public void replaceFromFile() throws IOException {
+        Path source = Files.write(tmpDir.resolve("source"), new byte[100_000]);
+        Path target = Files.write(tmpDir.resolve("target"), "old".getBytes(StandardCharsets.UTF_8));
+
+        try (StagedFile staged = StagedFile.create(target, 200_000)) {
+            assertEquals(100_000, staged.transferFrom(source));
+            assertEquals(target, staged.commit());
+        }
+
+        // the unused preallocation is truncated
+        assertEquals(100_000, Files.size(target));
+        assertEquals(2, countFiles());
+    }
+
+    @Test
+    public void targetChanged() throws IOException {
+        Path target = Files.write(tmpDir.resolve("file.txt"), "old".getBytes(StandardCharsets.UTF_8));
+
+        try (StagedFile staged = StagedFile.create(target, -1)) {
+            staged.transferFrom(Channels.newChannel(new ByteArrayInputStream("new".getBytes(StandardCharsets.UTF_8))));
+
+            Files.write(target, "local".getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+
+            Path result = staged.commit();
+            assertNotEquals(target, result);
+            assertEquals("new", new String(Files.readAllBytes(result), StandardCharsets.UTF_8));
+            assertNotHidden(result);
+        }
+
+        assertEquals("local", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+        assertEquals(2, countFiles());
+    }
+
+    @Test
+    public void closeWithoutCommit() throws IOException {
+        Path target = tmpDir.resolve("file.txt");
+
+        try (StagedFile staged = StagedFile.create(target, 1000)) {
+            staged.transferFrom(Channels.newChannel(new ByteArrayInputStream(new byte[10])));
+        }
+
+        assertFalse(Files.exists(target));
+        assertEquals(0, countFiles());
+    }
+
+    @Test
+    public void batch() throws IOException {
+        Path sub = Files.createDirectory(tmpDir.resolve("sub"));
+
+        try (StagingBatch batch = new StagingBatch()) {
+            for (int i = 0; i < 10; i++) {
+                Path dir = i % 2 == 0 ? tmpDir : sub;
+                try (StagedFile staged = batch.stage(dir.resolve("file" + i), 1)) {
+                    staged.transferFrom(Channels.newChannel(new ByteArrayInputStream(new byte[] { (byte) i })));
+                    staged.commit();
+                }
+            }
+        }
+
+        for (int i = 0; i < 10; i++) {
+            Path dir = i % 2 == 0 ? tmpDir : sub;
+            assertArrayEquals(new byte[] { (byte) i }, Files.readAllBytes(dir.resolve("file" + i)));
+        }
+    }
+
+    private static void assertNotHidden(Path path) throws IOException {
+        DosFileAttributeView dos = Files.getFileAttributeView(path, DosFileAttributeView.class);
+        if (dos != null) {
+            try {
+                assertFalse(dos.readAttributes().isHidden());
+            } catch (IOException e) {
+                // no DOS attributes on this file system
+            }
+        }
+    }
+
+    private long countFiles() throws IOException {
+        try (Stream<Path> files = Files.list(tmpDir)) {
+            return files.count();
+        }
+    }
+
+}
@@ -29,15 +29,24 @@ import org.junit.runner.RunWith;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(JMockit.class)
 public class UtilsTest {
@@ -131,4 +140,75 @@ public class UtilsTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void reserveConflictedCopyPaths() throws IOException {
+
+        final String template = "%s (%s's conflicted copy %s)%s";
+        final String userName = System.getProperty("user.name");
+        final String date = ISODateTimeFormat.date().print(System.currentTimeMillis());
+
+        // existing copies of "sample.ext": no counter and 2
+        assertTrue(tmpDir.resolve(String.format(template, "sample", userName, date, ".ext")).toFile().createNewFile());
+        assertTrue(tmpDir.resolve(String.format(template, "sample", userName, date, " 2.ext")).toFile().createNewFile());
+
+        final Path sample = tmpDir.resolve("sample.ext");
+        final Path other = tmpDir.resolve("other");
+        final Map<Path, Path> res = Utils.reserveConflictedCopyPaths(Arrays.asList(sample, other));
+        assertEquals(tmpDir.resolve(String.format(template, "sample", userName, date, " 1.ext")), res.get(sample));
+        assertEquals(tmpDir.resolve(String.format(template, "other", userName, date, "")), res.get(other));
+        assertTrue(Files.exists(res.get(sample)));
+        assertTrue(Files.exists(res.get(other)));
+
+        assertEquals(tmpDir.resolve(String.format(template, "sample", userName, date, " 3.ext")),
+                Utils.reserveConflictedCopyPath(sample));
+
+    }
+
+    @Test
+    public void reserveConflictedCopyPathsOnce() throws IOException {
+
+        final Path sample = tmpDir.resolve("sample");
+        final Map<Path, Path> res = Utils.reserveConflictedCopyPaths(Arrays.asList(sample, sample));
+        assertEquals(1, res.size());
+        assertEquals(1, countFiles(tmpDir));
+
+        // a failure in the middle of the batch removes the files created before it
+        final Path other = tmpDir.resolve("other");
+        final Path missing = tmpDir.resolve("missing").resolve("file");
+        try {
+            Utils.reserveConflictedCopyPaths(Arrays.asList(other, missing));
+            fail("Expected NoSuchFileException");
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+        assertEquals(1, countFiles(tmpDir));
+
+    }
+
+    private static long countFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void reserveConflictedCopyPathConcurrently() throws Exception {
+
+        final Path sample = tmpDir.resolve("sample");
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Path>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                futures.add(executor.submit(() -> Utils.reserveConflictedCopyPath(sample)));
+            }
+            final Set<Path> paths = new HashSet<>();
+            for (Future<Path> future : futures) {
+                assertTrue(paths.add(future.get()));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.db;
+
+import io.goobox.sync.common.overlay.OverlayIcon;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SyncStateStoreTest {
+
+    private Path tmpDir;
+    private Path syncDir;
+    private Path dbFile;
+    private SyncStateStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory(null);
+        syncDir = Files.createDirectory(tmpDir.resolve("sync"));
+        dbFile = tmpDir.resolve("data").resolve(SyncStateStore.DB_FILE_NAME);
+        store = new SyncStateStore(syncDir, dbFile);
+
+        store.putAll(Arrays.asList(
+                file("a", SyncState.SYNCED),
+                file("dir", SyncState.SYNCED),
+                file("dir/b", SyncState.UPLOADING),
+                file("dir/sub", SyncState.SYNCED),
+                file("dir/sub/c", SyncState.CONFLICT),
+                file("dir.txt", SyncState.DOWNLOAD_FAILED),
+                file("dirx", SyncState.IGNORED)));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+        FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+
+    @Test
+    public void get() {
+        SyncFile file = store.get(syncDir.resolve("dir").resolve("b"));
+        assertEquals("dir/b", file.getPath());
+        assertEquals("dir", file.getParent());
+        assertEquals(SyncState.UPLOADING, file.getState());
+        assertEquals(syncDir.resolve("dir").resolve("b"), store.toPath(file));
+
+        assertNull(store.get(syncDir.resolve("missing")));
+    }
+
+    @Test
+    public void put() {
+        Path path = syncDir.resolve("dir").resolve("b");
+        store.put(path, SyncState.SYNCED, 10, 20, "hash");
+        SyncFile file = store.get(path);
+        assertEquals(SyncState.SYNCED, file.getState());
+        assertEquals(10, file.getSize());
+        assertEquals(20, file.getLastModified());
+        assertEquals("hash", file.getHash());
+
+        store.setState(path, SyncState.FOR_CLOUD_DELETE);
+        assertEquals(SyncState.FOR_CLOUD_DELETE, store.get(path).getState());
+        assertEquals(7, store.getSubtree(syncDir).size());
+    }
+
+    @Test
+    public void putAllReplaces() {
+        store.putAll(Arrays.asList(
+                file("a", SyncState.FOR_UPLOAD),
+                file("dir/new", SyncState.FOR_DOWNLOAD),
+                file("a", SyncState.UPLOADING)));
+        assertEquals(SyncState.UPLOADING, store.get(syncDir.resolve("a")).getState());
+        assertEquals(SyncState.FOR_DOWNLOAD, store.get(syncDir.resolve("dir").resolve("new")).getState());
+        assertEquals(8, store.getSubtree(syncDir).size());
+    }
+
+    @Test
+    public void getChildren() {
+        assertEquals(paths("a", "dir", "dir.txt", "dirx"), paths(store.getChildren(syncDir)));
+        assertEquals(paths("dir/b", "dir/sub"), paths(store.getChildren(syncDir.resolve("dir"))));
+    }
+
+    @Test
+    public void getSubtree() {
+        assertEquals(paths("dir/b", "dir/sub", "dir/sub/c"), paths(store.getSubtree(syncDir.resolve("dir"))));
+        assertEquals(7, store.getSubtree(syncDir).size());
+        assertEquals(paths("dir/sub/c"), paths(store.getByState(SyncState.CONFLICT)));
+    }
+
+    @Test
+    public void removeAllSubtree() {
+        store.removeAll(Arrays.asList(syncDir.resolve("dir").resolve("sub"), syncDir.resolve("a")));
+        assertEquals(paths("dir", "dir/b", "dir.txt", "dirx"), paths(store.getSubtree(syncDir)));
+
+        store.remove(syncDir.resolve("dir"));
+        assertEquals(paths("dir.txt", "dirx"), paths(store.getSubtree(syncDir)));
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        store.remove(syncDir.resolve("a"));
+        store.close();
+
+        store = new SyncStateStore(syncDir, dbFile);
+        assertEquals(6, store.getSubtree(syncDir).size());
+        assertNull(store.get(syncDir.resolve("a")));
+        assertEquals(SyncState.CONFLICT, store.get(syncDir.resolve("dir/sub/c")).getState());
+    }
+
+    @Test
+    public void overlayIcons() {
+        assertEquals(OverlayIcon.OK, SyncState.SYNCED.overlayIcon());
+        assertEquals(OverlayIcon.SYNCING, SyncState.FOR_UPLOAD.overlayIcon());
+        assertEquals(OverlayIcon.SYNCING, SyncState.DOWNLOADING.overlayIcon());
+        assertEquals(OverlayIcon.SYNCING, SyncState.FOR_LOCAL_DELETE.overlayIcon());
+        assertEquals(OverlayIcon.WARNING, SyncState.CONFLICT.overlayIcon());
+        assertEquals(OverlayIcon.ERROR, SyncState.UPLOAD_FAILED.overlayIcon());
+        assertEquals(OverlayIcon.NONE, SyncState.IGNORED.overlayIcon());
+
+        SyncStateIconProvider provider = new SyncStateIconProvider(store);
+        assertEquals(OverlayIcon.NONE, provider.getIcon(syncDir));
+        assertEquals(OverlayIcon.SYNCING, provider.getIcon(syncDir.resolve("dir").resolve("b")));
+        assertEquals(OverlayIcon.NONE, provider.getIcon(syncDir.resolve("missing")));
+        assertEquals(OverlayIcon.WARNING, provider.getMaxIcon(syncDir.resolve("dir")));
+        assertEquals(OverlayIcon.OK, provider.getMaxIcon(syncDir.resolve("a")));
+
+        Map<Path, OverlayIcon> icons = provider.getIcons(Arrays.asList(
+                syncDir.resolve("a"), syncDir.resolve("dir.txt"), syncDir.resolve("dir").resolve("sub")));
+        assertEquals(OverlayIcon.OK, icons.get(syncDir.resolve("a")));
+        assertEquals(OverlayIcon.ERROR, icons.get(syncDir.resolve("dir.txt")));
+        assertEquals(OverlayIcon.OK, icons.get(syncDir.resolve("dir").resolve("sub")));
+    }
+
+    private SyncFile file(String path, SyncState state) {
+        return store.newFile(syncDir.resolve(path), state, path.length(), 1000, null);
+    }
+
+    private static Set<String> paths(String... paths) {
+        return new HashSet<>(Arrays.asList(paths));
+    }
+
+    private static Set<String> paths(Collection<SyncFile> files) {
+        return files.stream().map(SyncFile::getPath).collect(Collectors.toSet());
+    }
+
+}
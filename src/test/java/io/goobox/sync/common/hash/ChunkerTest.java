@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.hash;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkerTest {
+
+    private static final int MIN = 2 * 1024;
+    private static final int AVG = 8 * 1024;
+    private static final int MAX = 32 * 1024;
+
+    private final Chunker chunker = new Chunker(MIN, AVG, MAX, "SHA-256");
+
+    private Path tmpDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory(null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+
+    private static byte[] random(int size) {
+        final byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void boundaries() throws IOException {
+        final byte[] data = random(3 * 1024 * 1024 + 123);
+        final ChunkManifest manifest = chunker.chunk(new ByteArrayInputStream(data));
+
+        assertEquals(data.length, manifest.getSize());
+        final List<Chunk> chunks = manifest.getChunks();
+        long offset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            final Chunk chunk = chunks.get(i);
+            assertEquals(offset, chunk.getOffset());
+            assertTrue(chunk.getLength() <= MAX);
+            assertTrue(chunk.getLength() >= MIN || i == chunks.size() - 1);
+            offset += chunk.getLength();
+        }
+        // roughly the average size
+        assertTrue(chunks.size() > data.length / AVG / 2);
+        assertTrue(chunks.size() < data.length / AVG * 2);
+
+        // the same boundaries when read from a file
+        final Path file = Files.write(tmpDir.resolve("file"), data);
+        assertEquals(chunks, chunker.chunk(file).getChunks());
+    }
+
+    @Test
+    public void insertion() throws IOException {
+        final byte[] data = random(2 * 1024 * 1024);
+        final ChunkManifest previous = chunker.chunk(new ByteArrayInputStream(data));
+
+        final int at = 1000000;
+        final byte[] edited = new byte[data.length + 1];
+        System.arraycopy(data, 0, edited, 0, at);
+        edited[at] = 7;
+        System.arraycopy(data, at, edited, at + 1, data.length - at);
+        final ChunkManifest current = chunker.chunk(new ByteArrayInputStream(edited));
+
+        final List<ChunkManifest.Range> changed = current.diff(previous);
+        assertEquals(1, changed.size());
+        final ChunkManifest.Range range = changed.get(0);
+        assertTrue(range.getOffset() <= at && at < range.getOffset() + range.getLength());
+        assertTrue(range.getLength() <= 2 * MAX);
+    }
+
+    @Test
+    public void identical() throws IOException {
+        final byte[] data = random(100000);
+        final ChunkManifest manifest = chunker.chunk(new ByteArrayInputStream(data));
+        assertEquals(0, manifest.diff(manifest).size());
+
+        final ChunkManifest empty = chunker.chunk(new ByteArrayInputStream(new byte[0]));
+        assertEquals(0, empty.getChunks().size());
+        assertEquals(Arrays.asList(new ChunkManifest.Range(0, data.length)), manifest.diff(empty));
+    }
+
+    @Test
+    public void chunkAll() throws IOException {
+        final Path file1 = Files.write(tmpDir.resolve("file1"), random(50000));
+        final Path file2 = Files.write(tmpDir.resolve("file2"), random(70000));
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Map<Path, ChunkManifest> manifests = chunker.chunkAll(
+                    Arrays.asList(file1, tmpDir.resolve("missing"), file2), executor);
+            assertEquals(Arrays.asList(file1, file2), Arrays.asList(manifests.keySet().toArray()));
+            assertEquals(70000, manifests.get(file2).getSize());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void boundedIdleBuffers() throws IOException {
+        final int threads = Runtime.getRuntime().availableProcessors() + 4;
+        final List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 4 * threads; i++) {
+            files.add(Files.write(tmpDir.resolve("file" + i), random(20000)));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            assertEquals(files.size(), chunker.chunkAll(files, executor).size());
+        } finally {
+            executor.shutdown();
+        }
+        // a buffer is kept for the next calls, but not one per thread that ever chunked
+        assertTrue(chunker.getIdleBuffers() >= 1);
+        assertTrue(chunker.getIdleBuffers() <= Runtime.getRuntime().availableProcessors());
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.hash;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContentHasherTest {
+
+    private static final String HELLO_SHA256 = "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+
+    private Path tmpDir;
+    private Path cacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory(null);
+        cacheFile = tmpDir.resolve("data").resolve(HashCache.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+
+    private Path write(String name, String content, long lastModified) throws IOException {
+        Path file = Files.write(tmpDir.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+        return file;
+    }
+
+    @Test
+    public void hash() throws IOException {
+        final Path file = write("file", "hello", 1000000);
+        final StringBuilder large = new StringBuilder();
+        while (large.length() < ContentHasher.BUFFER_SIZE * 3) {
+            large.append("hello");
+        }
+        final Path largeFile = write("large", large.toString(), 1000000);
+
+        try (ContentHasher hasher = new ContentHasher(null)) {
+            assertEquals(HELLO_SHA256, hasher.hash(file));
+            assertEquals(64, hasher.hash(largeFile).length());
+            assertNotEquals(hasher.hash(file), hasher.hash(largeFile));
+        }
+    }
+
+    @Test
+    public void cache() throws IOException {
+        final Path file = write("file", "hello", 1000000);
+
+        try (HashCache cache = new HashCache(cacheFile, ContentHasher.DEFAULT_ALGORITHM);
+             ContentHasher hasher = new ContentHasher(cache)) {
+            assertEquals(HELLO_SHA256, hasher.hash(file));
+            assertEquals(1, cache.size());
+        }
+
+        // same size and time - the file is not read again after a restart
+        write("file", "world", 1000000);
+        try (HashCache cache = new HashCache(cacheFile, ContentHasher.DEFAULT_ALGORITHM);
+             ContentHasher hasher = new ContentHasher(cache)) {
+            assertEquals(HELLO_SHA256, hasher.hash(file));
+
+            Files.setLastModifiedTime(file, FileTime.fromMillis(2000000));
+            assertNotEquals(HELLO_SHA256, hasher.hash(file));
+        }
+    }
+
+    @Test
+    public void recentlyModified() throws IOException {
+        final Path file = write("file", "hello", System.currentTimeMillis());
+
+        try (HashCache cache = new HashCache(cacheFile, ContentHasher.DEFAULT_ALGORITHM);
+             ContentHasher hasher = new ContentHasher(cache)) {
+            assertEquals(HELLO_SHA256, hasher.hash(file));
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void otherAlgorithm() throws IOException {
+        final Path file = write("file", "hello", 1000000);
+        try (HashCache cache = new HashCache(cacheFile, "SHA-256");
+             ContentHasher hasher = new ContentHasher(cache)) {
+            hasher.hash(file);
+        }
+
+        try (HashCache cache = new HashCache(cacheFile, "SHA-1")) {
+            assertEquals(0, cache.size());
+            assertNull(cache.get(file, 5, 1000000));
+        }
+    }
+
+    @Test
+    public void hashAll() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            files.add(write("file" + i, "hello", 1000000));
+        }
+        files.add(tmpDir.resolve("missing"));
+
+        try (ContentHasher hasher = new ContentHasher(null, "SHA-256", 4)) {
+            final Map<Path, String> hashes = hasher.hashAll(files);
+            assertEquals(20, hashes.size());
+            assertEquals(files.subList(0, 20), new ArrayList<>(hashes.keySet()));
+            assertEquals(HELLO_SHA256, hashes.get(files.get(7)));
+        }
+    }
+
+    @Test
+    public void directCallsShareTheBuffers() throws Exception {
+        final Path file = write("file", "hello", 1000000);
+        final ExecutorService callers = Executors.newFixedThreadPool(8);
+        try (ContentHasher hasher = new ContentHasher(null, "SHA-256", 2)) {
+            final List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(callers.submit(() -> hasher.hash(file)));
+            }
+            for (Future<String> future : futures) {
+                assertEquals(HELLO_SHA256, future.get(10, TimeUnit.SECONDS));
+            }
+            // not one buffer per calling thread
+            assertTrue(hasher.getAllocatedBuffers() <= 2);
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.journal;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JournalTest {
+
+    private Path tmpDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory(null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+
+    @Test
+    public void replaysUnfinished() throws Exception {
+        final Operation upload = new Operation(Operation.Kind.UPLOAD, Paths.get("a", "file"));
+        final Operation rename = new Operation(Operation.Kind.RENAME, Paths.get("b"), Paths.get("c"), "remote-id");
+        final long id;
+        try (Journal journal = new Journal(tmpDir, Journal.DEFAULT_SEGMENT_SIZE)) {
+            final long uploadId = journal.begin(upload).get(5, TimeUnit.SECONDS);
+            id = journal.begin(rename).get(5, TimeUnit.SECONDS);
+            journal.finish(uploadId).get(5, TimeUnit.SECONDS);
+        }
+
+        try (Journal journal = new Journal(tmpDir, Journal.DEFAULT_SEGMENT_SIZE)) {
+            assertEquals(1, journal.getPending().size());
+            assertEquals(rename, journal.getPending().get(id));
+
+            // IDs are not reused
+            assertTrue(journal.begin(upload).get(5, TimeUnit.SECONDS) > id);
+        }
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        try (Journal journal = new Journal(tmpDir, Journal.DEFAULT_SEGMENT_SIZE)) {
+            final List<CompletableFuture<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                futures.add(journal.begin(new Operation(Operation.Kind.DOWNLOAD, Paths.get("file" + i))));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+
+            assertEquals(1000, journal.getPending().size());
+            assertTrue(journal.getCommits() < 1000);
+        }
+    }
+
+    @Test
+    public void tornRecord() throws Exception {
+        try (Journal journal = new Journal(tmpDir, Journal.DEFAULT_SEGMENT_SIZE)) {
+            journal.begin(new Operation(Operation.Kind.UPLOAD, Paths.get("file"))).get(5, TimeUnit.SECONDS);
+        }
+        // a crash in the middle of the next record
+        final Path segment = segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 40, 1, 2, 3}));
+        }
+        final long size = Files.size(segment);
+
+        try (Journal journal = new Journal(tmpDir, Journal.DEFAULT_SEGMENT_SIZE)) {
+            assertEquals(1, journal.getPending().size());
+            assertEquals(size - 7, Files.size(segment));
+        }
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        final long kept;
+        try (Journal journal = new Journal(tmpDir, 4096)) {
+            kept = journal.begin(new Operation(Operation.Kind.UPLOAD, Paths.get("kept"))).get(5, TimeUnit.SECONDS);
+            for (int i = 0; i < 1000; i++) {
+                final long id = journal.begin(new Operation(Operation.Kind.UPLOAD, Paths.get("file" + i)))
+                        .get(5, TimeUnit.SECONDS);
+                journal.finish(id).get(5, TimeUnit.SECONDS);
+            }
+        }
+
+        // only the last segment is left and it holds little more than the pending operation
+        assertEquals(1, segments().size());
+        assertTrue(Files.size(segments().get(0)) <= 4096 + 100);
+        try (Journal journal = new Journal(tmpDir, 4096)) {
+            assertEquals(1, journal.getPending().size());
+            assertTrue(journal.getPending().containsKey(kept));
+        }
+    }
+
+    @Test
+    public void idsNotReusedAfterCompaction() throws Exception {
+        final long last;
+        try (Journal journal = new Journal(tmpDir, 1)) {
+            // every commit starts a new segment, the last one without any pending operation
+            final long id = journal.begin(new Operation(Operation.Kind.UPLOAD, Paths.get("file")))
+                    .get(5, TimeUnit.SECONDS);
+            journal.finish(id).get(5, TimeUnit.SECONDS);
+            last = id;
+        }
+
+        try (Journal journal = new Journal(tmpDir, 1)) {
+            assertTrue(journal.getPending().isEmpty());
+            assertTrue(journal.begin(new Operation(Operation.Kind.UPLOAD, Paths.get("file")))
+                    .get(5, TimeUnit.SECONDS) > last);
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(tmpDir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncBatchingAppenderTest {
+
+    private LoggerContext context;
+    private ListAppender<ILoggingEvent> list;
+    private AsyncBatchingAppender async;
+    private Logger logger;
+
+    @Before
+    public void setUp() {
+        context = new LoggerContext();
+        list = new ListAppender<>();
+        list.setContext(context);
+        list.start();
+
+        async = new AsyncBatchingAppender();
+        async.setContext(context);
+        async.setName("test");
+        async.addAppender(list);
+
+        logger = context.getLogger(AsyncBatchingAppenderTest.class);
+        logger.setLevel(Level.DEBUG);
+        logger.addAppender(async);
+    }
+
+    @After
+    public void tearDown() {
+        context.stop();
+    }
+
+    @Test
+    public void flushesOnStop() {
+        async.start();
+        for (int i = 0; i < 1000; i++) {
+            logger.info("event {}", i);
+        }
+        async.stop();
+
+        assertEquals(1000, list.list.size());
+        assertEquals("event 0", list.list.get(0).getFormattedMessage());
+        assertEquals("event 999", list.list.get(999).getFormattedMessage());
+    }
+
+    @Test
+    public void dropsDebugUnderPressure() throws InterruptedException {
+        BlockingAppender blocking = new BlockingAppender();
+        blocking.setContext(context);
+        blocking.start();
+        async.detachAppender(list);
+        async.addAppender(blocking);
+
+        async.setQueueSize(10);
+        async.setDiscardingThreshold(5);
+        async.start();
+
+        // the worker takes the first event and blocks in the downstream appender, so the rest stay queued
+        logger.debug("debug 0");
+        assertTrue(blocking.entered.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 4; i++) {
+            logger.info("info {}", i);
+        }
+        // remaining capacity 6 - still kept
+        logger.debug("debug 1");
+        logger.info("info 4");
+        // remaining capacity 4 - below the threshold
+        logger.debug("debug 2");
+        logger.info("info 5");
+        assertEquals(1, async.getDroppedCount());
+
+        blocking.released.countDown();
+        async.stop();
+
+        List<String> messages = new ArrayList<>();
+        for (ILoggingEvent event : blocking.list) {
+            messages.add(event.getFormattedMessage());
+        }
+        assertEquals(Arrays.asList("debug 0", "info 0", "info 1", "info 2", "info 3", "debug 1", "info 4", "info 5",
+                "Dropped 1 log events under load"), messages);
+        assertEquals(Level.WARN, blocking.list.get(8).getLevel());
+        assertEquals(0, async.getDroppedCount());
+    }
+
+    @Test
+    public void noAppender() {
+        AsyncBatchingAppender empty = new AsyncBatchingAppender();
+        empty.setContext(context);
+        empty.start();
+
+        assertFalse(empty.isStarted());
+    }
+
+    /**
+     * Downstream appender that blocks until released, like a slow disk.
+     */
+    private static class BlockingAppender extends ListAppender<ILoggingEvent> {
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+
+        @Override
+        protected void append(ILoggingEvent event) {
+            entered.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.append(event);
+        }
+
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class RateLimitedLoggerTest {
+
+    private LoggerContext context;
+    private ListAppender<ILoggingEvent> list;
+    private Logger logger;
+
+    @Before
+    public void setUp() {
+        context = new LoggerContext();
+        list = new ListAppender<>();
+        list.setContext(context);
+        list.start();
+
+        logger = context.getLogger(RateLimitedLoggerTest.class);
+        logger.setLevel(Level.DEBUG);
+        logger.addAppender(list);
+    }
+
+    @After
+    public void tearDown() {
+        context.stop();
+    }
+
+    @Test
+    public void limitsPerInterval() {
+        RateLimitedLogger limited = new RateLimitedLogger(logger, 2, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 5; i++) {
+            limited.warn("event {}", i);
+        }
+
+        assertEquals(2, list.list.size());
+        assertEquals("event 0", list.list.get(0).getFormattedMessage());
+        assertEquals("event 1", list.list.get(1).getFormattedMessage());
+        assertEquals(3, limited.getSuppressed());
+    }
+
+    @Test
+    public void intervalReset() throws InterruptedException {
+        RateLimitedLogger limited = new RateLimitedLogger(logger, 2, 100, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 5; i++) {
+            limited.info("event {}", i);
+        }
+        assertEquals(2, list.list.size());
+
+        Thread.sleep(200);
+        limited.info("event {}", 5);
+        limited.info("event {}", 6);
+        limited.info("event {}", 7);
+
+        assertEquals(4, list.list.size());
+        assertEquals("event 5 (3 similar messages suppressed)", list.list.get(2).getFormattedMessage());
+        assertEquals(Level.INFO, list.list.get(2).getLevel());
+        assertEquals("event 6", list.list.get(3).getFormattedMessage());
+        assertEquals(1, limited.getSuppressed());
+    }
+
+    @Test
+    public void exceptionAfterSuppressed() throws InterruptedException {
+        RateLimitedLogger limited = new RateLimitedLogger(logger, 1, 100, TimeUnit.MILLISECONDS);
+        IOException e = new IOException("denied");
+        limited.warn("Cannot read {}", "a", e);
+        limited.warn("Cannot read {}", "b", e);
+
+        Thread.sleep(200);
+        limited.warn("Cannot read {}", "c", e);
+
+        assertEquals(2, list.list.size());
+        ILoggingEvent event = list.list.get(1);
+        assertEquals("Cannot read c (1 similar messages suppressed)", event.getFormattedMessage());
+        assertNotNull(event.getThrowableProxy());
+        assertEquals("denied", event.getThrowableProxy().getMessage());
+    }
+
+    @Test
+    public void disabledLevel() {
+        logger.setLevel(Level.INFO);
+        RateLimitedLogger limited = new RateLimitedLogger(logger, 2, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 100; i++) {
+            limited.debug("debug {}", i);
+        }
+
+        // neither logged nor counted, and the budget of the interval is left for the enabled levels
+        assertEquals(0, list.list.size());
+        assertEquals(0, limited.getSuppressed());
+
+        limited.info("info {}", 0);
+        limited.warn("warn {}", 0);
+        assertEquals(2, list.list.size());
+        assertEquals("info 0", list.list.get(0).getFormattedMessage());
+        assertEquals("warn 0", list.list.get(1).getFormattedMessage());
+    }
+
+}
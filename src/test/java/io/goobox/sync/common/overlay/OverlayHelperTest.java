@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+import com.liferay.nativity.control.NativityControl;
+import com.liferay.nativity.modules.fileicon.FileIconControl;
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.Verifications;
+import mockit.VerificationsInOrder;
+import mockit.integration.junit4.JMockit;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JMockit.class)
+public class OverlayHelperTest {
+
+    @Mocked
+    private NativityControl nativityControl;
+
+    @Mocked
+    private FileIconControl fileIconControl;
+
+    private Path tmpDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory(null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+
+    @Test
+    public void reconnect() throws Exception {
+        new Expectations() {{
+            nativityControl.connect();
+            returns(false, false, true);
+        }};
+
+        final OverlayHelper helper = new OverlayHelper(tmpDir, path -> OverlayIcon.OK, nativityControl,
+                (control, callback) -> fileIconControl, new OverlayHelper.StartupTimeouts(1, 10, 100, 1));
+        helper.ready().get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, helper.getMetrics().getConnectRetries());
+        assertTrue(helper.getMetrics().getInitializationMillis() >= 0);
+        new Verifications() {{
+            fileIconControl.enableFileIcons();
+            nativityControl.setFilterFolder(tmpDir.toString());
+        }};
+
+        helper.shutdown();
+    }
+
+    @Test
+    public void extensionStarted() throws Exception {
+        final CountDownLatch filtered = new CountDownLatch(1);
+        new Expectations() {{
+            nativityControl.connect();
+            result = true;
+            nativityControl.setFilterFolder(anyString);
+            result = new Delegate<Void>() {
+                @SuppressWarnings("unused")
+                void setFilterFolder(String folder) {
+                    filtered.countDown();
+                }
+            };
+        }};
+
+        final OverlayHelper helper = new OverlayHelper(tmpDir, path -> OverlayIcon.OK, nativityControl,
+                (control, callback) -> fileIconControl, new OverlayHelper.StartupTimeouts(1, 10, 60000, 1));
+
+        // the extension sends callbacks only for the filter folders, so they are set while waiting for it
+        assertTrue(filtered.await(5, TimeUnit.SECONDS));
+        assertFalse(helper.ready().isDone());
+
+        // the first icon request proves the extension runs - no need to wait for the timeout
+        helper.getIconForFile(tmpDir.toString());
+        helper.ready().get(5, TimeUnit.SECONDS);
+
+        helper.shutdown();
+    }
+
+    @Test
+    public void missingIcon() throws Exception {
+        new Expectations() {{
+            nativityControl.connect();
+            result = true;
+        }};
+
+        final Path file = tmpDir.resolve("file");
+        final CountDownLatch lookup = new CountDownLatch(1);
+        final OverlayIconProvider provider = path -> {
+            if (path.equals(file)) {
+                try {
+                    lookup.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return OverlayIcon.ERROR;
+            }
+            return OverlayIcon.OK;
+        };
+        final OverlayHelper helper = new OverlayHelper(tmpDir, provider, nativityControl,
+                (control, callback) -> fileIconControl, new OverlayHelper.StartupTimeouts(1, 10, 1, 1));
+        helper.ready().get(5, TimeUnit.SECONDS);
+
+        // answered without waiting for the provider
+        assertEquals(OverlayIcon.NONE.id(), helper.getIconForFile(file.toString()));
+        lookup.countDown();
+
+        // the icon is refreshed once known
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (helper.getMetrics().getRefreshedPaths() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(OverlayIcon.ERROR.id(), helper.getIconForFile(file.toString()));
+        new Verifications() {{
+            fileIconControl.refreshIcons(new String[]{file.toString()});
+        }};
+
+        helper.shutdown();
+    }
+
+    @Test
+    public void multipleRoots() throws Exception {
+        new Expectations() {{
+            nativityControl.connect();
+            result = true;
+        }};
+
+        final Path root1 = Files.createDirectory(tmpDir.resolve("root1"));
+        final Path root2 = Files.createDirectory(tmpDir.resolve("root2"));
+        final Path file1 = Files.createFile(root1.resolve("file"));
+        final Path file2 = Files.createFile(root2.resolve("file"));
+        final OverlayHelper helper = new OverlayHelper(root1, path -> OverlayIcon.OK, nativityControl,
+                (control, callback) -> fileIconControl, new OverlayHelper.StartupTimeouts(1, 10, 1, 1));
+        helper.addRoot(root2, path -> OverlayIcon.ERROR).get(5, TimeUnit.SECONDS);
+        helper.ready().get(5, TimeUnit.SECONDS);
+
+        // the index of each root is built by its own provider
+        assertEquals(OverlayIcon.OK.id(), helper.getIconForFile(file1.toString()));
+        assertEquals(OverlayIcon.ERROR.id(), helper.getIconForFile(file2.toString()));
+        assertEquals(OverlayIcon.NONE.id(), helper.getIconForFile(tmpDir.resolve("outside").toString()));
+
+        helper.setSynchronizing(root2);
+        assertEquals(OverlayIcon.NONE.id(), helper.getIconForFile(root1.toString()));
+        assertEquals(OverlayIcon.SYNCING.id(), helper.getIconForFile(root2.toString()));
+        assertEquals(2, helper.getMetrics().getIndexedFiles());
+
+        helper.removeRoot(root2);
+        assertEquals(OverlayIcon.NONE.id(), helper.getIconForFile(file2.toString()));
+        new Verifications() {{
+            nativityControl.setFilterFolders(new String[]{root1.toString(), root2.toString()});
+        }};
+
+        helper.shutdown();
+    }
+
+    @Test
+    public void shutdownDrainsRefreshes() throws Exception {
+        new Expectations() {{
+            nativityControl.connect();
+            result = true;
+        }};
+
+        final OverlayHelper helper = new OverlayHelper(tmpDir, path -> OverlayIcon.OK, nativityControl,
+                (control, callback) -> fileIconControl, new OverlayHelper.StartupTimeouts(1, 10, 1, 1));
+        helper.ready().get(5, TimeUnit.SECONDS);
+        helper.shutdown();
+
+        // the removal of the global state icon is delivered before disconnecting
+        new VerificationsInOrder() {{
+            fileIconControl.refreshIcons(new String[]{tmpDir.toString()});
+            nativityControl.disconnect();
+        }};
+    }
+
+    @Test
+    public void shutdownBeforeConnected() {
+        new Expectations() {{
+            nativityControl.connect();
+            result = false;
+            minTimes = 0;
+        }};
+
+        final OverlayHelper helper = new OverlayHelper(tmpDir, path -> OverlayIcon.OK, nativityControl,
+                (control, callback) -> fileIconControl, new OverlayHelper.StartupTimeouts(1, 10, 100, 1));
+        helper.shutdown();
+
+        assertTrue(helper.ready().isCancelled());
+        new Verifications() {{
+            nativityControl.disconnect();
+            fileIconControl.enableFileIcons();
+            times = 0;
+        }};
+    }
+
+    @Test
+    public void unsupported() {
+        final OverlayHelper helper = new OverlayHelper(tmpDir, path -> OverlayIcon.OK, null,
+                (control, callback) -> fileIconControl, OverlayHelper.StartupTimeouts.DEFAULT);
+
+        assertTrue(helper.ready().isCancelled());
+        helper.setOK();
+        helper.shutdown();
+    }
+
+}
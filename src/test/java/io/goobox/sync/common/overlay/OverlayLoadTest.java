@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+import com.liferay.nativity.control.NativityControl;
+import com.liferay.nativity.modules.fileicon.FileIconControl;
+import mockit.Mock;
+import mockit.MockUp;
+import mockit.integration.junit4.JMockit;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load harness of the overlay icons: native callbacks from many threads at a fixed rate over a generated tree, while
+ * a bulk sync refreshes the files. The native service is replaced by stand-ins that keep no record of the calls, so
+ * it runs on a headless Linux box too and the heap growth is that of the overlay code.
+ * <p>
+ * The defaults make a short smoke run without a report. A longer, repeatable run with a report is configured with
+ * system properties, e.g.
+ * {@code mvn test -Dtest=OverlayLoadTest -Dgoobox.load.seconds=60 -Dgoobox.load.callers=32}:
+ * </p>
+ * <ul>
+ * <li>{@code goobox.load.seconds} - duration of the run</li>
+ * <li>{@code goobox.load.callers} - threads calling getIconForFile</li>
+ * <li>{@code goobox.load.rate} - callbacks per second of each caller</li>
+ * <li>{@code goobox.load.syncers} - threads refreshing the files like a bulk sync</li>
+ * <li>{@code goobox.load.depth}, {@code goobox.load.width} - shape of the generated tree</li>
+ * <li>{@code goobox.load.refreshMicros} - time the native service takes per refreshed path</li>
+ * <li>{@code goobox.load.seed} - seed of the path choices</li>
+ * </ul>
+ */
+@RunWith(JMockit.class)
+public class OverlayLoadTest {
+
+    private static final int SECONDS = Integer.getInteger("goobox.load.seconds", 2);
+    private static final int CALLERS = Integer.getInteger("goobox.load.callers", 8);
+    private static final int RATE = Integer.getInteger("goobox.load.rate", 500);
+    private static final int SYNCERS = Integer.getInteger("goobox.load.syncers", 2);
+    private static final int DEPTH = Integer.getInteger("goobox.load.depth", 3);
+    private static final int WIDTH = Integer.getInteger("goobox.load.width", 8);
+    private static final int REFRESH_MICROS = Integer.getInteger("goobox.load.refreshMicros", 20);
+    private static final long SEED = Long.getLong("goobox.load.seed", 42);
+    private static final boolean REPORT = System.getProperty("goobox.load.seconds") != null;
+
+    /* files of a bulk sync marked as synchronizing at once */
+    private static final int SYNC_BATCH = 100;
+
+    private Path tmpDir;
+    private final List<Path> dirs = new ArrayList<>();
+    private final List<Path> files = new ArrayList<>();
+    private final Map<Path, OverlayIcon> states = new ConcurrentHashMap<>();
+
+    private volatile boolean running = true;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory(null);
+        generate(tmpDir, DEPTH);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+
+    private void generate(Path dir, int depth) throws IOException {
+        for (int i = 0; i < WIDTH; i++) {
+            Path file = Files.createFile(dir.resolve("file-" + i + ".txt"));
+            files.add(file);
+            states.put(file, OverlayIcon.OK);
+        }
+        if (depth == 0) {
+            return;
+        }
+        for (int i = 0; i < WIDTH; i++) {
+            Path sub = Files.createDirectory(dir.resolve("dir-" + i));
+            dirs.add(sub);
+            generate(sub, depth - 1);
+        }
+    }
+
+    @Test
+    public void callbackStorm() throws Exception {
+        final NativityControl nativityControl = new StubNativityControl().getMockInstance();
+        final FileIconControl fileIconControl = StubFileIconControl.create();
+
+        final OverlayHelper helper = new OverlayHelper(tmpDir,
+                path -> states.getOrDefault(path, OverlayIcon.NONE), nativityControl,
+                (control, callback) -> fileIconControl, new OverlayHelper.StartupTimeouts(1, 10, 1, 1));
+        helper.ready().get(30, TimeUnit.SECONDS);
+
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        final long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+        // measured from the intended send time, so a stalled callback also counts against the ones queued behind it
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder refreshCalls = new LongAdder();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            threads.add(new Thread(caller(helper, latency, new Random(SEED + i)), "Caller " + i));
+        }
+        for (int i = 0; i < SYNCERS; i++) {
+            threads.add(new Thread(syncer(helper, refreshCalls, new Random(SEED - i - 1), i), "Syncer " + i));
+        }
+
+        final long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(SECONDS));
+        running = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        final OverlayMetrics metrics = helper.getMetrics();
+        helper.shutdown();
+        System.gc();
+        final long heapAfter = memory.getHeapMemoryUsage().getUsed();
+
+        if (REPORT) {
+            report(latency, refreshCalls, metrics, seconds, heapAfter - heapBefore);
+        }
+
+        assertTrue(latency.getCount() > 0);
+        assertTrue(refreshCalls.sum() > 0);
+        assertEquals(latency.getCount(), metrics.getIconLookups());
+    }
+
+    private void report(LatencyHistogram latency, LongAdder refreshCalls, OverlayMetrics metrics, double seconds,
+                        long heapGrowth) {
+        final long refreshedPaths = metrics.getRefreshedPaths();
+        System.out.printf("Overlay load: %d dirs, %d files, %d callers at %d/s, %d syncers, %.1f s%n",
+                dirs.size(), files.size(), CALLERS, RATE, SYNCERS, seconds);
+        System.out.printf("  callbacks:  %d, p50 %d us, p99 %d us, p999 %d us, max %d us%n",
+                latency.getCount(), micros(latency.getPercentile(50)), micros(latency.getPercentile(99)),
+                micros(latency.getPercentile(99.9)), micros(latency.getMax()));
+        System.out.printf("  refreshes:  %.0f refresh(Path)/s, %.0f paths/s delivered in %d batches (max %d)%n",
+                refreshCalls.sum() / seconds, refreshedPaths / seconds, metrics.getRefreshBatches(),
+                metrics.getMaxRefreshBatchSize());
+        System.out.printf("  heap:       %+d KB%n", heapGrowth / 1024);
+    }
+
+    /*
+     * Asks for random entries like a file manager repainting a directory. Every 50th path does not exist, so the
+     * lookup of missing icons is exercised too.
+     */
+    private Runnable caller(OverlayHelper helper, LatencyHistogram latency, Random random) {
+        return () -> {
+            final long interval = TimeUnit.SECONDS.toNanos(1) / RATE;
+            long next = System.nanoTime();
+            while (running) {
+                final String path;
+                final int n = random.nextInt(50);
+                if (n == 0) {
+                    path = dirs.get(random.nextInt(dirs.size())).resolve("missing-" + random.nextInt()).toString();
+                } else if (n < 10) {
+                    path = dirs.get(random.nextInt(dirs.size())).toString();
+                } else {
+                    path = files.get(random.nextInt(files.size())).toString();
+                }
+
+                final long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                helper.getIconForFile(path);
+                latency.record(System.nanoTime() - next);
+                next += interval;
+            }
+        };
+    }
+
+    /*
+     * Marks batches of files as synchronizing and back, in a random order. Each syncer owns every n-th file, so they
+     * don't overwrite each other's states.
+     */
+    private Runnable syncer(OverlayHelper helper, LongAdder refreshCalls, Random random, int index) {
+        return () -> {
+            final List<Path> own = new ArrayList<>();
+            for (int i = index; i < files.size(); i += SYNCERS) {
+                own.add(files.get(i));
+            }
+            while (running) {
+                Collections.shuffle(own, random);
+                for (int from = 0; from < own.size() && running; from += SYNC_BATCH) {
+                    final List<Path> batch = own.subList(from, Math.min(from + SYNC_BATCH, own.size()));
+                    helper.setSynchronizing();
+                    refresh(helper, batch, OverlayIcon.SYNCING, refreshCalls);
+                    refresh(helper, batch, OverlayIcon.OK, refreshCalls);
+                    helper.setOK();
+                }
+            }
+        };
+    }
+
+    private void refresh(OverlayHelper helper, List<Path> batch, OverlayIcon state, LongAdder refreshCalls) {
+        for (Path file : batch) {
+            states.put(file, state);
+            helper.refresh(file);
+            refreshCalls.increment();
+        }
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Native service that always connects. A fake, not a mock: the calls are not recorded.
+     */
+    private static final class StubNativityControl extends MockUp<NativityControl> {
+
+        @Mock
+        boolean connect() {
+            return true;
+        }
+
+    }
+
+    /**
+     * File icon control that takes {@link #REFRESH_MICROS} per refreshed path and keeps nothing of the calls.
+     */
+    private static final class StubFileIconControl implements InvocationHandler {
+
+        static FileIconControl create() {
+            return (FileIconControl) Proxy.newProxyInstance(FileIconControl.class.getClassLoader(),
+                    new Class<?>[]{FileIconControl.class}, new StubFileIconControl());
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "refreshIcons":
+                    final String[] paths = (String[]) args[0];
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos((long) REFRESH_MICROS * paths.length));
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "StubFileIconControl";
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OverlayStateFileTest {
+
+    private Path tmpDir;
+    private Path syncDir;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory(null);
+        syncDir = tmpDir.resolve("sync");
+        file = tmpDir.resolve("data").resolve("overlay.bin");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+
+    @Test
+    public void followsIndex() throws IOException {
+        final Path dir = syncDir.resolve("a");
+        final Path file1 = dir.resolve("b").resolve("file1");
+        final Path file2 = dir.resolve("file2");
+        final Path file3 = syncDir.resolve("file3");
+
+        final OverlayStateIndex index = new OverlayStateIndex(syncDir);
+        index.update(file3, OverlayIcon.OK);
+        try (OverlayStateFile stateFile = OverlayStateFile.open(file, index)) {
+            // changes after opening are written in place
+            index.update(dir, OverlayIcon.OK);
+            index.update(file1, OverlayIcon.SYNCING);
+            index.update(file2, OverlayIcon.ERROR);
+            index.update(file2, OverlayIcon.OK);
+            index.remove(file3);
+            assertFalse(stateFile.isIncomplete());
+        }
+
+        final OverlayStateIndex loaded = new OverlayStateIndex(syncDir);
+        assertTrue(OverlayStateFile.load(file, loaded));
+        assertEquals(index.size(), loaded.size());
+        assertEquals(OverlayIcon.SYNCING, loaded.getIcon(dir));
+        assertEquals(OverlayIcon.SYNCING, loaded.getIcon(file1));
+        assertEquals(OverlayIcon.OK, loaded.getIcon(file2));
+        assertEquals(OverlayIcon.NONE, loaded.getIcon(file3));
+    }
+
+    @Test
+    public void warmStart() throws IOException {
+        final Path ok = Files.createFile(Files.createDirectories(syncDir).resolve("ok"));
+        final Path deleted = syncDir.resolve("deleted");
+
+        final OverlayStateIndex index = new OverlayStateIndex(syncDir);
+        try (OverlayStateFile ignored = OverlayStateFile.open(file, index)) {
+            index.update(ok, OverlayIcon.OK);
+            index.update(deleted, OverlayIcon.ERROR);
+        }
+
+        final OverlayStateIndex restarted = new OverlayStateIndex(syncDir);
+        try (OverlayStateFile ignored = OverlayStateFile.open(file, restarted)) {
+            assertEquals(OverlayIcon.ERROR, restarted.getIcon(deleted));
+
+            // the paths not found on disk are dropped by the rebuild
+            restarted.rebuild(path -> OverlayIcon.OK);
+            assertEquals(1, restarted.size());
+            assertEquals(OverlayIcon.NONE, restarted.getIcon(deleted));
+        }
+
+        final OverlayStateIndex loaded = new OverlayStateIndex(syncDir);
+        assertTrue(OverlayStateFile.load(file, loaded));
+        assertEquals(1, loaded.size());
+        assertEquals(OverlayIcon.OK, loaded.getIcon(ok));
+    }
+
+    @Test
+    public void namesOverflow() throws IOException {
+        // long names fill the names region long before the records run out
+        final int paths = 3000;
+        final OverlayStateIndex index = new OverlayStateIndex(syncDir);
+        try (OverlayStateFile stateFile = OverlayStateFile.open(file, index)) {
+            for (int i = 0; i < paths; i++) {
+                index.update(syncDir.resolve(longName(i)), OverlayIcon.OK);
+            }
+            assertTrue(stateFile.isIncomplete());
+        }
+        assertFalse(OverlayStateFile.load(file, new OverlayStateIndex(syncDir)));
+
+        // the next start makes room for the names
+        final OverlayStateIndex restarted = new OverlayStateIndex(syncDir);
+        try (OverlayStateFile stateFile = OverlayStateFile.open(file, restarted)) {
+            assertEquals(0, restarted.size());
+            for (int i = 0; i < paths; i++) {
+                restarted.update(syncDir.resolve(longName(i)), OverlayIcon.OK);
+            }
+            assertFalse(stateFile.isIncomplete());
+        }
+
+        final OverlayStateIndex loaded = new OverlayStateIndex(syncDir);
+        assertTrue(OverlayStateFile.load(file, loaded));
+        assertEquals(paths, loaded.size());
+        assertEquals(OverlayIcon.OK, loaded.getIcon(syncDir.resolve(longName(paths - 1))));
+    }
+
+    @Test
+    public void recordsOverflow() throws IOException {
+        final int paths = OverlayStateFile.MIN_RECORDS + 1000;
+        final OverlayStateIndex index = new OverlayStateIndex(syncDir);
+        try (OverlayStateFile stateFile = OverlayStateFile.open(file, index)) {
+            for (int i = 0; i < paths; i++) {
+                index.update(syncDir.resolve("file-" + i), OverlayIcon.OK);
+            }
+            assertTrue(stateFile.isIncomplete());
+        }
+
+        // the grown record region lies over the names of the previous file
+        final OverlayStateIndex restarted = new OverlayStateIndex(syncDir);
+        try (OverlayStateFile stateFile = OverlayStateFile.open(file, restarted)) {
+            for (int i = 0; i < paths; i++) {
+                restarted.update(syncDir.resolve("file-" + i), i % 2 == 0 ? OverlayIcon.OK : OverlayIcon.ERROR);
+            }
+            assertFalse(stateFile.isIncomplete());
+        }
+
+        final OverlayStateIndex loaded = new OverlayStateIndex(syncDir);
+        assertTrue(OverlayStateFile.load(file, loaded));
+        assertEquals(paths, loaded.size());
+        assertEquals(OverlayIcon.OK, loaded.getIcon(syncDir.resolve("file-" + (paths - 2))));
+        assertEquals(OverlayIcon.ERROR, loaded.getIcon(syncDir.resolve("file-" + (paths - 1))));
+    }
+
+    @Test
+    public void churn() throws IOException {
+        final Path kept = syncDir.resolve("kept");
+        final OverlayStateIndex index = new OverlayStateIndex(syncDir);
+        try (OverlayStateFile stateFile = OverlayStateFile.open(file, index)) {
+            index.update(kept, OverlayIcon.OK);
+            // many more temp file names than fit in the names region, but never more than one at a time
+            for (int i = 0; i < 20000; i++) {
+                final Path temp = syncDir.resolve(longName(i));
+                index.update(temp, OverlayIcon.SYNCING);
+                index.remove(temp);
+            }
+            assertFalse(stateFile.isIncomplete());
+        }
+
+        final OverlayStateIndex loaded = new OverlayStateIndex(syncDir);
+        assertTrue(OverlayStateFile.load(file, loaded));
+        assertEquals(1, loaded.size());
+        assertEquals(OverlayIcon.OK, loaded.getIcon(kept));
+    }
+
+    @Test
+    public void warmStartWithOtherIds() throws IOException {
+        final OverlayStateIndex index = new OverlayStateIndex(syncDir);
+        try (OverlayStateFile ignored = OverlayStateFile.open(file, index)) {
+            index.update(syncDir.resolve("a"), OverlayIcon.OK);
+            index.update(syncDir.resolve("b"), OverlayIcon.ERROR);
+        }
+
+        // the loaded index is rewritten on attach - the records of the previous run must not leak into it
+        final OverlayStateIndex restarted = new OverlayStateIndex(syncDir);
+        restarted.update(syncDir.resolve("c"), OverlayIcon.SYNCING);
+        try (OverlayStateFile ignored = OverlayStateFile.open(file, restarted)) {
+            restarted.remove(syncDir.resolve("a"));
+        }
+
+        final OverlayStateIndex loaded = new OverlayStateIndex(syncDir);
+        assertTrue(OverlayStateFile.load(file, loaded));
+        assertEquals(2, loaded.size());
+        assertEquals(OverlayIcon.SYNCING, loaded.getIcon(syncDir.resolve("c")));
+        assertEquals(OverlayIcon.ERROR, loaded.getIcon(syncDir.resolve("b")));
+        assertEquals(OverlayIcon.NONE, loaded.getIcon(syncDir.resolve("a")));
+    }
+
+    private static String longName(int i) {
+        return String.format("%0250d", i);
+    }
+
+    @Test
+    public void otherSyncDir() throws IOException {
+        final OverlayStateIndex index = new OverlayStateIndex(syncDir);
+        try (OverlayStateFile ignored = OverlayStateFile.open(file, index)) {
+            index.update(syncDir.resolve("file"), OverlayIcon.OK);
+        }
+
+        final OverlayStateIndex other = new OverlayStateIndex(tmpDir.resolve("other"));
+        assertFalse(OverlayStateFile.load(file, other));
+        assertEquals(0, other.size());
+        assertFalse(OverlayStateFile.load(tmpDir.resolve("missing"), other));
+    }
+
+}
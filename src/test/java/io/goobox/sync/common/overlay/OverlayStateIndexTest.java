@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class OverlayStateIndexTest {
+
+    private Path tmpDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory(null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+
+    @Test
+    public void rebuild() throws IOException {
+        final Path dir = Files.createDirectories(tmpDir.resolve("a").resolve("b"));
+        final Path warning = Files.createFile(dir.resolve("warning.txt"));
+        Files.createFile(dir.resolve("ok.txt"));
+        Files.createFile(tmpDir.resolve("ok.txt"));
+
+        final OverlayStateIndex index = new OverlayStateIndex(tmpDir);
+        index.rebuild(path -> path.equals(warning) ? OverlayIcon.WARNING : OverlayIcon.OK);
+
+        assertEquals(5, index.size());
+        assertEquals(OverlayIcon.WARNING, index.getIcon(tmpDir.resolve("a")));
+        assertEquals(OverlayIcon.WARNING, index.getIcon(dir));
+        assertEquals(OverlayIcon.OK, index.getIcon(dir.resolve("ok.txt")));
+        assertEquals(OverlayIcon.OK, index.getIcon(tmpDir.resolve("ok.txt")));
+        assertEquals(OverlayIcon.NONE, index.getIcon(tmpDir.resolve("missing")));
+    }
+
+    @Test
+    public void rebuildPerDirectory() throws IOException {
+        final Path dir = Files.createDirectories(tmpDir.resolve("a"));
+        Files.createFile(dir.resolve("file1"));
+        Files.createFile(dir.resolve("file2"));
+        Files.createFile(tmpDir.resolve("file3"));
+
+        final List<Collection<Path>> batches = new ArrayList<>();
+        final OverlayIconProvider provider = new OverlayIconProvider() {
+            @Override
+            public OverlayIcon getIcon(Path path) {
+                return path.endsWith("file2") ? OverlayIcon.SYNCING : OverlayIcon.OK;
+            }
+
+            @Override
+            public Map<Path, OverlayIcon> getIcons(Collection<Path> paths) {
+                batches.add(paths);
+                return OverlayIconProvider.super.getIcons(paths);
+            }
+        };
+
+        final OverlayStateIndex index = new OverlayStateIndex(tmpDir);
+        index.rebuild(provider);
+
+        // one batch for the entries of each directory
+        assertEquals(2, batches.size());
+        assertEquals(4, index.size());
+        assertEquals(OverlayIcon.SYNCING, index.getIcon(dir));
+        assertEquals(provider.getMaxIcon(dir), index.getIcon(dir));
+    }
+
+    @Test
+    public void rebuildSubtree() throws IOException {
+        final Path dir = Files.createDirectories(tmpDir.resolve("a"));
+        final Path file = Files.createFile(dir.resolve("file"));
+        Files.createFile(tmpDir.resolve("other"));
+
+        final OverlayStateIndex index = new OverlayStateIndex(tmpDir);
+        index.rebuild(path -> OverlayIcon.OK);
+        Files.createFile(dir.resolve("new"));
+        Files.delete(file);
+
+        index.rebuild(dir, path -> OverlayIcon.SYNCING);
+        assertEquals(3, index.size());
+        assertEquals(OverlayIcon.SYNCING, index.getIcon(dir.resolve("new")));
+        assertEquals(OverlayIcon.NONE, index.getIcon(file));
+        assertEquals(OverlayIcon.OK, index.getIcon(tmpDir.resolve("other")));
+    }
+
+    @Test
+    public void update() {
+        final OverlayStateIndex index = new OverlayStateIndex(tmpDir);
+        final Path dir = tmpDir.resolve("a");
+        final Path file1 = dir.resolve("b").resolve("file1");
+        final Path file2 = dir.resolve("file2");
+
+        index.update(dir, OverlayIcon.OK);
+        index.update(file1, OverlayIcon.SYNCING);
+        index.update(file2, OverlayIcon.ERROR);
+        assertEquals(OverlayIcon.ERROR, index.getIcon(dir));
+        assertEquals(OverlayIcon.SYNCING, index.getIcon(dir.resolve("b")));
+
+        index.update(file2, OverlayIcon.OK);
+        assertEquals(OverlayIcon.SYNCING, index.getIcon(dir));
+
+        index.update(file1, OverlayIcon.OK);
+        assertEquals(OverlayIcon.OK, index.getIcon(dir));
+        assertEquals(OverlayIcon.OK, index.getIcon(dir.resolve("b")));
+    }
+
+    @Test
+    public void remove() {
+        final OverlayStateIndex index = new OverlayStateIndex(tmpDir);
+        final Path dir = tmpDir.resolve("a");
+        final Path sub = dir.resolve("b");
+
+        index.update(dir, OverlayIcon.OK);
+        index.update(sub, OverlayIcon.OK);
+        index.update(sub.resolve("file1"), OverlayIcon.ERROR);
+        index.update(dir.resolve("file2"), OverlayIcon.SYNCING);
+        assertEquals(OverlayIcon.ERROR, index.getIcon(dir));
+
+        index.remove(sub);
+        assertEquals(OverlayIcon.SYNCING, index.getIcon(dir));
+        assertEquals(OverlayIcon.NONE, index.getIcon(sub.resolve("file1")));
+        assertEquals(2, index.size());
+
+        index.remove(dir.resolve("file2"));
+        assertEquals(OverlayIcon.OK, index.getIcon(dir));
+    }
+
+}
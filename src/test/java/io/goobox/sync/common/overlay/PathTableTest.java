@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PathTableTest {
+
+    private final Path syncDir = Paths.get("sync").toAbsolutePath();
+
+    @Test
+    public void intern() {
+        final PathTable table = new PathTable(syncDir, false);
+        final Path file = syncDir.resolve("a").resolve("b").resolve("file");
+
+        final int id = table.intern(file);
+        assertEquals(4, table.size());
+        assertEquals(id, table.intern(file));
+        assertEquals(id, table.find(file.toString()));
+        assertEquals(id, table.find(syncDir + "/a//b/file/"));
+        assertEquals(file, table.toPath(id));
+        assertEquals("file", table.getName(id));
+        assertEquals(table.find(file.getParent()), table.getParent(id));
+
+        assertEquals(PathTable.ROOT, table.find(syncDir.toString()));
+        assertEquals(PathTable.ROOT, table.intern(syncDir));
+        assertEquals(PathTable.NOT_FOUND, table.find(syncDir.resolve("a").resolve("c")));
+        assertEquals(PathTable.NOT_FOUND, table.find(syncDir + "x/a"));
+        assertEquals(PathTable.NOT_FOUND, table.intern(syncDir.resolveSibling("other")));
+        assertEquals(PathTable.NOT_FOUND, table.find(syncDir.toString().toUpperCase() + "/a"));
+    }
+
+    @Test
+    public void ignoreCase() {
+        final PathTable table = new PathTable(syncDir, true);
+        final int id = table.intern(syncDir.resolve("Dir").resolve("File.TXT"));
+
+        assertEquals(id, table.find(syncDir.toString().toUpperCase() + "/dir/file.txt"));
+        assertEquals(id, table.intern(syncDir.resolve("DIR").resolve("file.txt")));
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    public void remove() {
+        final PathTable table = new PathTable(syncDir, false);
+        final Path dir = syncDir.resolve("a");
+        table.intern(dir.resolve("file1"));
+        table.intern(dir.resolve("b").resolve("file2"));
+        final int other = table.intern(syncDir.resolve("other"));
+
+        table.remove(table.find(dir));
+        assertEquals(2, table.size());
+        assertEquals(PathTable.NOT_FOUND, table.find(dir.resolve("file1")));
+        assertEquals(other, table.find(syncDir.resolve("other")));
+        assertFalse(table.hasChildren(table.find(syncDir.resolve("other"))));
+
+        // the IDs of the removed entries are reused
+        assertTrue(table.intern(syncDir.resolve("new")) < other);
+    }
+
+    @Test
+    public void randomOperations() {
+        final PathTable table = new PathTable(syncDir, false);
+        final Map<Path, Integer> expected = new HashMap<>();
+        final List<Path> added = new ArrayList<>();
+        final Random random = new Random(1);
+
+        for (int i = 0; i < 20000; i++) {
+            final Path path = syncDir.resolve("d" + random.nextInt(20)).resolve("f" + random.nextInt(500));
+            if (random.nextInt(4) == 0 && !added.isEmpty()) {
+                final Path removed = added.remove(random.nextInt(added.size()));
+                if (expected.remove(removed) != null) {
+                    table.remove(table.find(removed));
+                }
+            } else {
+                final int id = table.intern(path);
+                final Integer old = expected.put(path, id);
+                if (old == null) {
+                    added.add(path);
+                } else {
+                    assertEquals((int) old, id);
+                }
+            }
+        }
+
+        for (Map.Entry<Path, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), table.find(entry.getKey().toString()));
+            assertEquals(entry.getKey(), table.toPath(entry.getValue()));
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.overlay;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RefreshQueueTest {
+
+    private final Path syncDir = Paths.get("sync").toAbsolutePath();
+
+    @Test
+    public void coalesce() throws InterruptedException {
+        final RefreshQueue queue = new RefreshQueue(syncDir, 100, 0);
+        final Path dir = syncDir.resolve("a").resolve("b");
+
+        queue.add(dir.resolve("file1"));
+        queue.add(dir.resolve("file2"));
+        queue.add(dir.resolve("file1"));
+        assertEquals(4, queue.size());
+
+        assertArrayEquals(new String[]{
+                dir.resolve("file1").toString(),
+                dir.toString(),
+                syncDir.resolve("a").toString(),
+                dir.resolve("file2").toString()
+        }, queue.take());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void rootFirst() throws InterruptedException {
+        final RefreshQueue queue = new RefreshQueue(syncDir, 100, 60000);
+        final Path file = syncDir.resolve("file");
+
+        queue.add(file);
+        queue.addRoot();
+
+        // the sync dir is not delayed by the debounce window
+        assertArrayEquals(new String[]{syncDir.toString(), file.toString()}, queue.take());
+    }
+
+    @Test
+    public void overflow() throws InterruptedException {
+        final RefreshQueue queue = new RefreshQueue(syncDir, 10, 0);
+
+        for (int i = 0; i < 100; i++) {
+            queue.add(syncDir.resolve("file" + i));
+        }
+        assertEquals(1, queue.size());
+        assertArrayEquals(new String[]{syncDir.toString()}, queue.take());
+
+        queue.add(syncDir.resolve("file"));
+        assertArrayEquals(new String[]{syncDir.resolve("file").toString()}, queue.take());
+    }
+
+    @Test
+    public void close() throws InterruptedException {
+        final RefreshQueue queue = new RefreshQueue(syncDir, 100, 60000);
+        final Path file = syncDir.resolve("file");
+
+        queue.add(file);
+        queue.close();
+
+        // delivered without waiting for the debounce window
+        assertArrayEquals(new String[]{file.toString()}, queue.take());
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void multipleSyncDirs() throws InterruptedException {
+        final Path other = Paths.get("other").toAbsolutePath();
+        final RefreshQueue queue = new RefreshQueue(100, 0);
+        queue.addSyncDir(syncDir);
+        queue.addSyncDir(other);
+
+        queue.add(syncDir.resolve("file"));
+        queue.add(other.resolve("dir").resolve("file"));
+        queue.add(Paths.get("outside").toAbsolutePath());
+        queue.addRoot(other);
+        assertArrayEquals(new String[]{
+                other.toString(),
+                syncDir.resolve("file").toString(),
+                other.resolve("dir").resolve("file").toString(),
+                other.resolve("dir").toString()
+        }, queue.take());
+
+        queue.removeSyncDir(other);
+        queue.add(other.resolve("file"));
+        queue.addRoot();
+        assertArrayEquals(new String[]{syncDir.toString()}, queue.take());
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.scan;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SnapshotDiffTest {
+
+    private final Path root = Paths.get("root").toAbsolutePath();
+
+    private static class Recorder implements SnapshotDiff.Listener {
+
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void added(Snapshot current, int index) {
+            events.add("added " + current.getPath(index));
+        }
+
+        @Override
+        public void removed(Snapshot previous, int index) {
+            events.add("removed " + previous.getPath(index));
+        }
+
+        @Override
+        public void modified(Snapshot previous, int previousIndex, Snapshot current, int currentIndex) {
+            events.add("modified " + current.getPath(currentIndex));
+        }
+
+        @Override
+        public void moved(Snapshot previous, int previousIndex, Snapshot current, int currentIndex) {
+            events.add("moved " + previous.getPath(previousIndex) + " " + current.getPath(currentIndex));
+        }
+
+    }
+
+    @Test
+    public void diff() {
+        final Snapshot previous = Snapshot.builder(root)
+                .add("dir", Snapshot.DIRECTORY, 0, 100)
+                .add("dir/same", Snapshot.FILE, 10, 100, "h1")
+                .add("dir/size", Snapshot.FILE, 10, 100, "h2")
+                .add("dir/time", Snapshot.FILE, 10, 100)
+                .add("gone", Snapshot.FILE, 20, 200, "h3")
+                .add("gone-no-hash", Snapshot.FILE, 30, 300)
+                .add("old-name", Snapshot.FILE, 40, 400, "h4")
+                .add("type", Snapshot.FILE, 0, 0)
+                .build();
+        final Snapshot current = Snapshot.builder(root)
+                .add("dir", Snapshot.DIRECTORY, 0, 999)
+                .add("dir/same", Snapshot.FILE, 10, 100)
+                .add("dir/size", Snapshot.FILE, 11, 100)
+                .add("dir/time", Snapshot.FILE, 10, 101)
+                .add("a/new-name", Snapshot.FILE, 40, 400)
+                .add("new", Snapshot.FILE, 20, 200)
+                .add("type", Snapshot.DIRECTORY, 0, 0)
+                .build();
+
+        final Recorder recorder = new Recorder();
+        new SnapshotDiff(previous, current, path -> path.endsWith("new-name") ? "h4" : "other").run(recorder);
+
+        assertEquals(Arrays.asList(
+                "moved old-name a/new-name",
+                "modified dir/size",
+                "modified dir/time",
+                "removed gone-no-hash",
+                "added new",
+                "modified type",
+                "removed gone"
+        ), recorder.events);
+    }
+
+    @Test
+    public void withoutHasher() {
+        final Snapshot previous = Snapshot.builder(root)
+                .add("a", Snapshot.FILE, 1, 1, "h")
+                .add("b", Snapshot.FILE, 1, 1, "h")
+                .build();
+        final Snapshot current = Snapshot.builder(root)
+                .add("c", Snapshot.FILE, 1, 1, "h")
+                .add("d", Snapshot.FILE, 1, 1)
+                .build();
+
+        final Recorder recorder = new Recorder();
+        new SnapshotDiff(previous, current).run(recorder);
+
+        assertEquals(Arrays.asList("moved a c", "added d", "removed b"), recorder.events);
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.scan;
+
+import io.goobox.sync.common.ExclusionRules;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotScannerTest {
+
+    private Path tmpDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory(null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+
+    @Test
+    public void scan() throws IOException {
+        final Path dir = Files.createDirectories(tmpDir.resolve("a").resolve("b"));
+        final Path file = Files.write(dir.resolve("file.txt"), "content".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(1500000000000L));
+        Files.createFile(tmpDir.resolve("a-b"));
+        Files.createFile(tmpDir.resolve("desktop.ini"));
+        Files.createFile(Files.createDirectories(tmpDir.resolve("node_modules")).resolve("lib.js"));
+
+        final ExclusionRules rules = ExclusionRules.builder().addDefaults().add("node_modules/").build();
+        final Snapshot snapshot = new SnapshotScanner(tmpDir, rules, new ForkJoinPool(2)).scan();
+
+        final String[] paths = new String[snapshot.size()];
+        for (int i = 0; i < snapshot.size(); i++) {
+            paths[i] = snapshot.getPath(i);
+        }
+        assertArrayEquals(new String[]{"a", "a-b", "a/b", "a/b/file.txt"}, paths);
+
+        final int idx = snapshot.indexOf("a/b/file.txt");
+        assertEquals(Snapshot.FILE, snapshot.getType(idx));
+        assertEquals(7, snapshot.getSize(idx));
+        assertEquals(1500000000000L, snapshot.getLastModified(idx));
+        assertEquals(file, snapshot.toPath(idx));
+        assertTrue(snapshot.isDirectory(snapshot.indexOf("a/b")));
+        assertTrue(snapshot.indexOf("node_modules/lib.js") < 0);
+    }
+
+    @Test
+    public void manySmallDirectories() throws IOException {
+        for (int i = 0; i < 200; i++) {
+            final Path dir = Files.createDirectories(tmpDir.resolve("d" + i).resolve("sub"));
+            Files.createFile(dir.resolve("f"));
+            Files.createFile(dir.getParent().resolve("f" + i));
+        }
+
+        final Snapshot snapshot = new SnapshotScanner(tmpDir, ExclusionRules.getDefault(), new ForkJoinPool(4)).scan();
+        assertEquals(800, snapshot.size());
+        for (int i = 1; i < snapshot.size(); i++) {
+            assertTrue(snapshot.getPath(i - 1).compareTo(snapshot.getPath(i)) < 0);
+        }
+        assertTrue(snapshot.indexOf("d7/sub/f") >= 0);
+    }
+
+    @Test
+    public void build() {
+        final Snapshot.Builder builder = Snapshot.builder(tmpDir);
+        for (String path : Arrays.asList("c", "a/b", "b", "a", "a/a")) {
+            builder.add(path, Snapshot.FILE, path.length(), 0, path.equals("b") ? "hash" : null);
+        }
+        final Snapshot snapshot = builder.build();
+
+        assertEquals(5, snapshot.size());
+        assertEquals("a", snapshot.getPath(0));
+        assertEquals("a/a", snapshot.getPath(1));
+        assertEquals("a/b", snapshot.getPath(2));
+        assertEquals(3, snapshot.getSize(2));
+        assertEquals("hash", snapshot.getHash(snapshot.indexOf("b")));
+        assertEquals(null, snapshot.getHash(snapshot.indexOf("c")));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void duplicate() {
+        Snapshot.builder(tmpDir).add("a", Snapshot.FILE, 0, 0).add("a", Snapshot.FILE, 0, 0).build();
+    }
+
+}
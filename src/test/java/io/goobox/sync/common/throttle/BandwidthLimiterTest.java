@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.throttle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BandwidthLimiterTest {
+
+    private BandwidthLimiter limiter;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        limiter = new BandwidthLimiter();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        limiter.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void streams() throws IOException, InterruptedException {
+        byte[] content = new byte[100_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        limiter.setLimit(Direction.UPLOAD, 500_000);
+
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        try (Transfer transfer = limiter.start(Direction.UPLOAD);
+             InputStream in = transfer.wrap(new ByteArrayInputStream(content));
+             OutputStream out = transfer.wrap(copy)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+
+        assertArrayEquals(content, copy.toByteArray());
+        // 200 KB counted at 500 KB/s, less the 250 ms burst
+        assertTrue(System.nanoTime() - start >= 100_000_000L);
+        assertEquals(200_000, limiter.getUploadedBytes());
+        assertEquals(0, limiter.getDownloadedBytes());
+        assertEquals(0, limiter.getActiveUploads());
+    }
+
+    @Test
+    public void channels() throws IOException, InterruptedException {
+        byte[] content = new byte[50_000];
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        try (Transfer transfer = limiter.start(Direction.DOWNLOAD, 1_000_000)) {
+            ReadableByteChannel in = transfer.wrap(Channels.newChannel(new ByteArrayInputStream(content)));
+            ByteBuffer buffer = ByteBuffer.allocate(content.length);
+            while (in.read(buffer) > 0) {
+                assertTrue(buffer.position() <= content.length);
+            }
+            buffer.flip();
+            WritableByteChannel out = transfer.wrap(Channels.newChannel(copy));
+            while (buffer.hasRemaining()) {
+                assertTrue(out.write(buffer) <= Transfer.CHUNK_SIZE);
+            }
+        }
+
+        assertEquals(content.length, copy.size());
+        assertEquals(content.length * 2, limiter.getDownloadedBytes());
+    }
+
+    @Test
+    public void concurrencyLimit() throws Exception {
+        limiter.setMaxConcurrentTransfers(Direction.DOWNLOAD, 1);
+        assertEquals(1, limiter.getMaxConcurrentDownloads());
+
+        Transfer first = limiter.start(Direction.DOWNLOAD);
+        Future<Transfer> second = executor.submit(() -> limiter.start(Direction.DOWNLOAD));
+        try {
+            second.get(200, TimeUnit.MILLISECONDS);
+            fail("Second transfer started");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        // the other direction is not limited
+        limiter.start(Direction.UPLOAD).close();
+
+        first.close();
+        first.close();
+        second.get(5, TimeUnit.SECONDS).close();
+        assertEquals(0, limiter.getActiveDownloads());
+
+        // raising the limit while transfers run
+        first = limiter.start(Direction.DOWNLOAD);
+        limiter.setMaxConcurrentTransfers(Direction.DOWNLOAD, 2);
+        limiter.start(Direction.DOWNLOAD).close();
+        first.close();
+
+        limiter.setMaxConcurrentTransfers(Direction.DOWNLOAD, 0);
+        assertEquals(0, limiter.getMaxConcurrentDownloads());
+    }
+
+    @Test
+    public void adaptive() {
+        AdaptiveRate rate = new AdaptiveRate(limiter.getBucket(Direction.UPLOAD));
+        rate.reset(1_000_000);
+        long now = 0;
+        long ms = 1_000_000L;
+
+        rate.sample(20 * ms, now);
+        for (int i = 0; i < 10; i++) {
+            now += AdaptiveRate.INTERVAL_NANOS;
+            rate.sample(20 * ms, now);
+        }
+        assertEquals(1_000_000, limiter.getEffectiveUploadLimit());
+
+        // queueing: the limit is cut
+        for (int i = 0; i < 10; i++) {
+            now += AdaptiveRate.INTERVAL_NANOS;
+            rate.sample(200 * ms, now);
+        }
+        long reduced = limiter.getEffectiveUploadLimit();
+        assertTrue(reduced < 500_000);
+        assertTrue(reduced >= AdaptiveRate.MIN_LIMIT);
+
+        // the latency is back to normal: the limit recovers up to the configured one
+        for (int i = 0; i < 200; i++) {
+            now += AdaptiveRate.INTERVAL_NANOS;
+            rate.sample(20 * ms, now);
+        }
+        assertEquals(1_000_000, limiter.getEffectiveUploadLimit());
+    }
+
+    @Test
+    public void adaptiveMode() {
+        limiter.setUploadLimit(1_000_000);
+        limiter.recordLatency(Direction.UPLOAD, 1_000_000_000L);
+        assertFalse(limiter.isAdaptive());
+        assertEquals(1_000_000, limiter.getEffectiveUploadLimit());
+
+        limiter.setAdaptive(true);
+        assertTrue(limiter.isAdaptive());
+        assertEquals(1_000_000, limiter.getUploadLimit());
+        assertEquals(0, limiter.getEffectiveDownloadLimit());
+    }
+
+    @Test
+    public void register() throws Exception {
+        limiter.register("test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("io.goobox.sync.common:type=BandwidthLimiter,name=\"test\"");
+        assertTrue(server.isRegistered(name));
+
+        server.setAttribute(name, new Attribute("DownloadLimit", 123_456L));
+        assertEquals(123_456L, limiter.getLimit(Direction.DOWNLOAD));
+        assertEquals(0L, server.getAttribute(name, "UploadRate"));
+
+        limiter.close();
+        assertFalse(server.isRegistered(name));
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.throttle;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void unlimited() {
+        TokenBucket bucket = new TokenBucket(null, 0);
+        assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2, 0));
+        assertEquals(Long.MAX_VALUE / 2, bucket.getTotal());
+    }
+
+    @Test
+    public void burstThenWait() {
+        // 1000 bytes per second, a burst of 100 ms
+        TokenBucket bucket = new TokenBucket(null, 1000, SECOND / 10);
+        assertEquals(0, bucket.reserve(100, 0));
+        assertEquals(SECOND / 2, bucket.reserve(500, 0));
+        assertEquals(SECOND, bucket.reserve(500, 0));
+
+        // the reserved time passed, only the burst is free again
+        assertEquals(0, bucket.reserve(100, 3 * SECOND));
+        assertEquals(SECOND / 10, bucket.reserve(100, 3 * SECOND));
+    }
+
+    @Test
+    public void parent() {
+        TokenBucket parent = new TokenBucket(null, 1000, 0);
+        TokenBucket fast = new TokenBucket(parent, 0, 0);
+        TokenBucket slow = new TokenBucket(parent, 100, 0);
+
+        assertEquals(SECOND, fast.reserve(1000, 0));
+        // the parent is busy for a second, the child itself for ten
+        assertEquals(10 * SECOND, slow.reserve(1000, 0));
+        assertEquals(2000, parent.getTotal());
+    }
+
+    @Test
+    public void setLimit() {
+        TokenBucket bucket = new TokenBucket(null, 1000, 0);
+        assertEquals(SECOND, bucket.reserve(1000, 0));
+        bucket.setLimit(0);
+        assertEquals(0, bucket.reserve(1000, 0));
+        assertEquals(0, bucket.getLimit());
+    }
+
+    @Test
+    public void concurrentReservations() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(null, 1_000_000, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            executor.execute(() -> {
+                for (int j = 0; j < 10_000; j++) {
+                    bucket.reserve(10, 0);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        // no reservation got lost: 800000 bytes at 1 MB/s take 0.8 s
+        assertEquals(800_000, bucket.getTotal());
+        assertEquals(800_000_000L + 10_000, bucket.reserve(10, 0));
+    }
+
+    @Test
+    public void acquireWaits() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(null, 100_000, 0);
+        long start = System.nanoTime();
+        bucket.acquire(10_000);
+        bucket.acquire(10_000);
+        assertTrue(System.nanoTime() - start >= 150_000_000L);
+    }
+
+}
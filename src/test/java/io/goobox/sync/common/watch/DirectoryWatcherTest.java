@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2018 Kaloyan Raev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.goobox.sync.common.watch;
+
+import io.goobox.sync.common.ExclusionRules;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DirectoryWatcherTest {
+
+    private Path tmpDir;
+    private DirectoryWatcher watcher;
+    private final BlockingQueue<List<Change>> batches = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory(null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+        FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+
+    private void start(int capacity) throws IOException {
+        watcher = new DirectoryWatcher(tmpDir, ExclusionRules.getDefault(), 200, 2000, capacity);
+        watcher.addListener(batches::add);
+        watcher.start();
+    }
+
+    /**
+     * Collects the changes of the batches published within the given time.
+     */
+    private Set<Change> collect(long millis) throws InterruptedException {
+        final Set<Change> changes = new HashSet<>();
+        final long deadline = System.currentTimeMillis() + millis;
+        List<Change> batch;
+        while ((batch = batches.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) != null) {
+            changes.addAll(batch);
+        }
+        return changes;
+    }
+
+    @Test
+    public void coalesce() throws Exception {
+        final Path existing = Files.createFile(tmpDir.resolve("existing"));
+        start(1000);
+
+        final Path file = tmpDir.resolve("file");
+        for (int i = 0; i < 10; i++) {
+            Files.write(file, ("save " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        Files.write(existing, "changed".getBytes(StandardCharsets.UTF_8));
+        Files.createFile(tmpDir.resolve("desktop.ini"));
+        final Path temp = Files.createFile(tmpDir.resolve("temp"));
+        Files.delete(temp);
+
+        final Set<Change> changes = collect(1500);
+        final Set<Change> expected = new HashSet<>();
+        expected.add(new Change(file, Change.Kind.CREATED));
+        expected.add(new Change(existing, Change.Kind.MODIFIED));
+        assertEquals(expected, changes);
+    }
+
+    @Test
+    public void newDirectories() throws Exception {
+        start(1000);
+
+        final Path dir = Files.createDirectories(tmpDir.resolve("a").resolve("b"));
+        final Path file = Files.createFile(dir.resolve("file"));
+        Files.createDirectories(tmpDir.resolve("ignored "));
+
+        Set<Change> changes = collect(1500);
+        assertTrue(changes.contains(new Change(tmpDir.resolve("a"), Change.Kind.CREATED)));
+        assertTrue(changes.contains(new Change(dir, Change.Kind.CREATED)));
+        assertTrue(changes.contains(new Change(file, Change.Kind.CREATED)));
+        assertEquals(3, changes.size());
+
+        // the new directories are watched too
+        final Path other = Files.createFile(dir.resolve("other"));
+        changes = collect(1500);
+        assertTrue(changes.contains(new Change(other, Change.Kind.CREATED)));
+    }
+
+    @Test
+    public void overflow() throws Exception {
+        start(10);
+
+        final List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            files.add(Files.createFile(tmpDir.resolve("file" + i)));
+        }
+
+        final Set<Change> changes = collect(1500);
+        final Set<Change> expected = new HashSet<>();
+        expected.add(new Change(tmpDir, Change.Kind.RESCAN));
+        assertEquals(expected, changes);
+    }
+
+    @Test
+    public void slowListener() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Set<String> threads = ConcurrentHashMap.newKeySet();
+        watcher = new DirectoryWatcher(tmpDir, ExclusionRules.getDefault(), 200, 2000, 1000);
+        watcher.addListener(changes -> {
+            threads.add(Thread.currentThread().getName());
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batches.add(changes);
+        });
+        watcher.start();
+
+        // the watcher keeps publishing while the listener is busy with the first batch
+        final Path first = Files.createFile(tmpDir.resolve("first"));
+        Thread.sleep(500);
+        final Path second = Files.createFile(tmpDir.resolve("second"));
+        Thread.sleep(500);
+        release.countDown();
+
+        final Set<Change> changes = collect(1500);
+        final Set<Change> expected = new HashSet<>();
+        expected.add(new Change(first, Change.Kind.CREATED));
+        expected.add(new Change(second, Change.Kind.CREATED));
+        assertEquals(expected, changes);
+        assertEquals(Collections.singleton("Watch listeners " + tmpDir), threads);
+    }
+
+    @Test
+    public void lostEvents() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // the listener is called on the watcher thread, so that blocking it stops the watcher
+        watcher = new DirectoryWatcher(tmpDir, ExclusionRules.getDefault(), 200, 2000, 100000, Runnable::run);
+        watcher.addListener(changes -> {
+            if (blocked.getCount() > 0) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            batches.add(changes);
+        });
+        watcher.start();
+
+        // hold the watcher thread in the listener, so that the events of the burst pile up in the watch key
+        Files.createFile(tmpDir.resolve("first"));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 2000; i++) {
+            Files.createFile(tmpDir.resolve("file" + i));
+        }
+        final Path nested = Files.createDirectories(tmpDir.resolve("nested").resolve("deep"));
+        release.countDown();
+
+        assertTrue(collect(1500).contains(new Change(tmpDir, Change.Kind.RESCAN)));
+
+        // the directories created in the lost window are watched too
+        final Path file = Files.createFile(nested.resolve("file"));
+        assertTrue(collect(1500).contains(new Change(file, Change.Kind.CREATED)));
+    }
+
+}